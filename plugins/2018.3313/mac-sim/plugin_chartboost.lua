@@ -50,6 +50,38 @@ function lib.onBackPressed()
     return false
 end
 
+function lib.getLogs()
+    showWarning("chartboost.getLogs")
+    return {}
+end
+
+function lib.getStats()
+    showWarning("chartboost.getStats")
+    return {}
+end
+
+function lib.getProfile()
+    showWarning("chartboost.getProfile")
+    return {}
+end
+
+function lib.setConsent()
+    showWarning("chartboost.setConsent")
+end
+
+function lib.setEventFilter()
+    showWarning("chartboost.setEventFilter")
+end
+
+function lib.stopTrace()
+    showWarning("chartboost.stopTrace")
+    return nil
+end
+
+function lib.ackReward()
+    showWarning("chartboost.ackReward")
+end
+
 -------------------------------------------------------------------------------
 -- END
 -------------------------------------------------------------------------------
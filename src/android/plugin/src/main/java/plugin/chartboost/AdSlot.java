@@ -0,0 +1,222 @@
+// AdSlot.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.SystemClock;
+
+import com.chartboost.sdk.ads.Ad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ads kept for one ad type and location.
+ * <p>
+ * A slot holds up to 'depth' independently cached ads, oldest first. Shows are served from the oldest
+ * cached ad, which leaves the slot when it is shown. Ads are added on the UI thread and looked up from
+ * the Lua thread, so all access is synchronized on the slot.
+ */
+final class AdSlot
+{
+  /**
+   * An ad and its cache state.
+   */
+  static final class Entry
+  {
+    final Ad ad;
+    final long requestedAt;       // SystemClock.elapsedRealtime()
+    long cachedAt = 0;            // 0 until the SDK reports the ad as loaded
+    boolean loading = true;
+
+    Entry(Ad ad)
+    {
+      this.ad = ad;
+      this.requestedAt = SystemClock.elapsedRealtime();
+    }
+  }
+
+  static final int MAX_DEPTH = 5;
+
+  final String adType;
+  final String location;
+
+  private final List<Entry> entries = new ArrayList<>();
+  private int depth = 1;
+
+  AdSlot(String adType, String location)
+  {
+    this.adType = adType;
+    this.location = location;
+  }
+
+  synchronized int getDepth()
+  {
+    return depth;
+  }
+
+  synchronized void setDepth(int depth)
+  {
+    this.depth = Math.max(1, Math.min(depth, MAX_DEPTH));
+  }
+
+  synchronized int size()
+  {
+    return entries.size();
+  }
+
+  // number of ads to create so the slot is full again, after dropping ads that failed to load
+  // a single-ad slot gives up its cached ad for a new request, as chartboost.load() always did, but keeps an ad
+  // that is still loading so its result is reported
+  synchronized int prepareLoad()
+  {
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      Entry entry = entries.get(i);
+      if (!entry.loading && !entry.ad.isCached()) {
+        entries.remove(i);
+      }
+    }
+
+    if (entries.size() > depth) {
+      entries.subList(0, entries.size() - depth).clear();
+    }
+
+    if ((depth == 1) && (entries.size() == 1) && !entries.get(0).loading) {
+      entries.clear();
+    }
+
+    return depth - entries.size();
+  }
+
+  synchronized void add(Ad ad)
+  {
+    entries.add(new Entry(ad));
+  }
+
+  synchronized void remove(Ad ad)
+  {
+    Entry entry = entryOf(ad);
+    if (entry != null) {
+      entries.remove(entry);
+    }
+  }
+
+  synchronized void clear()
+  {
+    entries.clear();
+  }
+
+  // a new cache request for an ad already in the slot (banner refresh)
+  synchronized void onLoading(Ad ad)
+  {
+    Entry entry = entryOf(ad);
+    if (entry != null) {
+      entry.loading = true;
+    }
+  }
+
+  // record the cache result for a loading ad, return false if the ad is not part of this slot or its request
+  // already completed (timed out), so a request completes only once whatever thread reports it first
+  synchronized boolean onLoaded(Ad ad, boolean success)
+  {
+    Entry entry = entryOf(ad);
+    if ((entry == null) || !entry.loading) {
+      return false;
+    }
+
+    entry.loading = false;
+    entry.cachedAt = success ? SystemClock.elapsedRealtime() : 0;
+    return true;
+  }
+
+  // complete a loading ad as failed because the SDK did not answer in time, return false if its request
+  // already completed; a banner keeps its place (the view is re-used), other ads leave the slot
+  synchronized boolean onTimedOut(Ad ad, boolean keep)
+  {
+    Entry entry = entryOf(ad);
+    if ((entry == null) || !entry.loading) {
+      return false;
+    }
+
+    if (keep) {
+      entry.loading = false;
+      entry.cachedAt = 0;
+    }
+    else {
+      entries.remove(entry);
+    }
+    return true;
+  }
+
+  // return the oldest cached ad younger than 'maxAgeMs' (0 for no limit), or null
+  synchronized Ad firstCached(long maxAgeMs)
+  {
+    long cachedAfter = (maxAgeMs > 0) ? SystemClock.elapsedRealtime() - maxAgeMs : 0;
+
+    for (Entry entry : entries) {
+      if (entry.ad.isCached() && ((maxAgeMs <= 0) || (entry.cachedAt > cachedAfter))) {
+        return entry.ad;
+      }
+    }
+
+    return null;
+  }
+
+  // drop the ads cached at or before 'time', return how many were dropped
+  synchronized int removeCachedBefore(long time)
+  {
+    int count = 0;
+
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      Entry entry = entries.get(i);
+      if (!entry.loading && (entry.cachedAt > 0) && (entry.cachedAt <= time)) {
+        entries.remove(i);
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  // time the oldest loaded ad was cached at, or 0 if none is
+  synchronized long oldestCachedAt()
+  {
+    long oldest = 0;
+
+    for (Entry entry : entries) {
+      if (!entry.loading && (entry.cachedAt > 0) && ((oldest == 0) || (entry.cachedAt < oldest))) {
+        oldest = entry.cachedAt;
+      }
+    }
+
+    return oldest;
+  }
+
+  // true if the slot has no ad ready to show (younger than 'maxAgeMs', 0 for no limit) and none loading
+  synchronized boolean isCold(long maxAgeMs)
+  {
+    for (Entry entry : entries) {
+      if (entry.loading) {
+        return false;
+      }
+    }
+
+    return firstCached(maxAgeMs) == null;
+  }
+
+  // (guarded by 'this')
+  private Entry entryOf(Ad ad)
+  {
+    for (Entry entry : entries) {
+      if (entry.ad == ad) {
+        return entry;
+      }
+    }
+
+    return null;
+  }
+}
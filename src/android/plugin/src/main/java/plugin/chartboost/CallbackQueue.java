@@ -0,0 +1,171 @@
+// CallbackQueue.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.SystemClock;
+
+import com.chartboost.sdk.ads.Ad;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves SDK callback processing off the thread the SDK calls back on (usually the main thread).
+ * <p>
+ * A callback only captures its raw fields into a {@link Callback} and queues it. A single plugin-owned
+ * worker thread drains the queue in order and hands each callback to the {@link Handler}, which does the
+ * bookkeeping, JSON formatting and Lua dispatch. The worker is only woken up when the queue goes from
+ * empty to not empty, so a burst of callbacks costs one wake-up.
+ */
+final class CallbackQueue
+{
+  // callback kinds
+  static final int REWARD_EARNED        = 0;
+  static final int AD_DISMISSED         = 1;
+  static final int AD_LOADED            = 2;
+  static final int AD_REQUESTED_TO_SHOW = 3;
+  static final int AD_SHOWN             = 4;
+  static final int AD_CLICKED           = 5;
+
+  private static final String[] KIND_NAMES = {
+    "onRewardEarned", "onAdDismiss", "onAdLoaded", "onAdRequestedToShow", "onAdShown", "onAdClicked"
+  };
+
+  /**
+   * The raw fields of one SDK callback.
+   */
+  static final class Callback
+  {
+    final int kind;
+    final Ad ad;
+    final Object error;           // CacheError / ShowError, null on success
+    final int reward;
+    final long seq;               // event sequence number, in capture order
+    final long capturedAt;        // SystemClock.elapsedRealtimeNanos()
+
+    Callback(int kind, Ad ad, Object error, int reward)
+    {
+      this.kind = kind;
+      this.ad = ad;
+      this.error = error;
+      this.reward = reward;
+      this.seq = nextSequence();
+      this.capturedAt = SystemClock.elapsedRealtimeNanos();
+    }
+  }
+
+  /**
+   * Processes callbacks on the worker thread, in the order they were queued.
+   */
+  interface Handler
+  {
+    void handle(Callback callback);
+  }
+
+  // event sequence numbers, shared by SDK callbacks and the events the plugin raises itself
+  private static final AtomicLong sequence = new AtomicLong(0);
+
+  // take the next event sequence number
+  static long nextSequence()
+  {
+    return sequence.incrementAndGet();
+  }
+
+  // SDK callback name of a kind
+  static String nameOf(int kind)
+  {
+    return KIND_NAMES[kind];
+  }
+
+  private final Handler handler;
+  private final ConcurrentLinkedQueue<Callback> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+  private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "chartboost-callbacks");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final Runnable drainRunnable = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  CallbackQueue(Handler handler)
+  {
+    this.handler = handler;
+  }
+
+  // capture a callback and return right away
+  void post(int kind, Ad ad, Object error, int reward)
+  {
+    if (worker.isShutdown()) {
+      return;
+    }
+
+    pending.add(new Callback(kind, ad, error, reward));
+
+    if (drainScheduled.compareAndSet(false, true)) {
+      try {
+        worker.execute(drainRunnable);
+      }
+      catch (RejectedExecutionException ex) {
+        // shut down in the meantime
+        pending.clear();
+      }
+    }
+  }
+
+  // stop the worker once the callback it is handling (if any) returns; the callbacks still pending are dropped,
+  // unhandled, and later posts are ignored
+  void shutdown()
+  {
+    worker.shutdown();
+    pending.clear();
+  }
+
+  // wait until the worker has stopped after shutdown(), return false on timeout
+  boolean awaitShutdown(long timeoutMs) throws InterruptedException
+  {
+    return worker.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  // handle every queued callback (worker thread)
+  private void drain()
+  {
+    while (true) {
+      Callback callback;
+      while ((callback = pending.poll()) != null) {
+        try {
+          handler.handle(callback);
+        }
+        catch (Exception ex) {
+          PluginLog.error("", "SDK callback failed (%s)", ex);
+        }
+      }
+
+      // a callback queued after the last poll but before this reset is picked up by the next loop
+      drainScheduled.set(false);
+      if (pending.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+        return;
+      }
+    }
+  }
+}
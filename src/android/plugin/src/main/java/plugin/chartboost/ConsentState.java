@@ -0,0 +1,138 @@
+// ConsentState.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.chartboost.sdk.Chartboost;
+import com.chartboost.sdk.privacy.model.CCPA;
+import com.chartboost.sdk.privacy.model.COPPA;
+import com.chartboost.sdk.privacy.model.DataUseConsent;
+import com.chartboost.sdk.privacy.model.GDPR;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Privacy signals last applied to the Chartboost SDK.
+ * <p>
+ * The state is persisted, so the signals set in one session are applied before the SDK starts in the
+ * next one. Updates are diffed against the applied state and only the signals that changed are returned
+ * for the caller to apply, so setting the same consent again costs nothing. A null value clears a signal:
+ * it is forgotten and the SDK falls back to its default for that privacy standard.
+ */
+final class ConsentState
+{
+  private static final String PREFERENCES_NAME = "plugin.chartboost.consent";
+
+  enum Signal
+  {
+    GDPR,     // true: behavioral, false: non behavioral
+    CCPA,     // true: opt in sale, false: opt out sale
+    COPPA     // true: child directed
+  }
+
+  private final SharedPreferences preferences;
+
+  // guarded by 'this'
+  private final Map<Signal, Boolean> applied = new EnumMap<>(Signal.class);
+
+  ConsentState(Context context)
+  {
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+    for (Signal signal : Signal.values()) {
+      if (preferences.contains(keyOf(signal))) {
+        applied.put(signal, preferences.getBoolean(keyOf(signal), false));
+      }
+    }
+  }
+
+  // record the requested signals (null clears one), return (and persist) only the ones that differ from the applied state
+  synchronized Map<Signal, Boolean> update(Map<Signal, Boolean> requested)
+  {
+    Map<Signal, Boolean> changes = new EnumMap<>(Signal.class);
+
+    for (Map.Entry<Signal, Boolean> entry : requested.entrySet()) {
+      Signal signal = entry.getKey();
+      Boolean value = entry.getValue();
+
+      if ((value == null) ? applied.containsKey(signal) : !value.equals(applied.get(signal))) {
+        changes.put(signal, value);
+      }
+    }
+
+    if (! changes.isEmpty()) {
+      SharedPreferences.Editor editor = preferences.edit();
+      for (Map.Entry<Signal, Boolean> entry : changes.entrySet()) {
+        if (entry.getValue() == null) {
+          applied.remove(entry.getKey());
+          editor.remove(keyOf(entry.getKey()));
+        }
+        else {
+          applied.put(entry.getKey(), entry.getValue());
+          editor.putBoolean(keyOf(entry.getKey()), entry.getValue());
+        }
+      }
+      editor.apply();
+    }
+
+    return changes;
+  }
+
+  // the applied signals, e.g. to set them again before the SDK starts
+  synchronized Map<Signal, Boolean> getApplied()
+  {
+    return new EnumMap<>(applied);
+  }
+
+  // pass signals to the SDK, a null value clears the signal (must be called on the UI thread)
+  static void apply(Context context, Map<Signal, Boolean> signals)
+  {
+    for (Map.Entry<Signal, Boolean> entry : signals.entrySet()) {
+      if (entry.getValue() == null) {
+        Chartboost.clearDataUseConsent(context, standardOf(entry.getKey()));
+      }
+      else {
+        Chartboost.addDataUseConsent(context, toDataUseConsent(entry.getKey(), entry.getValue()));
+      }
+    }
+  }
+
+  // SDK privacy standard of a signal
+  static String standardOf(Signal signal)
+  {
+    switch (signal) {
+      case GDPR:
+        return GDPR.GDPR_STANDARD;
+      case CCPA:
+        return CCPA.CCPA_STANDARD;
+      default:
+        return COPPA.COPPA_STANDARD;
+    }
+  }
+
+  private static DataUseConsent toDataUseConsent(Signal signal, boolean value)
+  {
+    switch (signal) {
+      case GDPR:
+        return new GDPR(value ? GDPR.GDPR_CONSENT.BEHAVIORAL : GDPR.GDPR_CONSENT.NON_BEHAVIORAL);
+      case CCPA:
+        return new CCPA(value ? CCPA.CCPA_CONSENT.OPT_IN_SALE : CCPA.CCPA_CONSENT.OPT_OUT_SALE);
+      default:
+        return new COPPA(value);
+    }
+  }
+
+  private static String keyOf(Signal signal)
+  {
+    return signal.name().toLowerCase(Locale.US);
+  }
+}
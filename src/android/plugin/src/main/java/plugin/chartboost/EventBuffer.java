@@ -0,0 +1,49 @@
+// EventBuffer.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds Lua events while the Corona runtime is suspended.
+ * <p>
+ * Events added with a coalescing key replace the pending event with the same key in place, so only the
+ * latest state is delivered (e.g. the last 'loaded' / 'failed' for one location) and it keeps its position
+ * relative to the events captured after the one it replaces. Events added
+ * without a key (rewards, impressions, clicks...) are never dropped. Not thread safe, callers synchronize.
+ */
+final class EventBuffer
+{
+  private final LinkedHashMap<Object, Map<String, Object>> pending = new LinkedHashMap<>();
+
+  // add an event, return true if it replaced a pending one
+  boolean add(Map<String, Object> event, String coalesceKey)
+  {
+    Object key = (coalesceKey != null) ? coalesceKey : new Object();
+
+    // re-putting an existing key keeps its insertion order
+    return pending.put(key, event) != null;
+  }
+
+  boolean isEmpty()
+  {
+    return pending.isEmpty();
+  }
+
+  // return the pending events in delivery order and empty the buffer
+  List<Map<String, Object>> drain()
+  {
+    List<Map<String, Object>> events = new ArrayList<>(pending.values());
+    pending.clear();
+
+    return events;
+  }
+}
@@ -0,0 +1,61 @@
+// EventFilter.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The events Lua subscribed to with chartboost.setEventFilter().
+ * <p>
+ * Phases and ad types come from small fixed sets and are compiled into bitmasks, indexed by their
+ * position in the list of valid names. Callers look up the bit of each phase and type once and check
+ * events with those bits, so a check is two mask tests. Locations are free-form strings and are kept
+ * as a set. Immutable, so SDK callbacks can check it from any thread without locking.
+ */
+final class EventFilter
+{
+  private final int phaseMask;
+  private final int typeMask;
+  private final Set<String> locations;  // null for every location
+
+  EventFilter(int phaseMask, int typeMask, Set<String> locations)
+  {
+    this.phaseMask = phaseMask;
+    this.typeMask = typeMask;
+    this.locations = (locations != null) ? Collections.unmodifiableSet(locations) : null;
+  }
+
+  // bit of a name in a list of valid names, 0 if the name is not in the list
+  static int bitOf(List<String> names, String name)
+  {
+    int index = names.indexOf(name);
+    return (index >= 0) ? (1 << index) : 0;
+  }
+
+  // mask with a bit set for every valid name
+  static int allOf(List<String> names)
+  {
+    return (1 << names.size()) - 1;
+  }
+
+  // 'phaseBit' and 'typeBit' come from bitOf(), 'typeBit' is 0 for an event without an ad type
+  boolean accepts(int phaseBit, int typeBit, String location)
+  {
+    if ((phaseMask & phaseBit) == 0) {
+      return false;
+    }
+
+    if ((typeBit != 0) && ((typeMask & typeBit) == 0)) {
+      return false;
+    }
+
+    return (locations == null) || (location == null) || locations.contains(location);
+  }
+}
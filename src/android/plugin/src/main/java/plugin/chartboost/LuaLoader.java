@@ -8,7 +8,13 @@
 package plugin.chartboost;
 
 import android.content.Context;
-import android.util.Log;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
 
 import com.ansca.corona.CoronaActivity;
 import com.ansca.corona.CoronaEnvironment;
@@ -18,17 +24,29 @@ import com.ansca.corona.CoronaRuntime;
 import com.ansca.corona.CoronaRuntimeListener;
 import com.ansca.corona.CoronaRuntimeTask;
 import com.ansca.corona.CoronaRuntimeTaskDispatcher;
-import com.chartboost.sdk.Chartboost;import com.chartboost.sdk.ads.Ad;import com.chartboost.sdk.ads.Interstitial;import com.chartboost.sdk.ads.Rewarded;import com.chartboost.sdk.callbacks.InterstitialCallback;import com.chartboost.sdk.callbacks.RewardedCallback;import com.chartboost.sdk.events.CacheError;import com.chartboost.sdk.events.CacheEvent;import com.chartboost.sdk.events.ClickError;import com.chartboost.sdk.events.ClickEvent;import com.chartboost.sdk.events.DismissEvent;import com.chartboost.sdk.events.ImpressionEvent;import com.chartboost.sdk.events.RewardEvent;import com.chartboost.sdk.events.ShowError;import com.chartboost.sdk.events.ShowEvent;import com.chartboost.sdk.privacy.model.DataUseConsent;import com.chartboost.sdk.privacy.model.GDPR;import com.naef.jnlua.JavaFunction;
+import com.chartboost.sdk.Chartboost;import com.chartboost.sdk.ads.Ad;import com.chartboost.sdk.ads.Banner;import com.chartboost.sdk.ads.Interstitial;import com.chartboost.sdk.ads.Rewarded;import com.chartboost.sdk.callbacks.BannerCallback;import com.chartboost.sdk.callbacks.InterstitialCallback;import com.chartboost.sdk.callbacks.RewardedCallback;import com.chartboost.sdk.events.CacheError;import com.chartboost.sdk.events.CacheEvent;import com.chartboost.sdk.events.ClickError;import com.chartboost.sdk.events.ClickEvent;import com.chartboost.sdk.events.DismissEvent;import com.chartboost.sdk.events.ImpressionEvent;import com.chartboost.sdk.events.RewardEvent;import com.chartboost.sdk.events.ShowError;import com.chartboost.sdk.events.ShowEvent;import com.chartboost.sdk.privacy.model.DataUseConsent;import com.chartboost.sdk.privacy.model.GDPR;import com.naef.jnlua.JavaFunction;
 import com.naef.jnlua.LuaState;
 import com.naef.jnlua.LuaType;
 import com.naef.jnlua.NamedJavaFunction;
 
 import org.jetbrains.annotations.NotNull;import org.jetbrains.annotations.Nullable;import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Chartboost imports
 
@@ -51,21 +69,58 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
   // event types
   private static final String TYPE_INTERSTITIAL   = "interstitial";
   private static final String TYPE_REWARDED_VIDEO = "rewardedVideo";
-
-  // validation arrays
-  private static final List<String> validAdTypes = new ArrayList<>();
+  private static final String TYPE_BANNER         = "banner";
+
+  // banner sizes
+  private static final String BANNER_SIZE_STANDARD    = "standard";
+  private static final String BANNER_SIZE_MEDIUM      = "medium";
+  private static final String BANNER_SIZE_LEADERBOARD = "leaderboard";
+
+  // banner positions
+  private static final String BANNER_POSITION_TOP    = "top";
+  private static final String BANNER_POSITION_BOTTOM = "bottom";
+
+  // banner refresh interval limits (seconds)
+  private static final int BANNER_DEFAULT_REFRESH_INTERVAL = 30;
+  private static final int BANNER_MIN_REFRESH_INTERVAL     = 10;
+
+  // number of ad slots above which the app is warned that its locations look unbounded
+  private static final int MAX_EXPECTED_SLOTS = 50;
+
+  // frame budget of the main thread profiler (ms)
+  private static final double PROFILER_DEFAULT_FRAME_BUDGET = 16;
+
+  // validation arrays (immutable, safe to read from any thread)
+  private static final List<String> validAdTypes = Collections.unmodifiableList(Arrays.asList(
+    TYPE_INTERSTITIAL, TYPE_REWARDED_VIDEO, TYPE_BANNER
+  ));
+  private static final List<String> validBannerSizes = Collections.unmodifiableList(Arrays.asList(
+    BANNER_SIZE_STANDARD, BANNER_SIZE_MEDIUM, BANNER_SIZE_LEADERBOARD
+  ));
+  private static final List<String> validBannerPositions = Collections.unmodifiableList(Arrays.asList(
+    BANNER_POSITION_TOP, BANNER_POSITION_BOTTOM
+  ));
 
   // data keysof user feedback
   private static final String DATA_LOCATION_KEY  = "location";
   private static final String DATA_ERRORMSG_KEY  = "errorMsg";
   private static final String DATA_ERRORCODE_KEY = "errorCode";
   private static final String DATA_REWARD_KEY    = "reward";
+  private static final String DATA_REASON_KEY    = "reason";
+  private static final String DATA_REQUESTED_LOCATION_KEY = "requestedLocation";
+  private static final String DATA_REWARD_ID_KEY = "rewardId";
+  private static final String DATA_REPLAYED_KEY  = "replayed";
 
   // add missing keys
   private static final String EVENT_PHASE_KEY = "phase";
   private static final String EVENT_TYPE_KEY  = "type";
   private static final String EVENT_DATA_KEY  = "data";
 
+  // ordering and timing keys added to every event, times are SystemClock.elapsedRealtimeNanos() in milliseconds
+  private static final String EVENT_SEQ_KEY           = "seq";
+  private static final String EVENT_CAPTURED_AT_KEY   = "capturedAt";
+  private static final String EVENT_DISPATCHED_AT_KEY = "dispatchedAt";
+
   // response keys
   private static final String RESPONSE_LOAD_FAILED = "loadFailed";
 
@@ -77,34 +132,196 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
   private static final String PHASE_CLICKED   = "clicked";
   private static final String PHASE_LOADED    = "loaded";
   private static final String PHASE_REWARD    = "reward";
+  private static final String PHASE_CAPPED    = "capped";
+
+  // phases Lua can subscribe to with setEventFilter(), in bit order (immutable, safe to read from any thread)
+  private static final List<String> validEventPhases = Collections.unmodifiableList(Arrays.asList(
+    PHASE_INIT, PHASE_DISPLAYED, PHASE_FAILED, PHASE_CLOSED, PHASE_CLICKED, PHASE_LOADED, PHASE_REWARD, PHASE_CAPPED
+  ));
+
+  // event filter bits of the phases and ad types, looked up once (see EventFilter)
+  private static final int PHASE_BIT_INIT      = EventFilter.bitOf(validEventPhases, PHASE_INIT);
+  private static final int PHASE_BIT_DISPLAYED = EventFilter.bitOf(validEventPhases, PHASE_DISPLAYED);
+  private static final int PHASE_BIT_FAILED    = EventFilter.bitOf(validEventPhases, PHASE_FAILED);
+  private static final int PHASE_BIT_CLOSED    = EventFilter.bitOf(validEventPhases, PHASE_CLOSED);
+  private static final int PHASE_BIT_CLICKED   = EventFilter.bitOf(validEventPhases, PHASE_CLICKED);
+  private static final int PHASE_BIT_LOADED    = EventFilter.bitOf(validEventPhases, PHASE_LOADED);
+  private static final int PHASE_BIT_REWARD    = EventFilter.bitOf(validEventPhases, PHASE_REWARD);
+  private static final int PHASE_BIT_CAPPED    = EventFilter.bitOf(validEventPhases, PHASE_CAPPED);
 
-  private static int coronaListener = CoronaLua.REFNIL;
-  private static CoronaRuntime coronaRuntime;
-  private static CoronaRuntimeTaskDispatcher coronaRuntimeTaskDispatcher = null;
+  private static final int TYPE_BIT_INTERSTITIAL   = EventFilter.bitOf(validAdTypes, TYPE_INTERSTITIAL);
+  private static final int TYPE_BIT_REWARDED_VIDEO = EventFilter.bitOf(validAdTypes, TYPE_REWARDED_VIDEO);
+  private static final int TYPE_BIT_BANNER         = EventFilter.bitOf(validAdTypes, TYPE_BANNER);
 
-  // detect soft boot (needed to initialize SDK)
-  // used to send 'init' event on second+ launch as 'init' is only sent by the SDK on first launch
-  private static boolean softBoot = false;
+  // failure reason and error of requests stopped by the watchdog
+  private static final String REASON_TIMEOUT = "timeout";
+  private static final String ERROR_TIMEOUT  = "TIMEOUT";
 
-  // message constants
-  private static final String CORONA_TAG  = "Corona";
-  private static final String ERROR_MSG   = "ERROR: ";
-  private static final String WARNING_MSG = "WARNING: ";
+  private static volatile int coronaListener = CoronaLua.REFNIL;
+  private static volatile CoronaRuntime coronaRuntime;
+  private static volatile CoronaRuntimeTaskDispatcher coronaRuntimeTaskDispatcher = null;
 
-  private static String functionSignature = "";                                  // used in error reporting functions
-  private static final Map<String, Object> chartboostObjects = new HashMap<>();  // keep track of loaded objects
+  // SDK lifecycle (uninitialized -> initializing -> ready / failed -> shutting down)
+  private static final SdkLifecycle sdkLifecycle = new SdkLifecycle();
+
+  private static final Map<String, Object> chartboostObjects = new ConcurrentHashMap<>();  // keep track of loaded objects
 
   // object dictionary keys
-  private static final String SDK_READY_KEY     = "sdkReady";
   private static final String APP_ID_KEY        = "appID";
   private static final String APP_SIGNATURE_KEY = "appSignature";
 
   // Corona APP ID / SIG
 
 
-  Map<String, Object> coronaAdsStore = new HashMap<>();
+  // ad slots keyed by type and location, filled on the UI thread, read on the Lua thread
+  final Map<String, AdSlot> coronaAdsStore = new ConcurrentHashMap<>();
   // delegates
-  private static CoronaChartboostDelegate coronaChartboostDelegate = null;
+  private static volatile CoronaChartboostDelegate coronaChartboostDelegate = null;
+
+  // frequency capping rules (null when not configured)
+  private static volatile PacingEngine pacingEngine = null;
+
+  // placements cached as soon as the SDK is ready (null when not configured)
+  private static volatile PlacementManifest placementManifest = null;
+
+  // fallback locations tried in order when a location has no cached ad (null when not configured)
+  private static volatile Map<String, List<String>> fallbackChains = null;
+
+  // on-disk log of rewards not yet acknowledged by Lua (null when not enabled)
+  private static volatile RewardLedger rewardLedger = null;
+
+  // ledger of the last session still writing its rewards, waited for before the next session reads the file
+  private static volatile RewardLedger closingLedger = null;
+  private static final long LEDGER_CLOSE_TIMEOUT_MS = 1000;
+
+  // age after which a cached ad is no longer shown, 0 for no limit
+  private static volatile long maxAdAgeMs = 0;
+
+  // deadlines for the SDK start and for each cache request, 0 for none
+  private static volatile long initTimeoutMs = 0;
+  private static volatile long loadTimeoutMs = 0;
+
+  // watchdog key of the SDK start request
+  private static final Object INIT_REQUEST = new Object();
+
+  // privacy signals applied to the SDK, persisted across launches (created on first use)
+  private static ConsentState consentState = null;
+
+  // events Lua subscribed to (null for every event)
+  private static volatile EventFilter eventFilter = null;
+
+  // counters reported by chartboost.getStats()
+  private static final PluginStats pluginStats = new PluginStats();
+
+  // ads shown in place of another location, mapped to the requested location
+  private final Map<Ad, String> fallbackShows = new ConcurrentHashMap<>();
+
+  // banner views, one per size, re-used across loads and refreshes (only touched on the UI thread)
+  private final Map<Banner.BannerSize, Banner> bannerViews = new HashMap<>();
+  private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+  // ad types on screen, one bit per type (see typeBitOf), read by isAdVisible() without a UI hop
+  private final AtomicInteger visibleAds = new AtomicInteger(0);
+
+  // banner shows posted to the UI thread that have not run yet, a hide() must not be skipped while one is queued
+  private final AtomicInteger queuedBannerShows = new AtomicInteger(0);
+
+  // currently displayed banner and its refresh schedule
+  private volatile Banner activeBanner = null;
+  private volatile int bannerRefreshInterval = 0;
+  private volatile boolean runtimeSuspended = false;
+
+  // replaces cached ads nearing their maximum age, one timer for all slots
+  private final Runnable adRefreshRunnable = new Runnable() {
+    @Override
+    public void run() {
+      long startedAt = MainThreadProfiler.begin("plugin.refreshExpiringAds");
+      try {
+        refreshExpiringAds();
+      }
+      finally {
+        MainThreadProfiler.end("plugin.refreshExpiringAds", startedAt);
+      }
+    }
+  };
+
+  /**
+   * A cache request held back while the runtime is suspended.
+   */
+  private static final class DeferredLoad
+  {
+    final String adType;
+    final String location;
+    final Banner.BannerSize bannerSize;
+
+    DeferredLoad(String adType, String location, Banner.BannerSize bannerSize)
+    {
+      this.adType = adType;
+      this.location = location;
+      this.bannerSize = bannerSize;
+    }
+  }
+
+  // cache requests received while suspended, keyed by slot, made on resume (only touched on the UI thread)
+  private final Map<String, DeferredLoad> deferredLoads = new LinkedHashMap<>();
+
+  // slots re-warmed after the last resume that have no cache result yet, and when the resume happened
+  private final Set<String> warmingKeys = new HashSet<>();  // guarded by itself
+  private long warmStartedAt = 0;                            // guarded by warmingKeys
+
+  private final Runnable resumeWarmRunnable = new Runnable() {
+    @Override
+    public void run() {
+      long startedAt = MainThreadProfiler.begin("plugin.warmAfterResume");
+      try {
+        warmAfterResume();
+      }
+      finally {
+        MainThreadProfiler.end("plugin.warmAfterResume", startedAt);
+      }
+    }
+  };
+
+  // Lua events received while the runtime is suspended, delivered as one batch on resume
+  private final EventBuffer suspendedEvents = new EventBuffer();
+
+  private final Runnable bannerRefreshRunnable = new Runnable() {
+    @Override
+    public void run() {
+      long startedAt = MainThreadProfiler.begin("plugin.refreshBanner");
+      try {
+        Banner banner = activeBanner;
+        if ((banner != null) && !runtimeSuspended) {
+          // the new creative is shown in onAdLoaded, re-using the same view
+          AdSlot slot = coronaAdsStore.get(storeKeyOf(TYPE_BANNER, banner.getLocation()));
+          if (slot != null) {
+            slot.onLoading(banner);
+          }
+          banner.cache();
+          watchdog.arm(banner, loadTimeoutMs);
+        }
+      }
+      finally {
+        MainThreadProfiler.end("plugin.refreshBanner", startedAt);
+      }
+    }
+  };
+
+  // fails the requests the SDK never answered, with a single timer for all of them
+  private final Watchdog watchdog = new Watchdog(uiHandler, new Watchdog.Listener() {
+    @Override
+    public void onTimeout(Object key) {
+      if (key == INIT_REQUEST) {
+        pluginStats.increment(PluginStats.TIMEOUTS);
+
+        // a late start still completes the init (see didInitialize)
+        didInitialize(ERROR_TIMEOUT);
+      }
+      else if (key instanceof Ad) {
+        didTimeOutCaching((Ad) key);
+      }
+    }
+  });
 
   // -------------------------------------------------------------------
   // Plugin lifecycle events
@@ -139,6 +356,10 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
   @Override
   public int invoke( LuaState L )
   {
+    // the lifecycle outlives the runtime, its listeners are removed in onExiting()
+    sdkLifecycle.addListener(lifecycleLogger);
+    sdkLifecycle.addListener(placementWarmer);
+
     // Register this plugin into Lua with the following functions.
     NamedJavaFunction[] luaFunctions = new NamedJavaFunction[] {
       new Init(),
@@ -147,8 +368,21 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
       new IsAdVisible(),
       new Show(),
       new Hide(),
-      new OnBackPressed()
+      new OnBackPressed(),
+      new GetLogs(),
+      new GetStats(),
+      new SetEventFilter(),
+      new GetProfile(),
+      new SetConsent(),
+      new StopTrace(),
+      new AckReward()
     };
+
+    // calls are recorded while a trace is on (see init's trace option)
+    for (int i = 0; i < luaFunctions.length; i++) {
+      luaFunctions[i] = new TracedFunction(luaFunctions[i], luaFunctions[i] instanceof Init);
+    }
+
     String libName = L.toString( 1 );
     L.register( libName, luaFunctions );
  
@@ -175,13 +409,6 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
       coronaRuntimeTaskDispatcher = new CoronaRuntimeTaskDispatcher(runtime);
       coronaRuntime = runtime;
 
-      // initialize validation
-      validAdTypes.add(TYPE_INTERSTITIAL);
-      validAdTypes.add(TYPE_REWARDED_VIDEO);
-
-      // initialize chartboost object dictionary
-      chartboostObjects.put(SDK_READY_KEY, false);
-
       // initialize delegate
       coronaChartboostDelegate = new CoronaChartboostDelegate();
     }
@@ -209,6 +436,12 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
   @Override
   public void onSuspended( CoronaRuntime runtime )
   {
+    // buffer Lua events, stop banner refresh and hold back cache requests while the runtime is paused
+    synchronized (suspendedEvents) {
+      runtimeSuspended = true;
+    }
+    uiHandler.removeCallbacks(bannerRefreshRunnable);
+    uiHandler.removeCallbacks(resumeWarmRunnable);
   }
  
   /**
@@ -220,6 +453,18 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
   @Override
   public void onResumed( CoronaRuntime runtime )
   {
+    // deliver the events buffered while suspended, in order, before any new event
+    synchronized (suspendedEvents) {
+      runtimeSuspended = false;
+
+      if (! suspendedEvents.isEmpty()) {
+        sendLuaEvents(suspendedEvents.drain());
+      }
+    }
+
+    // resume banner refresh where it was paused, then make the cache requests held back while suspended
+    scheduleBannerRefresh();
+    uiHandler.post(resumeWarmRunnable);
   }
  
   /**
@@ -235,261 +480,1683 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
   @Override
   public void onExiting(CoronaRuntime runtime)
   {
-    CoronaLua.deleteRef(runtime.getLuaState(), coronaListener);
-    coronaListener = CoronaLua.REFNIL;
-    coronaRuntime = null;
+    // reject API calls and SDK callbacks from here on
+    sdkLifecycle.shutdown();
+
+    // stop sending events before the listener goes away
     coronaRuntimeTaskDispatcher = null;
+    coronaRuntime = null;
+
+    int listener = coronaListener;
+    coronaListener = CoronaLua.REFNIL;
+    CoronaLua.deleteRef(runtime.getLuaState(), listener);
+
+    // stop banner and cached ad refresh, release banner views
+    uiHandler.removeCallbacks(bannerRefreshRunnable);
+    uiHandler.removeCallbacks(adRefreshRunnable);
+    uiHandler.removeCallbacks(resumeWarmRunnable);
+    watchdog.clear();
+    activeBanner = null;
+    visibleAds.set(0);
+    Runnable releaseBanners = new Runnable() {
+      @Override
+      public void run() {
+        for (Banner banner : bannerViews.values()) {
+          removeBannerFromParent(banner);
+          banner.detach();
+        }
+        bannerViews.clear();
+        deferredLoads.clear();
+
+        // a cacheAd() that was running on the UI thread during onExiting() may have refilled them
+        coronaAdsStore.clear();
+        watchdog.clear();
+      }
+    };
+    // views must be released on the UI thread, right away when this is it
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      releaseBanners.run();
+    }
+    else {
+      uiHandler.post(releaseBanners);
+    }
+    synchronized (warmingKeys) {
+      warmingKeys.clear();
+    }
 
     // release all objects
+    synchronized (suspendedEvents) {
+      runtimeSuspended = false;
+      suspendedEvents.drain();
+    }
     coronaAdsStore.clear();
     chartboostObjects.clear();
-    validAdTypes.clear();
+    CoronaChartboostDelegate delegate = coronaChartboostDelegate;
+    if (delegate != null) {
+      delegate.shutdown();
+    }
     coronaChartboostDelegate = null;
+    pacingEngine = null;
+    placementManifest = null;
+    fallbackChains = null;
+    fallbackShows.clear();
+    eventFilter = null;
+    maxAdAgeMs = 0;
+    initTimeoutMs = 0;
+    loadTimeoutMs = 0;
+    pluginStats.reset();
+    MainThreadProfiler.disable();
+    TraceRecorder.stop();
+
+    RewardLedger ledger = rewardLedger;
+    rewardLedger = null;
+    if (ledger != null) {
+      ledger.close();
+      closingLedger = ledger;
+    }
+
+    sdkLifecycle.transition(SdkLifecycle.State.SHUTTING_DOWN, SdkLifecycle.State.UNINITIALIZED);
+    sdkLifecycle.removeListener(lifecycleLogger);
+    sdkLifecycle.removeListener(placementWarmer);
   }
 
   // -------------------------------------------------------------------
   // helper functions
   // -------------------------------------------------------------------
 
-  // log message to console
-  private void logMsg(String msgType, String errorMsg)
+  // log SDK lifecycle transitions
+  private final SdkLifecycle.Listener lifecycleLogger = new SdkLifecycle.Listener() {
+    @Override
+    public void onStateChanged(SdkLifecycle.State from, SdkLifecycle.State to) {
+      PluginLog.debug("", "SDK state %s -> %s", from, to);
+    }
+  };
+
+  // start caching the manifest placements, highest priority first, as soon as the SDK is ready
+  private final SdkLifecycle.Listener placementWarmer = new SdkLifecycle.Listener() {
+    @Override
+    public void onStateChanged(SdkLifecycle.State from, SdkLifecycle.State to) {
+      final PlacementManifest manifest = placementManifest;
+      if ((to != SdkLifecycle.State.READY) || (manifest == null)) {
+        return;
+      }
+
+      uiHandler.post(MainThreadProfiler.wrap("plugin.warmPlacements", new Runnable() {
+        @Override
+        public void run() {
+          CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+          if (coronaActivity == null) {
+            return;
+          }
+
+          for (PlacementManifest.Placement placement : manifest.getPlacements()) {
+            slotOf(placement.adType, placement.location).setDepth(placement.depth);
+            cacheAd("", coronaActivity, placement.adType, placement.location, bannerSizeOf(placement.bannerSize));
+          }
+        }
+      }));
+    }
+  };
+
+  // let the ledger of the last session write the rewards it took until its runtime exited
+  static void awaitClosingLedger()
   {
-    String functionID = functionSignature;
-    if (!functionID.isEmpty()) {
-      functionID += ", ";
+    RewardLedger ledger = closingLedger;
+    closingLedger = null;
+    if (ledger == null) {
+      return;
     }
 
-    Log.i(CORONA_TAG, msgType + functionID + errorMsg);
+    try {
+      if (! ledger.awaitClosed(LEDGER_CLOSE_TIMEOUT_MS)) {
+        PluginLog.warn("", "The reward ledger of the last session is still being written");
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   // return true if SDK is properly initialized
-  private boolean isSDKInitialized()
+  private boolean isSDKInitialized(String functionSignature)
   {
-    if (coronaListener == CoronaLua.REFNIL) {
-      logMsg(ERROR_MSG, "chartboost.init() must be called before calling other API functions");
-      return false;
+    SdkLifecycle.State state = sdkLifecycle.get();
+
+    if (state == SdkLifecycle.State.READY) {
+      return true;
     }
 
-    if (! (boolean)chartboostObjects.get(SDK_READY_KEY)) {
-      logMsg(ERROR_MSG, "Please wait for the 'init' event before calling other API functions");
-      return false;
+    switch (state) {
+      case UNINITIALIZED:
+        PluginLog.error(functionSignature, "chartboost.init() must be called before calling other API functions");
+        break;
+      case INITIALIZING:
+        PluginLog.error(functionSignature, "Please wait for the 'init' event before calling other API functions");
+        break;
+      case FAILED:
+        PluginLog.error(functionSignature, "The Chartboost SDK failed to start. Call chartboost.init() again");
+        break;
+      default:
+        PluginLog.error(functionSignature, "The plugin is shutting down");
+        break;
     }
 
-    return true;
+    return false;
   }
 
-  // dispatch a Lua event to our callback (dynamic handling of properties through map)
-  private void dispatchLuaEvent(final Map<String, Object> event) {
-    if (coronaRuntimeTaskDispatcher != null) {
-      coronaRuntimeTaskDispatcher.send(new CoronaRuntimeTask() {
-        @Override
-        public void executeUsing(CoronaRuntime runtime) {
-          try {
-            LuaState L = runtime.getLuaState();
-            CoronaLua.newEvent(L, EVENT_NAME);
-            boolean hasErrorKey = false;
+  private static synchronized ConsentState getConsentState()
+  {
+    if (consentState == null) {
+      consentState = new ConsentState(CoronaEnvironment.getApplicationContext());
+    }
 
-            // add event parameters from map
-            for (String key: event.keySet()) {
-              CoronaLua.pushValue(L, event.get(key));           // push value
-              L.setField(-2, key);                              // push key
+    return consentState;
+  }
 
-              if (! hasErrorKey) {
-                hasErrorKey = key.equals(CoronaLuaEvent.ISERROR_KEY);
-              }
-            }
+  // return true if Lua subscribed to an event, checked before the event is built
+  // ('typeBit' is 0 for an event without an ad type)
+  private static boolean isEventWanted(int phaseBit, int typeBit, String location)
+  {
+    EventFilter filter = eventFilter;
+    return (filter == null) || filter.accepts(phaseBit, typeBit, location);
+  }
 
-            // add error key if not in map
-            if (! hasErrorKey) {
-              L.pushBoolean(false);
-              L.setField(-2, CoronaLuaEvent.ISERROR_KEY);
-            }
+  // filter and visibility bit of an ad type, 0 for any other type
+  private static int typeBitOf(String adType)
+  {
+    if (TYPE_INTERSTITIAL.equals(adType)) {
+      return TYPE_BIT_INTERSTITIAL;
+    }
+    else if (TYPE_REWARDED_VIDEO.equals(adType)) {
+      return TYPE_BIT_REWARDED_VIDEO;
+    }
+    else if (TYPE_BANNER.equals(adType)) {
+      return TYPE_BIT_BANNER;
+    }
 
-            // add provider
-            L.pushString(PROVIDER_NAME);
-            L.setField(-2, CoronaLuaEvent.PROVIDER_KEY);
+    return 0;
+  }
 
-            CoronaLua.dispatchEvent(L, coronaListener, 0);
-          }
-          catch (Exception ex) {
-            ex.printStackTrace();
-          }
-        }
-      });
+  // filter and visibility bit of an ad, 0 for any other ad
+  private static int typeBitOf(Ad ad)
+  {
+    if (ad instanceof Interstitial) {
+      return TYPE_BIT_INTERSTITIAL;
+    }
+    else if (ad instanceof Rewarded) {
+      return TYPE_BIT_REWARDED_VIDEO;
+    }
+    else if (ad instanceof Banner) {
+      return TYPE_BIT_BANNER;
     }
+
+    return 0;
   }
 
-  // -------------------------------------------------------------------
-  // Plugin implementation
-  // -------------------------------------------------------------------
+  // flag an ad type as on screen or not
+  private void setAdVisible(String adType, boolean visible)
+  {
+    int bit = typeBitOf(adType);
+    int current;
+    int updated;
+
+    do {
+      current = visibleAds.get();
+      updated = visible ? (current | bit) : (current & ~bit);
+    } while ((current != updated) && !visibleAds.compareAndSet(current, updated));
+  }
 
-  // [Lua] chartboost.init(listener , options)
-  public class Init implements NamedJavaFunction
+  // return the plugin ad type for an SDK ad object
+  private static String adTypeOf(Ad ad)
   {
-    /**
-     * Gets the name of the Lua function as it would appear in the Lua script.
-     * @return Returns the name of the custom Lua function.
-     */
-    @Override
-    public String getName() {
-      return "init";
+    if (ad instanceof Interstitial) {
+      return TYPE_INTERSTITIAL;
+    }
+    else if (ad instanceof Rewarded) {
+      return TYPE_REWARDED_VIDEO;
+    }
+    else if (ad instanceof Banner) {
+      return TYPE_BANNER;
     }
 
-    /**
-     * This method is called when the Lua function is called.
-     * <p>
-     * Warning! This method is not called on the main UI thread.
-     * @param luaState Reference to the Lua state.
-     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
-     * @return Returns the number of values to be returned by the Lua function.
-     */
-    @Override
-    public int invoke( final LuaState luaState )
-    {
-      // set function signature for error / warning messages
-      functionSignature = "chartboost.init(listener, options)";
+    return null;
+  }
 
-      // prevent init from being called twice
-      if (coronaListener != CoronaLua.REFNIL) {
-        logMsg(ERROR_MSG, "init() should only be called once");
-        return 0;
-      }
+  // map a banner size name to the SDK banner size
+  private static Banner.BannerSize bannerSizeOf(String size)
+  {
+    if (BANNER_SIZE_MEDIUM.equals(size)) {
+      return Banner.BannerSize.MEDIUM;
+    }
+    else if (BANNER_SIZE_LEADERBOARD.equals(size)) {
+      return Banner.BannerSize.LEADERBOARD;
+    }
 
-      String appId = null;
-      String appSig = null;
-      String customId = null;
-      boolean autoCacheAds = false;
-      Boolean hasUserConsent = null;
+    return Banner.BannerSize.STANDARD;
+  }
 
-      // check number of arguments passed
-      int nargs = luaState.getTop();
-      if (nargs != 2) {
-        logMsg(ERROR_MSG, "2 arguments expected. got " + nargs);
-        return 0;
+  // get the banner view for the given size, creating it only when none exists for that location
+  // (must be called on the UI thread)
+  private Banner obtainBannerView(Context context, String location, Banner.BannerSize size, CoronaChartboostDelegate delegate)
+  {
+    Banner banner = bannerViews.get(size);
+
+    if ((banner != null) && !location.equals(banner.getLocation())) {
+      // a banner's location is fixed at creation, so a new view is needed
+      if (banner == activeBanner) {
+        uiHandler.removeCallbacks(bannerRefreshRunnable);
+        activeBanner = null;
+        setAdVisible(TYPE_BANNER, false);
       }
+      removeBannerFromParent(banner);
+      banner.detach();
+      coronaAdsStore.remove(storeKeyOf(TYPE_BANNER, banner.getLocation()));
+      banner = null;
+    }
 
-      // get listener (required)
-      if (CoronaLua.isListener(luaState, 1, PROVIDER_NAME)) {
-        coronaListener = CoronaLua.newRef(luaState, 1);
-      }
-      else {
-        logMsg(ERROR_MSG, "listener function expected, got: " + luaState.typeName(1));
-        return 0;
-      }
+    if (banner == null) {
+      banner = new Banner(context, location, size, delegate, null);
+      bannerViews.put(size, banner);
+    }
 
-      // check for options table
-      if (luaState.type(2) == LuaType.TABLE) {
-        for (luaState.pushNil(); luaState.next(2); luaState.pop(1)) {
-          String key = luaState.toString(-2);
+    return banner;
+  }
 
-          if (key.equals("appId")) {
-            if (luaState.type(-1) == LuaType.STRING) {
-              appId = luaState.toString(-1);
-            }
-            else {
-              logMsg(ERROR_MSG, "options.appId expected (string). Got " + luaState.typeName(-1));
-              return 0;
-            }
-          }
-          else if (key.equals("appSig")) {
-            if (luaState.type(-1) == LuaType.STRING) {
-              appSig = luaState.toString(-1);
-            }
-            else {
-              logMsg(ERROR_MSG, "options.appSig expected (string). Got " + luaState.typeName(-1));
-              return 0;
-            }
-          }
-          else if (key.equals("customId")) {
-            if (luaState.type(-1) == LuaType.STRING) {
-              customId = luaState.toString(-1);
-            }
-            else {
-              logMsg(ERROR_MSG, "options.customId expected (string). Got " + luaState.typeName(-1));
-              return 0;
-            }
-          }
-          else if (key.equals("hasUserConsent")) {
-            if (luaState.type(-1) == LuaType.BOOLEAN) {
-              hasUserConsent = luaState.toBoolean(-1);
-            }
-            else {
-              logMsg(ERROR_MSG, "options.hasUserConsent expected (boolean). Got " + luaState.typeName(-1));
-              return 0;
-            }
-          }
-          else {
-            logMsg(ERROR_MSG, "Invalid option '" + key + "'");
-            return 0;
-          }
+  // remove a banner view from the overlay (must be called on the UI thread)
+  private static void removeBannerFromParent(Banner banner)
+  {
+    if (banner.getParent() instanceof ViewGroup) {
+      ((ViewGroup) banner.getParent()).removeView(banner);
+    }
+  }
+
+  // key of an ad in coronaAdsStore
+  private static String storeKeyOf(String adType, String location)
+  {
+    if (TYPE_REWARDED_VIDEO.equals(adType)) {
+      return "REWARED/" + location;
+    }
+    else if (TYPE_BANNER.equals(adType)) {
+      return "BANNER/" + location;
+    }
+
+    return "INTERSTITIAL/" + location;
+  }
+
+  // return the slot for a type and location, creating it on first use
+  private AdSlot slotOf(String adType, String location)
+  {
+    String key = storeKeyOf(adType, location);
+    AdSlot slot = coronaAdsStore.get(key);
+
+    if (slot == null) {
+      AdSlot created = new AdSlot(adType, location);
+      slot = coronaAdsStore.putIfAbsent(key, created);
+      if (slot == null) {
+        slot = created;
+
+        // slots live as long as the runtime, one per location
+        if (coronaAdsStore.size() == MAX_EXPECTED_SLOTS + 1) {
+          PluginLog.warn("", "More than %d ad locations are in use, location names should not be generated at run time", MAX_EXPECTED_SLOTS);
         }
       }
-      else {
-        logMsg(ERROR_MSG, "options table expected. Got " + luaState.typeName(2));
-        return 0;
-      }
+    }
 
-      // validate appId and appSig
-      if (appId == null) {
-        logMsg(ERROR_MSG, "options.appId is required");
-        return 0;
-      }
-      if (appSig == null) {
-        logMsg(ERROR_MSG, "options.appSig is required");
-        return 0;
-      }
+    return slot;
+  }
 
-      // log plugin version to the console
-      Log.i(CORONA_TAG, PLUGIN_NAME + ": " + PLUGIN_VERSION + " (SDK: " + PLUGIN_SDK_VERSION + ")");
+  // return the oldest cached ad for a type and location, or null
+  private Ad getCachedAd(String adType, String location)
+  {
+    AdSlot slot = coronaAdsStore.get(storeKeyOf(adType, location));
+    return (slot != null) ? slot.firstCached(TYPE_BANNER.equals(adType) ? 0 : maxAdAgeMs) : null;
+  }
 
-      // store data in object dictionary for later use
-      chartboostObjects.put(APP_ID_KEY, appId);
-      chartboostObjects.put(APP_SIGNATURE_KEY, appSig);
+  // return the cached ad for a location, or for the first location of its fallback chain that has one
+  private Ad findCachedAd(String adType, String location)
+  {
+    Ad ad = getCachedAd(adType, location);
+
+    Map<String, List<String>> chains = fallbackChains;
+    if ((ad == null) && (chains != null)) {
+      List<String> chain = chains.get(location);
+      if (chain != null) {
+        for (int i = 0; (ad == null) && (i < chain.size()); i++) {
+          ad = getCachedAd(adType, chain.get(i));
+        }
+      }
+    }
 
-      // declare final variables for inner loop
+    return ad;
+  }
+
+  // create and cache ads until the slot of the type and location is full (must be called on the UI thread)
+  private void cacheAd(String functionSignature, Context context, String adType, String location, Banner.BannerSize bannerSize)
+  {
+    // the runtime may have exited before the caller got to run
+    CoronaChartboostDelegate delegate = coronaChartboostDelegate;
+    if ((delegate == null) || (sdkLifecycle.get() != SdkLifecycle.State.READY)) {
+      return;
+    }
+
+    // don't download creatives in the background, the request is made on resume
+    if (runtimeSuspended) {
+      deferredLoads.put(storeKeyOf(adType, location), new DeferredLoad(adType, location, bannerSize));
+      pluginStats.increment(PluginStats.DEFERRED_LOADS);
+      return;
+    }
+
+    if (adType.equals(TYPE_REWARDED_VIDEO) || adType.equals(TYPE_INTERSTITIAL)) {
+      AdSlot slot = slotOf(adType, location);
+
+      for (int count = slot.prepareLoad(); count > 0; count--) {
+        Ad ad;
+        if (adType.equals(TYPE_REWARDED_VIDEO)) {
+          ad = new Rewarded(location, delegate, null);
+        }
+        else {
+          ad = new Interstitial(location, delegate, null);
+        }
+        slot.add(ad);
+        ad.cache();
+        watchdog.arm(ad, loadTimeoutMs);
+      }
+    }
+    else if (adType.equals(TYPE_BANNER)) {
+      // a banner view is refreshed in place, its slot only ever holds that view
+      Banner chartboostBanner = obtainBannerView(context, location, bannerSize, delegate);
+      AdSlot slot = slotOf(adType, location);
+      slot.clear();
+      slot.add(chartboostBanner);
+      chartboostBanner.cache();
+      watchdog.arm(chartboostBanner, loadTimeoutMs);
+    }
+    else {
+      PluginLog.error(functionSignature, "Invalid ad type '%s'", adType);
+    }
+  }
+
+  // cached ads are replaced once they reach this share of the maximum age
+  private static long refreshAgeOf(long maxAgeMs)
+  {
+    return maxAgeMs * 4 / 5;
+  }
+
+  // replace the cached ads nearing their maximum age, then schedule the next check (must be called on the UI thread)
+  private void refreshExpiringAds()
+  {
+    long maxAge = maxAdAgeMs;
+    CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+    if ((maxAge <= 0) || (coronaActivity == null)) {
+      return;
+    }
+
+    long refreshBefore = SystemClock.elapsedRealtime() - refreshAgeOf(maxAge);
+
+    for (AdSlot slot : coronaAdsStore.values()) {
+      if (TYPE_BANNER.equals(slot.adType)) {
+        continue;
+      }
+
+      int count = slot.removeCachedBefore(refreshBefore);
+      if (count > 0) {
+        pluginStats.add(PluginStats.ADS_REFRESHED, count);
+        cacheAd("", coronaActivity, slot.adType, slot.location, null);
+      }
+    }
+
+    scheduleAdRefresh();
+  }
+
+  // (re)schedule the shared refresh timer for the oldest cached ad
+  private void scheduleAdRefresh()
+  {
+    uiHandler.removeCallbacks(adRefreshRunnable);
+
+    long maxAge = maxAdAgeMs;
+    if (maxAge <= 0) {
+      return;
+    }
+
+    long oldest = 0;
+    for (AdSlot slot : coronaAdsStore.values()) {
+      long cachedAt = TYPE_BANNER.equals(slot.adType) ? 0 : slot.oldestCachedAt();
+      if ((cachedAt > 0) && ((oldest == 0) || (cachedAt < oldest))) {
+        oldest = cachedAt;
+      }
+    }
+
+    if (oldest > 0) {
+      long delay = oldest + refreshAgeOf(maxAge) - SystemClock.elapsedRealtime();
+      uiHandler.postDelayed(adRefreshRunnable, Math.max(delay, 0));
+    }
+  }
+
+  // make the cache requests deferred while suspended and re-warm the manifest placements that went cold,
+  // highest priority first (must be called on the UI thread)
+  private void warmAfterResume()
+  {
+    CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+    if ((coronaActivity == null) || runtimeSuspended) {
+      return;
+    }
+
+    Map<String, DeferredLoad> loads = new LinkedHashMap<>();
+
+    PlacementManifest manifest = placementManifest;
+    if (manifest != null) {
+      long maxAge = maxAdAgeMs;
+      for (PlacementManifest.Placement placement : manifest.getPlacements()) {
+        String key = storeKeyOf(placement.adType, placement.location);
+        AdSlot slot = coronaAdsStore.get(key);
+        if ((slot == null) || slot.isCold(TYPE_BANNER.equals(placement.adType) ? 0 : maxAge)) {
+          loads.put(key, new DeferredLoad(placement.adType, placement.location, bannerSizeOf(placement.bannerSize)));
+        }
+      }
+    }
+
+    for (Map.Entry<String, DeferredLoad> entry : deferredLoads.entrySet()) {
+      if (! loads.containsKey(entry.getKey())) {
+        loads.put(entry.getKey(), entry.getValue());
+      }
+    }
+    deferredLoads.clear();
+
+    if (loads.isEmpty()) {
+      return;
+    }
+
+    synchronized (warmingKeys) {
+      warmingKeys.clear();
+      warmingKeys.addAll(loads.keySet());
+      warmStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    for (DeferredLoad load : loads.values()) {
+      cacheAd("", coronaActivity, load.adType, load.location, load.bannerSize);
+    }
+  }
+
+  // record the first cache result of a slot re-warmed on resume, and the warm time once all of them have one
+  private void didWarm(String storeKey)
+  {
+    synchronized (warmingKeys) {
+      if (! warmingKeys.remove(storeKey) || ! warmingKeys.isEmpty()) {
+        return;
+      }
+
+      pluginStats.increment(PluginStats.RESUME_WARMUPS);
+      pluginStats.set(PluginStats.RESUME_WARM_MS, SystemClock.elapsedRealtime() - warmStartedAt);
+    }
+  }
+
+  // (re)schedule the refresh of the displayed banner
+  private void scheduleBannerRefresh()
+  {
+    uiHandler.removeCallbacks(bannerRefreshRunnable);
+
+    if ((activeBanner != null) && (bannerRefreshInterval > 0) && !runtimeSuspended) {
+      uiHandler.postDelayed(bannerRefreshRunnable, bannerRefreshInterval * 1000L);
+    }
+  }
+
+  // read the pacing rules table at the given stack index
+  // { interstitial = { minInterval=90, maxPerSession=6, initialDelay=120, maxPerDay=20 }, ["interstitial/levelEnd"] = {...} }
+  private PacingEngine getPacingRules(String functionSignature, LuaState luaState, int index)
+  {
+    PacingEngine engine = new PacingEngine(CoronaEnvironment.getApplicationContext());
+
+    for (luaState.pushNil(); luaState.next(index); luaState.pop(1)) {
+      if (luaState.type(-2) != LuaType.STRING || luaState.type(-1) != LuaType.TABLE) {
+        PluginLog.error(functionSignature, "options.pacing expects tables keyed by 'adType' or 'adType/location'");
+        return null;
+      }
+
+      String ruleKey = luaState.toString(-2);
+      String adType = ruleKey.contains("/") ? ruleKey.substring(0, ruleKey.indexOf('/')) : ruleKey;
+      if (! validAdTypes.contains(adType)) {
+        PluginLog.error(functionSignature, "options.pacing: invalid adType '%s'", adType);
+        return null;
+      }
+
+      PacingEngine.Rule rule = new PacingEngine.Rule();
+      int ruleIndex = luaState.getTop();
+
+      for (luaState.pushNil(); luaState.next(ruleIndex); luaState.pop(1)) {
+        String key = luaState.toString(-2);
+
+        if (luaState.type(-1) != LuaType.NUMBER) {
+          PluginLog.error(functionSignature, "options.pacing['%s'].%s expected (number). Got %s", ruleKey, key, luaState.typeName(-1));
+          return null;
+        }
+
+        double value = luaState.toNumber(-1);
+        if (key.equals("initialDelay")) {
+          rule.initialDelayMs = (long) (value * 1000);
+        }
+        else if (key.equals("minInterval")) {
+          rule.minIntervalMs = (long) (value * 1000);
+        }
+        else if (key.equals("maxPerSession")) {
+          rule.maxPerSession = (int) value;
+        }
+        else if (key.equals("maxPerDay")) {
+          rule.maxPerDay = (int) value;
+        }
+        else {
+          PluginLog.error(functionSignature, "options.pacing['%s']: invalid option '%s'", ruleKey, key);
+          return null;
+        }
+      }
+
+      engine.addRule(ruleKey, rule);
+    }
+
+    return engine;
+  }
+
+  // read the fallback chains table at the given stack index
+  // { levelEnd = { "pause", "default" }, ... }
+  private Map<String, List<String>> getFallbackChains(String functionSignature, LuaState luaState, int index)
+  {
+    Map<String, List<String>> chains = new HashMap<>();
+
+    for (luaState.pushNil(); luaState.next(index); luaState.pop(1)) {
+      if ((luaState.type(-2) != LuaType.STRING) || (luaState.type(-1) != LuaType.TABLE)) {
+        PluginLog.error(functionSignature, "options.fallbacks expects arrays of locations keyed by location");
+        return null;
+      }
+
+      String location = luaState.toString(-2);
+      List<String> chain = new ArrayList<>();
+      int chainIndex = luaState.getTop();
+      int length = luaState.length(chainIndex);
+
+      for (int i = 1; i <= length; i++) {
+        luaState.rawGet(chainIndex, i);
+        if (luaState.type(-1) == LuaType.STRING) {
+          String fallback = luaState.toString(-1);
+          if (! fallback.equals(location) && ! chain.contains(fallback)) {
+            chain.add(fallback);
+          }
+        }
+        else {
+          PluginLog.error(functionSignature, "options.fallbacks['%s'][%s] expected (string). Got %s", location, i, luaState.typeName(-1));
+          luaState.pop(1);
+          return null;
+        }
+        luaState.pop(1);
+      }
+
+      chains.put(location, Collections.unmodifiableList(chain));
+    }
+
+    return Collections.unmodifiableMap(chains);
+  }
+
+  // read an array of strings at the given stack index, null on error
+  private List<String> getStringArray(String functionSignature, LuaState luaState, int index, String name)
+  {
+    List<String> values = new ArrayList<>();
+    int length = luaState.length(index);
+
+    for (int i = 1; i <= length; i++) {
+      luaState.rawGet(index, i);
+      if (luaState.type(-1) != LuaType.STRING) {
+        PluginLog.error(functionSignature, "%s[%s] expected (string). Got %s", name, i, luaState.typeName(-1));
+        luaState.pop(1);
+        return null;
+      }
+      values.add(luaState.toString(-1));
+      luaState.pop(1);
+    }
+
+    return values;
+  }
+
+  // read an inline placement manifest at the given stack index
+  // { { location="levelEnd", type="interstitial", priority=10, keepWarm=true, depth=2 }, ... }
+  private PlacementManifest getPlacementManifest(String functionSignature, LuaState luaState, int index)
+  {
+    List<PlacementManifest.Placement> placements = new ArrayList<>();
+
+    for (luaState.pushNil(); luaState.next(index); luaState.pop(1)) {
+      if (luaState.type(-1) != LuaType.TABLE) {
+        PluginLog.error(functionSignature, "options.placements expects an array of tables. Got %s", luaState.typeName(-1));
+        return null;
+      }
+
+      String adType = null;
+      String location = "default";
+      int priority = 0;
+      boolean keepWarm = false;
+      int depth = 1;
+      String bannerSize = BANNER_SIZE_STANDARD;
+      int placementIndex = luaState.getTop();
+
+      for (luaState.pushNil(); luaState.next(placementIndex); luaState.pop(1)) {
+        String key = luaState.toString(-2);
+
+        if (key.equals("type") && (luaState.type(-1) == LuaType.STRING)) {
+          adType = luaState.toString(-1);
+        }
+        else if (key.equals("location") && (luaState.type(-1) == LuaType.STRING)) {
+          location = luaState.toString(-1);
+        }
+        else if (key.equals("priority") && (luaState.type(-1) == LuaType.NUMBER)) {
+          priority = (int) luaState.toNumber(-1);
+        }
+        else if (key.equals("keepWarm") && (luaState.type(-1) == LuaType.BOOLEAN)) {
+          keepWarm = luaState.toBoolean(-1);
+        }
+        else if (key.equals("depth") && (luaState.type(-1) == LuaType.NUMBER)) {
+          depth = (int) luaState.toNumber(-1);
+        }
+        else if (key.equals("bannerSize") && (luaState.type(-1) == LuaType.STRING)) {
+          bannerSize = luaState.toString(-1);
+        }
+        else {
+          PluginLog.error(functionSignature, "options.placements: invalid option '%s' (%s)", key, luaState.typeName(-1));
+          return null;
+        }
+      }
+
+      placements.add(new PlacementManifest.Placement(adType, location, priority, keepWarm, depth, bannerSize));
+    }
+
+    return validatePlacementManifest(functionSignature, new PlacementManifest(placements));
+  }
+
+  // read a JSON placement manifest from a resource (relative path) or a file (absolute path)
+  private PlacementManifest readPlacementManifest(String functionSignature, String path)
+  {
+    try {
+      InputStream stream;
+      if (path.startsWith("/")) {
+        stream = new FileInputStream(path);
+      }
+      else {
+        stream = CoronaEnvironment.getApplicationContext().getAssets().open(path);
+      }
+
+      StringBuilder json = new StringBuilder();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          json.append(line).append('\n');
+        }
+      }
+      finally {
+        reader.close();
+      }
+
+      return validatePlacementManifest(functionSignature, PlacementManifest.fromJson(json.toString()));
+    }
+    catch (Exception ex) {
+      PluginLog.error(functionSignature, "options.placements: can't read '%s' (%s)", path, ex);
+      return null;
+    }
+  }
+
+  private PlacementManifest validatePlacementManifest(String functionSignature, PlacementManifest manifest)
+  {
+    for (PlacementManifest.Placement placement : manifest.getPlacements()) {
+      if ((placement.adType == null) || !validAdTypes.contains(placement.adType)) {
+        PluginLog.error(functionSignature, "options.placements: invalid adType '%s'", placement.adType);
+        return null;
+      }
+      if (! validBannerSizes.contains(placement.bannerSize)) {
+        PluginLog.error(functionSignature, "options.placements: invalid bannerSize '%s'", placement.bannerSize);
+        return null;
+      }
+    }
+
+    return manifest;
+  }
+
+  // give an event the sequence number and capture time of the SDK callback it reports
+  private static void stampEvent(Map<String, Object> event, CallbackQueue.Callback callback) {
+    event.put(EVENT_SEQ_KEY, (double) callback.seq);
+    event.put(EVENT_CAPTURED_AT_KEY, callback.capturedAt / 1e6);
+  }
+
+  // dispatch a Lua event to our callback (dynamic handling of properties through map)
+  private void dispatchLuaEvent(final Map<String, Object> event) {
+    dispatchLuaEvent(event, null);
+  }
+
+  // dispatch a Lua event, buffering it while the runtime is suspended
+  // events with the same coalesceKey replace each other in the buffer (null = never coalesced)
+  private void dispatchLuaEvent(final Map<String, Object> event, String coalesceKey) {
+    // SDK callback events are stamped when the callback is captured, others are captured now
+    if (! event.containsKey(EVENT_SEQ_KEY)) {
+      event.put(EVENT_SEQ_KEY, (double) CallbackQueue.nextSequence());
+      event.put(EVENT_CAPTURED_AT_KEY, SystemClock.elapsedRealtimeNanos() / 1e6);
+    }
+
+    synchronized (suspendedEvents) {
+      if (runtimeSuspended) {
+        if (suspendedEvents.add(event, coalesceKey)) {
+          pluginStats.increment(PluginStats.EVENTS_COALESCED);
+        }
+        return;
+      }
+    }
+
+    sendLuaEvents(Collections.singletonList(event));
+  }
+
+  // send events to Lua in order, in a single runtime task
+  private void sendLuaEvents(final List<Map<String, Object>> events) {
+    // read once, onExiting() may clear it at any time
+    CoronaRuntimeTaskDispatcher dispatcher = coronaRuntimeTaskDispatcher;
+
+    if (dispatcher != null) {
+      dispatcher.send(new CoronaRuntimeTask() {
+        @Override
+        public void executeUsing(CoronaRuntime runtime) {
+          // the listener is released when the runtime exits
+          if (coronaListener == CoronaLua.REFNIL) {
+            return;
+          }
+
+          LuaState L = runtime.getLuaState();
+          long dispatchedNanos = SystemClock.elapsedRealtimeNanos();
+          double dispatchedAt = dispatchedNanos / 1e6;
+
+          for (Map<String, Object> event : events) {
+            if (TraceRecorder.isRecording()) {
+              long seq = ((Number) event.get(EVENT_SEQ_KEY)).longValue();
+              TraceRecorder.recordDispatch(seq, event.get(EVENT_PHASE_KEY), event.get(EVENT_TYPE_KEY), dispatchedNanos);
+            }
+
+            try {
+              CoronaLua.newEvent(L, EVENT_NAME);
+              boolean hasErrorKey = false;
+
+              // time the runtime task ran, for the native to Lua latency of the event
+              L.pushNumber(dispatchedAt);
+              L.setField(-2, EVENT_DISPATCHED_AT_KEY);
+
+              // add event parameters from map
+              for (String key: event.keySet()) {
+                CoronaLua.pushValue(L, event.get(key));           // push value
+                L.setField(-2, key);                              // push key
+
+                if (! hasErrorKey) {
+                  hasErrorKey = key.equals(CoronaLuaEvent.ISERROR_KEY);
+                }
+              }
+
+              // add error key if not in map
+              if (! hasErrorKey) {
+                L.pushBoolean(false);
+                L.setField(-2, CoronaLuaEvent.ISERROR_KEY);
+              }
+
+              // add provider
+              L.pushString(PROVIDER_NAME);
+              L.setField(-2, CoronaLuaEvent.PROVIDER_KEY);
+
+              CoronaLua.dispatchEvent(L, coronaListener, 0);
+            }
+            catch (Exception ex) {
+              ex.printStackTrace();
+            }
+          }
+        }
+      });
+    }
+  }
+
+  // -------------------------------------------------------------------
+  // Plugin implementation
+  // -------------------------------------------------------------------
+
+  // [Lua] chartboost.init(listener , options)
+  public class Init implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "init";
+    }
+
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( final LuaState luaState )
+    {
+      // set function signature for error / warning messages
+      final String functionSignature = "chartboost.init(listener, options)";
+
+      // prevent init from being called twice (a failed start may be retried)
+      SdkLifecycle.State state = sdkLifecycle.get();
+      if ((state != SdkLifecycle.State.UNINITIALIZED) && (state != SdkLifecycle.State.FAILED)) {
+        PluginLog.error(functionSignature, "init() should only be called once");
+        return 0;
+      }
+
+      String appId = null;
+      String appSig = null;
+      String customId = null;
+      boolean autoCacheAds = false;
+      Boolean hasUserConsent = null;
+      PacingEngine pacing = null;
+      PlacementManifest manifest = null;
+      Map<String, List<String>> fallbacks = null;
+      boolean useRewardLedger = false;
+      double maxAdAge = 0;
+      double initTimeout = 0;
+      double loadTimeout = 0;
+      double profilerBudget = 0;
+      boolean trace = false;
+      int logLevel = -1;
+
+      // check number of arguments passed
+      int nargs = luaState.getTop();
+      if (nargs != 2) {
+        PluginLog.error(functionSignature, "2 arguments expected. got %s", nargs);
+        return 0;
+      }
+
+      // get listener (required)
+      if (! CoronaLua.isListener(luaState, 1, PROVIDER_NAME)) {
+        PluginLog.error(functionSignature, "listener function expected, got: %s", luaState.typeName(1));
+        return 0;
+      }
+
+      // check for options table
+      if (luaState.type(2) == LuaType.TABLE) {
+        for (luaState.pushNil(); luaState.next(2); luaState.pop(1)) {
+          String key = luaState.toString(-2);
+
+          if (key.equals("appId")) {
+            if (luaState.type(-1) == LuaType.STRING) {
+              appId = luaState.toString(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.appId expected (string). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("appSig")) {
+            if (luaState.type(-1) == LuaType.STRING) {
+              appSig = luaState.toString(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.appSig expected (string). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("customId")) {
+            if (luaState.type(-1) == LuaType.STRING) {
+              customId = luaState.toString(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.customId expected (string). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("hasUserConsent")) {
+            if (luaState.type(-1) == LuaType.BOOLEAN) {
+              hasUserConsent = luaState.toBoolean(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.hasUserConsent expected (boolean). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("logLevel")) {
+            logLevel = (luaState.type(-1) == LuaType.STRING) ? PluginLog.levelOf(luaState.toString(-1)) : -1;
+            if (logLevel < 0) {
+              PluginLog.error(functionSignature, "options.logLevel expected ('off', 'error', 'warn', 'info' or 'debug'). Got %s", luaState.toString(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("placements")) {
+            if (luaState.type(-1) == LuaType.TABLE) {
+              manifest = getPlacementManifest(functionSignature, luaState, luaState.getTop());
+            }
+            else if (luaState.type(-1) == LuaType.STRING) {
+              manifest = readPlacementManifest(functionSignature, luaState.toString(-1));
+            }
+            else {
+              PluginLog.error(functionSignature, "options.placements expected (table or string). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+
+            if (manifest == null) {
+              return 0;
+            }
+          }
+          else if (key.equals("fallbacks")) {
+            if (luaState.type(-1) == LuaType.TABLE) {
+              fallbacks = getFallbackChains(functionSignature, luaState, luaState.getTop());
+              if (fallbacks == null) {
+                return 0;
+              }
+            }
+            else {
+              PluginLog.error(functionSignature, "options.fallbacks expected (table). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("rewardLedger")) {
+            if (luaState.type(-1) == LuaType.BOOLEAN) {
+              useRewardLedger = luaState.toBoolean(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.rewardLedger expected (boolean). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("maxAdAge")) {
+            if (luaState.type(-1) == LuaType.NUMBER) {
+              maxAdAge = luaState.toNumber(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.maxAdAge expected (number). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("initTimeout")) {
+            if (luaState.type(-1) == LuaType.NUMBER) {
+              initTimeout = luaState.toNumber(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.initTimeout expected (number). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("loadTimeout")) {
+            if (luaState.type(-1) == LuaType.NUMBER) {
+              loadTimeout = luaState.toNumber(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.loadTimeout expected (number). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("profiler")) {
+            if (luaState.type(-1) == LuaType.BOOLEAN) {
+              profilerBudget = luaState.toBoolean(-1) ? PROFILER_DEFAULT_FRAME_BUDGET : 0;
+            }
+            else if (luaState.type(-1) == LuaType.TABLE) {
+              profilerBudget = PROFILER_DEFAULT_FRAME_BUDGET;
+              int profilerIndex = luaState.getTop();
+
+              for (luaState.pushNil(); luaState.next(profilerIndex); luaState.pop(1)) {
+                String profilerKey = luaState.toString(-2);
+
+                if (profilerKey.equals("frameBudget") && (luaState.type(-1) == LuaType.NUMBER)) {
+                  profilerBudget = luaState.toNumber(-1);
+                }
+                else {
+                  PluginLog.error(functionSignature, "options.profiler: invalid option '%s' (%s)", profilerKey, luaState.typeName(-1));
+                  return 0;
+                }
+              }
+            }
+            else {
+              PluginLog.error(functionSignature, "options.profiler expected (boolean or table). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("trace")) {
+            if (luaState.type(-1) == LuaType.BOOLEAN) {
+              trace = luaState.toBoolean(-1);
+            }
+            else {
+              PluginLog.error(functionSignature, "options.trace expected (boolean). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else if (key.equals("pacing")) {
+            if (luaState.type(-1) == LuaType.TABLE) {
+              pacing = getPacingRules(functionSignature, luaState, luaState.getTop());
+              if (pacing == null) {
+                return 0;
+              }
+            }
+            else {
+              PluginLog.error(functionSignature, "options.pacing expected (table). Got %s", luaState.typeName(-1));
+              return 0;
+            }
+          }
+          else {
+            PluginLog.error(functionSignature, "Invalid option '%s'", key);
+            return 0;
+          }
+        }
+      }
+      else {
+        PluginLog.error(functionSignature, "options table expected. Got %s", luaState.typeName(2));
+        return 0;
+      }
+
+      // validate appId and appSig
+      if (appId == null) {
+        PluginLog.error(functionSignature, "options.appId is required");
+        return 0;
+      }
+      if (appSig == null) {
+        PluginLog.error(functionSignature, "options.appSig is required");
+        return 0;
+      }
+
+      // options are valid, the log level applies from here on
+      if (logLevel >= 0) {
+        PluginLog.setLevel(logLevel);
+      }
+
+      // log plugin version to the console
+      PluginLog.info("", "%s: %s (SDK: %s)", PLUGIN_NAME, PLUGIN_VERSION, PLUGIN_SDK_VERSION);
+
+      if (! sdkLifecycle.transition(state, SdkLifecycle.State.INITIALIZING)) {
+        PluginLog.error(functionSignature, "init() should only be called once");
+        return 0;
+      }
+
+      // keep a reference to the listener (replacing the one from a failed start)
+      if (coronaListener != CoronaLua.REFNIL) {
+        CoronaLua.deleteRef(luaState, coronaListener);
+      }
+      coronaListener = CoronaLua.newRef(luaState, 1);
+
+      // store data in object dictionary for later use
+      chartboostObjects.put(APP_ID_KEY, appId);
+      chartboostObjects.put(APP_SIGNATURE_KEY, appSig);
+      pacingEngine = pacing;
+      placementManifest = manifest;
+      fallbackChains = fallbacks;
+      maxAdAgeMs = (long) (Math.max(maxAdAge, 0) * 1000);
+      initTimeoutMs = (long) (Math.max(initTimeout, 0) * 1000);
+      loadTimeoutMs = (long) (Math.max(loadTimeout, 0) * 1000);
+
+      // time the main thread work from here on, starting with the SDK start below
+      if (profilerBudget > 0) {
+        MainThreadProfiler.enable(profilerBudget);
+      }
+      else {
+        MainThreadProfiler.disable();
+      }
+
+      // record this session for offline replay, starting with this call
+      if (trace) {
+        File traceFile = new File(CoronaEnvironment.getApplicationContext().getCacheDir(), TraceRecorder.FILE_NAME);
+        TraceRecorder.start(traceFile, PLUGIN_VERSION);
+      }
+
+      // read the rewards Lua did not acknowledge in a previous session, they are replayed after the 'init' event
+      if (useRewardLedger && (rewardLedger == null)) {
+        awaitClosingLedger();
+        RewardLedger ledger = new RewardLedger(CoronaEnvironment.getApplicationContext().getFilesDir());
+        ledger.open();
+        rewardLedger = ledger;
+      }
+
+      // declare final variables for inner loop
+      final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+      final Context applicationContext = CoronaEnvironment.getApplicationContext();
+      final String fAppId = appId;
+      final String fAppSignature = appSig;
+      final String fCustomId = customId;
+      final boolean fAutoCacheAds = autoCacheAds;
+
+      // the legacy hasUserConsent option is a GDPR signal, the last signals set are applied before the SDK starts
+      ConsentState consent = getConsentState();
+      if (hasUserConsent != null) {
+        consent.update(Collections.singletonMap(ConsentState.Signal.GDPR, hasUserConsent));
+      }
+      final Map<ConsentState.Signal, Boolean> fConsentSignals = consent.getApplied();
+
+      if (coronaActivity != null) {
+        Runnable runnableActivity = new Runnable() {
+          public void run() {
+            if (! fConsentSignals.containsKey(ConsentState.Signal.GDPR)) {
+              Chartboost.clearDataUseConsent(applicationContext, GDPR.GDPR_STANDARD);
+            }
+            ConsentState.apply(applicationContext, fConsentSignals);
+
+            // initialize SDK
+            watchdog.arm(INIT_REQUEST, initTimeoutMs);
+            Chartboost.startWithAppId(CoronaEnvironment.getApplicationContext(), fAppId, fAppSignature, startError -> {
+              if (startError == null) {
+                didInitialize("");
+              } else {
+                didInitialize(startError.getCode().name());
+              }
+            });
+          }
+        };
+
+        coronaActivity.runOnUiThread(MainThreadProfiler.wrap("chartboost.init", runnableActivity));
+      }
+
+      return 0;
+    }
+  }
+
+  // [Lua] chartboost.load(adType [, namedLocation])
+  public class Load implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "load";
+    }
+
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( LuaState luaState )
+    {
+      final String functionSignature = "chartboost.load(adType [, namedLocation, options])";
+
+      if (! isSDKInitialized(functionSignature)) {
+        return 0;
+      }
+
+      // get number of arguments
+      int nargs = luaState.getTop();
+      if ((nargs < 1) || (nargs > 3)) {
+        PluginLog.error(functionSignature, "Expected 1 to 3 arguments, got %s", nargs);
+        return 0;
+      }
+
+      String adType;
+      String namedLocation = null;
+      String bannerSize = BANNER_SIZE_STANDARD;
+      int depth = 0;
+
+      // Get the ad type
+      if (luaState.type(1) == LuaType.STRING) {
+        adType = luaState.toString(1);
+      }
+      else {
+        PluginLog.error(functionSignature, "adType expected (string), got %s", luaState.typeName(1));
+        return 0;
+      }
+
+      // Get the named location
+      if (! luaState.isNoneOrNil(2)) {
+        if (luaState.type(2) == LuaType.STRING) {
+          namedLocation = luaState.toString(2);
+        }
+        else {
+          PluginLog.error(functionSignature, "namedLocation expected (string), got %s", luaState.typeName(2));
+          return 0;
+        }
+      }
+
+      // Get the options table
+      if (! luaState.isNoneOrNil(3)) {
+        if (luaState.type(3) == LuaType.TABLE) {
+          for (luaState.pushNil(); luaState.next(3); luaState.pop(1)) {
+            String key = luaState.toString(-2);
+
+            if (key.equals("size")) {
+              if (luaState.type(-1) == LuaType.STRING) {
+                bannerSize = luaState.toString(-1);
+              }
+              else {
+                PluginLog.error(functionSignature, "options.size expected (string). Got %s", luaState.typeName(-1));
+                return 0;
+              }
+            }
+            else if (key.equals("depth")) {
+              if (luaState.type(-1) == LuaType.NUMBER) {
+                depth = (int) luaState.toNumber(-1);
+              }
+              else {
+                PluginLog.error(functionSignature, "options.depth expected (number). Got %s", luaState.typeName(-1));
+                return 0;
+              }
+            }
+            else {
+              PluginLog.error(functionSignature, "Invalid option '%s'", key);
+              return 0;
+            }
+          }
+        }
+        else {
+          PluginLog.error(functionSignature, "options table expected. Got %s", luaState.typeName(3));
+          return 0;
+        }
+      }
+
+      if (! validAdTypes.contains(adType)) {
+        PluginLog.error(functionSignature, "invalid adType '%s'", adType);
+        return 0;
+      }
+
+      if (! validBannerSizes.contains(bannerSize)) {
+        PluginLog.error(functionSignature, "invalid banner size '%s'", bannerSize);
+        return 0;
+      }
+
+      String location = (namedLocation != null) ? namedLocation : "default";
+
+      // the depth sticks to the location until changed by another load
+      if (depth != 0) {
+        if (adType.equals(TYPE_BANNER)) {
+          PluginLog.warn(functionSignature, "options.depth is ignored for banners");
+        }
+        else {
+          if ((depth < 1) || (depth > AdSlot.MAX_DEPTH)) {
+            PluginLog.warn(functionSignature, "options.depth clamped to the range 1-%s", AdSlot.MAX_DEPTH);
+          }
+          slotOf(adType, location).setDepth(depth);
+        }
+      }
+
+      // declare final variables for inner loop
+      final String fAdType = adType;
+      final String fLocation = location;
+      final Banner.BannerSize fBannerSize = bannerSizeOf(bannerSize);
       final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
-      final Context applicationContext = CoronaEnvironment.getApplicationContext();
-      final String fAppId = appId;
-      final String fAppSignature = appSig;
-      final String fCustomId = customId;
-      final boolean fAutoCacheAds = autoCacheAds;
-      final Boolean fHasUserConsent = hasUserConsent;
 
+      // Run the activity on the uiThread
       if (coronaActivity != null) {
+        // Create a new runnable object to invoke our activity
         Runnable runnableActivity = new Runnable() {
           public void run() {
-            if (fHasUserConsent != null) {
-              if (fHasUserConsent) {
-                DataUseConsent dataUseConsent = new GDPR(GDPR.GDPR_CONSENT.BEHAVIORAL);
-                Chartboost.addDataUseConsent(applicationContext, dataUseConsent);
-              } else {
-                DataUseConsent dataUseConsent = new GDPR(GDPR.GDPR_CONSENT.NON_BEHAVIORAL);
-                Chartboost.addDataUseConsent(applicationContext, dataUseConsent);
+            cacheAd(functionSignature, coronaActivity, fAdType, fLocation, fBannerSize);
+          }
+        };
+
+        coronaActivity.runOnUiThread(MainThreadProfiler.wrap("chartboost.load", runnableActivity));
+      }
+
+      return 0;
+    }
+  }
+
+  // [Lua] chartboost.isLoaded(adType [, namedLocation])
+  public class IsLoaded implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "isLoaded";
+    }
+
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( LuaState luaState )
+    {
+      final String functionSignature = "chartboost.isLoaded(adType [, namedLocation])";
+
+      if (! isSDKInitialized(functionSignature)) {
+        return 0;
+      }
+
+      // get number of arguments
+      int nargs = luaState.getTop();
+      if ((nargs < 1) || (nargs > 2)) {
+        PluginLog.error(functionSignature, "Expected 1 or 2 arguments, got %s", nargs);
+        return 0;
+      }
+
+      String adType;
+      String namedLocation = null;
+
+      // Get the ad type
+      if (luaState.type(1) == LuaType.STRING) {
+        adType = luaState.toString(1);
+      }
+      else {
+        PluginLog.error(functionSignature, "adType expected (string), got %s", luaState.typeName(1));
+        return 0;
+      }
+
+      // Get the named location
+      if (! luaState.isNoneOrNil(2)) {
+        if (luaState.type(2) == LuaType.STRING) {
+          namedLocation = luaState.toString(2);
+        }
+        else {
+          PluginLog.error(functionSignature, "namedLocation expected (string), got %s", luaState.typeName(2));
+          return 0;
+        }
+      }
+
+      if (! validAdTypes.contains(adType)){
+        PluginLog.error(functionSignature, "invalid adType '%s'", adType);
+        return 0;
+      }
+
+      String location = (namedLocation != null) ? namedLocation : "default";
+      boolean isLoaded = (getCachedAd(adType, location) != null);
+
+      luaState.pushBoolean(isLoaded);
+
+      return 1;
+    }
+  }
+
+  // [Lua] chartboost.isAdVisible()
+  public class IsAdVisible implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "isAdVisible";
+    }
+
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( LuaState luaState )  {
+      final String functionSignature = "chartboost.isAdVisible([adType])";
+
+      // get number of arguments
+      int nargs = luaState.getTop();
+      if (nargs > 1) {
+        PluginLog.error(functionSignature, "Expected 0 or 1 argument, got %s", nargs);
+        return 0;
+      }
+
+      // any ad type by default
+      int mask = -1;
+      if (! luaState.isNoneOrNil(1)) {
+        if (luaState.type(1) != LuaType.STRING) {
+          PluginLog.error(functionSignature, "adType expected (string), got %s", luaState.typeName(1));
+          return 0;
+        }
+
+        String adType = luaState.toString(1);
+        if (! validAdTypes.contains(adType)) {
+          PluginLog.error(functionSignature, "invalid adType '%s'", adType);
+          return 0;
+        }
+        mask = typeBitOf(adType);
+      }
+
+      luaState.pushBoolean((visibleAds.get() & mask) != 0);
+
+      return 1;
+    }
+  }
+
+  // [Lua] chartboost.show(adType [, namedLocation])
+  public class Show implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "show";
+    }
+
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( LuaState luaState )
+    {
+      final String functionSignature = "chartboost.show(adType [, namedLocation, options])";
+
+      if (! isSDKInitialized(functionSignature)) {
+        return 0;
+      }
+
+      // get number of arguments
+      int nargs = luaState.getTop();
+      if ((nargs < 1) || (nargs > 3)) {
+        PluginLog.error(functionSignature, "Expected 1 to 3 arguments, got %s", nargs);
+        return 0;
+      }
+
+      String adType;
+      String namedLocation = null;
+      String bannerPosition = BANNER_POSITION_BOTTOM;
+      int refreshInterval = BANNER_DEFAULT_REFRESH_INTERVAL;
+
+      // Get the ad type
+      if (luaState.type(1) == LuaType.STRING) {
+        adType = luaState.toString(1);
+      }
+      else {
+        PluginLog.error(functionSignature, "adType expected (string), got %s", luaState.typeName(1));
+        return 0;
+      }
+
+      // Get the named location
+      if (! luaState.isNoneOrNil(2)) {
+        if (luaState.type(2) == LuaType.STRING) {
+          namedLocation = luaState.toString(2);
+        }
+        else {
+          PluginLog.error(functionSignature, "namedLocation expected (string), got %s", luaState.typeName(2));
+          return 0;
+        }
+      }
+
+      // Get the options table
+      if (! luaState.isNoneOrNil(3)) {
+        if (luaState.type(3) == LuaType.TABLE) {
+          for (luaState.pushNil(); luaState.next(3); luaState.pop(1)) {
+            String key = luaState.toString(-2);
+
+            if (key.equals("position")) {
+              if (luaState.type(-1) == LuaType.STRING) {
+                bannerPosition = luaState.toString(-1);
               }
-            }else {
-              Chartboost.clearDataUseConsent(applicationContext, GDPR.GDPR_STANDARD);
+              else {
+                PluginLog.error(functionSignature, "options.position expected (string). Got %s", luaState.typeName(-1));
+                return 0;
+              }
+            }
+            else if (key.equals("refreshInterval")) {
+              if (luaState.type(-1) == LuaType.NUMBER) {
+                refreshInterval = (int) luaState.toNumber(-1);
+              }
+              else {
+                PluginLog.error(functionSignature, "options.refreshInterval expected (number). Got %s", luaState.typeName(-1));
+                return 0;
+              }
+            }
+            else {
+              PluginLog.error(functionSignature, "Invalid option '%s'", key);
+              return 0;
             }
+          }
+        }
+        else {
+          PluginLog.error(functionSignature, "options table expected. Got %s", luaState.typeName(3));
+          return 0;
+        }
+      }
 
-            // initialize SDK
-            Chartboost.startWithAppId(CoronaEnvironment.getApplicationContext(), fAppId, fAppSignature, startError -> {
-              if (startError == null) {
-                didInitialize("");
-              } else {
-                didInitialize(startError.getCode().name());
+      if (! validAdTypes.contains(adType)){
+        PluginLog.error(functionSignature, "invalid adType '%s'", adType);
+        return 0;
+      }
+
+      if (! validBannerPositions.contains(bannerPosition)) {
+        PluginLog.error(functionSignature, "invalid banner position '%s'", bannerPosition);
+        return 0;
+      }
+
+      if ((refreshInterval > 0) && (refreshInterval < BANNER_MIN_REFRESH_INTERVAL)) {
+        PluginLog.warn(functionSignature, "options.refreshInterval raised to the minimum of %s seconds", BANNER_MIN_REFRESH_INTERVAL);
+        refreshInterval = BANNER_MIN_REFRESH_INTERVAL;
+      }
+
+      String location = (namedLocation != null) ? namedLocation : "default";
+
+      // an expired ad would likely fail at show time, drop it and load a fresh one instead
+      long maxAge = maxAdAgeMs;
+      if ((maxAge > 0) && ! adType.equals(TYPE_BANNER)) {
+        final AdSlot slot = coronaAdsStore.get(storeKeyOf(adType, location));
+        if ((slot != null) && (slot.removeCachedBefore(SystemClock.elapsedRealtime() - maxAge) > 0)) {
+          pluginStats.increment(PluginStats.STALE_SHOWS_AVOIDED);
+          uiHandler.post(MainThreadProfiler.wrap("plugin.replaceExpiredAd", new Runnable() {
+            @Override
+            public void run() {
+              CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+              if (coronaActivity != null) {
+                cacheAd("", coronaActivity, slot.adType, slot.location, null);
+              }
+            }
+          }));
+        }
+      }
+
+      // pick the first cached ad along the fallback chain of the location
+      Ad ad = findCachedAd(adType, location);
+
+      // can't show unless ad is loaded
+      if (ad == null) {
+        PluginLog.error(functionSignature, "adType '%s' not loaded", adType);
+        return 0;
+      }
+
+      // reject shows that break the pacing rules of the serving location before touching the SDK
+      // (the show is counted once the SDK reports it on screen)
+      PacingEngine pacing = pacingEngine;
+      if (pacing != null) {
+        String reason = pacing.check(adType, ad.getLocation());
+        if (reason != null) {
+          dispatchCappedEvent(adType, location, reason);
+          return 0;
+        }
+      }
+
+      // remember the requested location so the 'displayed' event can report it
+      if (! location.equals(ad.getLocation())) {
+        fallbackShows.put(ad, location);
+      }
+
+      // a shown ad leaves its slot, deeper slots are topped up right away
+      boolean refill = false;
+      if (! adType.equals(TYPE_BANNER)) {
+        AdSlot slot = slotOf(adType, ad.getLocation());
+        slot.remove(ad);
+        refill = (slot.getDepth() > 1);
+      }
+
+      // declare final variables for inner loop
+      final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+      final String fAdType = adType;
+      final String fNamedLocation = namedLocation;
+      final String fLocation = location;
+      final Ad fAd = ad;
+      final boolean fRefill = refill;
+
+      final int fGravity = (bannerPosition.equals(BANNER_POSITION_TOP) ? Gravity.TOP : Gravity.BOTTOM) | Gravity.CENTER_HORIZONTAL;
+      final int fRefreshInterval = Math.max(refreshInterval, 0);
+
+      // Run the activity on the uiThread
+      if (coronaActivity != null) {
+        if (adType.equals(TYPE_BANNER)) {
+          queuedBannerShows.incrementAndGet();
+        }
+
+        // Create a new runnable object to invoke our activity
+        Runnable runnableActivity = new Runnable() {
+          public void run() {
+            if (fAdType.equals(TYPE_REWARDED_VIDEO) || fAdType.equals(TYPE_INTERSTITIAL)) {
+              fAd.show();
+
+              if (fRefill) {
+                cacheAd(functionSignature, coronaActivity, fAdType, fAd.getLocation(), null);
               }
-            });
+            }
+            else if (fAdType.equals(TYPE_BANNER)) {
+              queuedBannerShows.decrementAndGet();
+              Banner banner = (Banner) fAd;
+
+              // only one banner is displayed at a time
+              Banner previous = activeBanner;
+              if ((previous != null) && (previous != banner)) {
+                removeBannerFromParent(previous);
+              }
+
+              // attach the re-usable view to the overlay (or move it to the new position)
+              removeBannerFromParent(banner);
+              FrameLayout.LayoutParams layoutParams = new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.WRAP_CONTENT, FrameLayout.LayoutParams.WRAP_CONTENT, fGravity
+              );
+              coronaActivity.getOverlayView().addView(banner, layoutParams);
+              banner.setVisibility(View.VISIBLE);
+              banner.show();
+
+              // only a banner that made it into the view hierarchy counts as visible
+              setAdVisible(TYPE_BANNER, true);
+
+              // banner refreshes are shown again by the SDK, only the show() call counts
+              PacingEngine pacing = pacingEngine;
+              if (pacing != null) {
+                pacing.recordShow(TYPE_BANNER, banner.getLocation());
+              }
+
+              activeBanner = banner;
+              bannerRefreshInterval = fRefreshInterval;
+              scheduleBannerRefresh();
+            }
+            else {
+              PluginLog.error(functionSignature, "Invalid ad type '%s'", fAdType);
+            }
           }
         };
 
-        coronaActivity.runOnUiThread( runnableActivity );
+        coronaActivity.runOnUiThread(MainThreadProfiler.wrap("chartboost.show", runnableActivity));
       }
 
       return 0;
     }
   }
 
-  // [Lua] chartboost.load(adType [, namedLocation])
-  public class Load implements NamedJavaFunction
+  // [Lua] chartboost.hide()
+  public class Hide implements NamedJavaFunction
   {
     /**
      * Gets the name of the Lua function as it would appear in the Lua script.
@@ -497,7 +2164,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      */
     @Override
     public String getName() {
-      return "load";
+      return "hide";
     }
 
     /**
@@ -509,52 +2176,39 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      * @return Returns the number of values to be returned by the Lua function.
      */
     @Override
-    public int invoke( LuaState luaState )
-    {
-      functionSignature = "chartboost.load(adType [, namedLocation])";
+    public int invoke( LuaState luaState )  {
+      final String functionSignature = "chartboost.hide([adType])";
 
-      if (! isSDKInitialized()) {
+      if (! isSDKInitialized(functionSignature)) {
         return 0;
       }
 
       // get number of arguments
       int nargs = luaState.getTop();
-      if ((nargs < 1) || (nargs > 2)) {
-        logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got " + nargs);
-        return 0;
-      }
-
-      String adType;
-      String namedLocation = null;
-
-      // Get the ad type
-      if (luaState.type(1) == LuaType.STRING) {
-        adType = luaState.toString(1);
-      }
-      else {
-        logMsg(ERROR_MSG, "adType expected (string), got " + luaState.typeName(1));
+      if (nargs > 1) {
+        PluginLog.error(functionSignature, "Expected 0 or 1 argument, got %s", nargs);
         return 0;
       }
 
-      // Get the named location
-      if (! luaState.isNoneOrNil(2)) {
-        if (luaState.type(2) == LuaType.STRING) {
-          namedLocation = luaState.toString(2);
+      // only banners can be hidden programmatically
+      if (! luaState.isNoneOrNil(1)) {
+        if (luaState.type(1) != LuaType.STRING) {
+          PluginLog.error(functionSignature, "adType expected (string), got %s", luaState.typeName(1));
+          return 0;
         }
-        else {
-          logMsg(ERROR_MSG, "namedLocation expected (string), got " + luaState.typeName(2));
+        String adType = luaState.toString(1);
+        if (! adType.equals(TYPE_BANNER)) {
+          PluginLog.error(functionSignature, "invalid adType '%s'. Only banners can be hidden", adType);
           return 0;
         }
       }
 
-      if (! validAdTypes.contains(adType)) {
-        logMsg(ERROR_MSG, "invalid adType '"+ adType + "'");
+      // nothing to hide, no need to wake up the UI thread
+      if (((visibleAds.get() & TYPE_BIT_BANNER) == 0) && (queuedBannerShows.get() == 0)) {
         return 0;
       }
+      setAdVisible(TYPE_BANNER, false);
 
-      // declare final variables for inner loop
-      final String fAdType = adType;
-      final String fNamedLocation = namedLocation;
       final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
 
       // Run the activity on the uiThread
@@ -562,33 +2216,30 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
         // Create a new runnable object to invoke our activity
         Runnable runnableActivity = new Runnable() {
           public void run() {
-            String location = (fNamedLocation != null) ? fNamedLocation : "default";
+            Banner banner = activeBanner;
+            activeBanner = null;
+            uiHandler.removeCallbacks(bannerRefreshRunnable);
 
-            if (fAdType.equals(TYPE_REWARDED_VIDEO)) {
-              Rewarded chartboostRewarded = new Rewarded(location, coronaChartboostDelegate, null);
-              chartboostRewarded.cache();
-              coronaAdsStore.put(("REWARED/"+location), chartboostRewarded);
-            }
-            else if (fAdType.equals(TYPE_INTERSTITIAL)) {
-              Interstitial chartboostInterstitial = new Interstitial(location, coronaChartboostDelegate, null);
-              chartboostInterstitial.cache();
-              coronaAdsStore.put(("INTERSTITIAL/"+location), chartboostInterstitial);
-            }
-            else {
-              logMsg(ERROR_MSG, "Invalid ad type '" + fAdType + "'");
+            // a show queued before this hide has set the bit again in the meantime
+            setAdVisible(TYPE_BANNER, false);
+
+            // keep the view for re-use on the next show
+            if (banner != null) {
+              banner.setVisibility(View.GONE);
+              removeBannerFromParent(banner);
             }
           }
         };
 
-        coronaActivity.runOnUiThread(runnableActivity);
+        coronaActivity.runOnUiThread(MainThreadProfiler.wrap("chartboost.hide", runnableActivity));
       }
 
       return 0;
     }
   }
 
-  // [Lua] chartboost.isLoaded(adType [, namedLocation])
-  public class IsLoaded implements NamedJavaFunction
+  // [Lua] chartboost.onBackPressed()
+  public class OnBackPressed implements NamedJavaFunction
   {
     /**
      * Gets the name of the Lua function as it would appear in the Lua script.
@@ -596,7 +2247,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      */
     @Override
     public String getName() {
-      return "isLoaded";
+      return "onBackPressed";
     }
 
     /**
@@ -608,78 +2259,95 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      * @return Returns the number of values to be returned by the Lua function.
      */
     @Override
-    public int invoke( LuaState luaState )
-    {
-      functionSignature = "chartboost.isLoaded(adType [, namedLocation])";
+    public int invoke( LuaState luaState ) {
+      final String functionSignature = "chartboost.onBackPressed()";
 
-      if (! isSDKInitialized()) {
-        return 0;
-      }
+      PluginLog.warn(functionSignature, "This function is not longer supported");
 
-      // get number of arguments
-      int nargs = luaState.getTop();
-      if ((nargs < 1) || (nargs > 2)) {
-        logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got " + nargs);
-        return 0;
-      }
+      return 0;
+    }
+  }
 
-      String adType;
-      String namedLocation = null;
+  // [Lua] chartboost.getLogs()
+  public class GetLogs implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "getLogs";
+    }
 
-      // Get the ad type
-      if (luaState.type(1) == LuaType.STRING) {
-        adType = luaState.toString(1);
-      }
-      else {
-        logMsg(ERROR_MSG, "adType expected (string), got " + luaState.typeName(1));
-        return 0;
-      }
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( LuaState luaState ) {
+      List<String> entries = PluginLog.getEntries();
 
-      // Get the named location
-      if (! luaState.isNoneOrNil(2)) {
-        if (luaState.type(2) == LuaType.STRING) {
-          namedLocation = luaState.toString(2);
-        }
-        else {
-          logMsg(ERROR_MSG, "namedLocation expected (string), got " + luaState.typeName(2));
-          return 0;
-        }
+      // return the buffered log entries as an array, oldest first
+      luaState.newTable(entries.size(), 0);
+      for (int i = 0; i < entries.size(); i++) {
+        luaState.pushString(entries.get(i));
+        luaState.rawSet(-2, i + 1);
       }
 
-      if (! validAdTypes.contains(adType)){
-        logMsg(ERROR_MSG, "invalid adType '"+ adType + "'");
-        return 0;
-      }
+      return 1;
+    }
+  }
 
-      boolean isLoaded = false;
-      String location = (namedLocation != null) ? namedLocation : "default";
+  // [Lua] chartboost.getStats()
+  public class GetStats implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "getStats";
+    }
 
-      if (adType.equals(TYPE_REWARDED_VIDEO)) {
-        if(coronaAdsStore.get(("REWARED/"+location)) == null) {
-          luaState.pushBoolean(isLoaded);
-          return 1;
-        }
-        isLoaded = ((Ad) coronaAdsStore.get(("REWARED/"+location))).isCached();
-      }
-      else if (adType.equals(TYPE_INTERSTITIAL)) {
-        if(coronaAdsStore.get(("INTERSTITIAL/"+location)) == null) {
-          luaState.pushBoolean(isLoaded);
-          return 1;
-        }
-        isLoaded = ((Ad) coronaAdsStore.get(("INTERSTITIAL/"+location))).isCached();
-      }
-      else {
-        logMsg(ERROR_MSG, "Invalid ad type '" + adType + "'");
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( LuaState luaState ) {
+      int heldAds = 0;
+      for (AdSlot slot : coronaAdsStore.values()) {
+        heldAds += slot.size();
       }
+      pluginStats.set(PluginStats.AD_SLOTS, coronaAdsStore.size());
+      pluginStats.set(PluginStats.HELD_ADS, heldAds);
+      pluginStats.set(PluginStats.PENDING_SHOWS, fallbackShows.size());
 
-      luaState.pushBoolean(isLoaded);
+      Map<String, Long> stats = pluginStats.snapshot();
+
+      // return the counters as a table keyed by name
+      luaState.newTable(0, stats.size());
+      for (Map.Entry<String, Long> entry : stats.entrySet()) {
+        luaState.pushNumber(entry.getValue());
+        luaState.setField(-2, entry.getKey());
+      }
 
       return 1;
     }
   }
 
-  // [Lua] chartboost.isAdVisible()
-  public class IsAdVisible implements NamedJavaFunction
+  // [Lua] chartboost.getProfile()
+  public class GetProfile implements NamedJavaFunction
   {
     /**
      * Gets the name of the Lua function as it would appear in the Lua script.
@@ -687,7 +2355,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      */
     @Override
     public String getName() {
-      return "isAdVisible";
+      return "getProfile";
     }
 
     /**
@@ -699,16 +2367,40 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      * @return Returns the number of values to be returned by the Lua function.
      */
     @Override
-    public int invoke( LuaState luaState )  {
-      functionSignature = "chartboost.isAdVisible()";
-      luaState.pushBoolean(false);
+    public int invoke( LuaState luaState ) {
+      Map<String, MainThreadProfiler.Operation> operations = MainThreadProfiler.snapshot();
+
+      // { [operation] = { count, totalMs, maxMs, overBudget, histogram = { <1ms, <2ms, ... >=33ms } }, ... }
+      luaState.newTable(0, operations.size());
+      for (Map.Entry<String, MainThreadProfiler.Operation> entry : operations.entrySet()) {
+        MainThreadProfiler.Operation operation = entry.getValue();
+
+        luaState.newTable(0, 5);
+        luaState.pushNumber(operation.count);
+        luaState.setField(-2, "count");
+        luaState.pushNumber(operation.totalNanos / 1e6);
+        luaState.setField(-2, "totalMs");
+        luaState.pushNumber(operation.maxNanos / 1e6);
+        luaState.setField(-2, "maxMs");
+        luaState.pushNumber(operation.overBudget);
+        luaState.setField(-2, "overBudget");
+
+        luaState.newTable(operation.histogram.length, 0);
+        for (int i = 0; i < operation.histogram.length; i++) {
+          luaState.pushNumber(operation.histogram[i]);
+          luaState.rawSet(-2, i + 1);
+        }
+        luaState.setField(-2, "histogram");
 
-      return 0;
+        luaState.setField(-2, entry.getKey());
+      }
+
+      return 1;
     }
   }
 
-  // [Lua] chartboost.show(adType [, namedLocation])
-  public class Show implements NamedJavaFunction
+  // [Lua] chartboost.setEventFilter([filter])
+  public class SetEventFilter implements NamedJavaFunction
   {
     /**
      * Gets the name of the Lua function as it would appear in the Lua script.
@@ -716,7 +2408,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      */
     @Override
     public String getName() {
-      return "show";
+      return "setEventFilter";
     }
 
     /**
@@ -728,106 +2420,203 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      * @return Returns the number of values to be returned by the Lua function.
      */
     @Override
-    public int invoke( LuaState luaState )
-    {
-      functionSignature = "chartboost.show(adType [, namedLocation])";
-
-      if (! isSDKInitialized()) {
-        return 0;
-      }
+    public int invoke( LuaState luaState ) {
+      final String functionSignature = "chartboost.setEventFilter([filter])";
 
       // get number of arguments
       int nargs = luaState.getTop();
-      if ((nargs < 1) || (nargs > 2)) {
-        logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got " + nargs);
+      if (nargs > 1) {
+        PluginLog.error(functionSignature, "Expected 0 or 1 argument, got %s", nargs);
         return 0;
       }
 
-      String adType;
-      String namedLocation = null;
-
-      // Get the ad type
-      if (luaState.type(1) == LuaType.STRING) {
-        adType = luaState.toString(1);
+      // no filter, every event is dispatched
+      if (luaState.isNoneOrNil(1)) {
+        eventFilter = null;
+        return 0;
       }
-      else {
-        logMsg(ERROR_MSG, "adType expected (string), got " + luaState.typeName(1));
+
+      if (luaState.type(1) != LuaType.TABLE) {
+        PluginLog.error(functionSignature, "filter table expected. Got %s", luaState.typeName(1));
         return 0;
       }
 
-      // Get the named location
-      if (! luaState.isNoneOrNil(2)) {
-        if (luaState.type(2) == LuaType.STRING) {
-          namedLocation = luaState.toString(2);
+      int phaseMask = EventFilter.allOf(validEventPhases);
+      int typeMask = EventFilter.allOf(validAdTypes);
+      Set<String> locations = null;
+
+      for (luaState.pushNil(); luaState.next(1); luaState.pop(1)) {
+        String key = luaState.toString(-2);
+
+        if (luaState.type(-1) != LuaType.TABLE) {
+          PluginLog.error(functionSignature, "filter.%s expected (table). Got %s", key, luaState.typeName(-1));
+          return 0;
+        }
+
+        List<String> values = getStringArray(functionSignature, luaState, luaState.getTop(), "filter." + key);
+        if (values == null) {
+          return 0;
+        }
+
+        if (key.equals("phases")) {
+          phaseMask = 0;
+          for (String phase : values) {
+            if (! validEventPhases.contains(phase)) {
+              PluginLog.error(functionSignature, "filter.phases: invalid phase '%s'", phase);
+              return 0;
+            }
+            phaseMask |= EventFilter.bitOf(validEventPhases, phase);
+          }
+        }
+        else if (key.equals("types")) {
+          typeMask = 0;
+          for (String adType : values) {
+            if (! validAdTypes.contains(adType)) {
+              PluginLog.error(functionSignature, "filter.types: invalid adType '%s'", adType);
+              return 0;
+            }
+            typeMask |= EventFilter.bitOf(validAdTypes, adType);
+          }
+        }
+        else if (key.equals("locations")) {
+          locations = new HashSet<>(values);
         }
         else {
-          logMsg(ERROR_MSG, "namedLocation expected (string), got " + luaState.typeName(2));
+          PluginLog.error(functionSignature, "Invalid option '%s'", key);
           return 0;
         }
       }
 
-      if (! validAdTypes.contains(adType)){
-        logMsg(ERROR_MSG, "invalid adType '"+ adType + "'");
+      // the 'init' event is always dispatched
+      phaseMask |= PHASE_BIT_INIT;
+
+      eventFilter = new EventFilter(phaseMask, typeMask, locations);
+
+      return 0;
+    }
+  }
+
+  // [Lua] chartboost.setConsent(consent)
+  public class SetConsent implements NamedJavaFunction
+  {
+    /**
+     * Gets the name of the Lua function as it would appear in the Lua script.
+     * @return Returns the name of the custom Lua function.
+     */
+    @Override
+    public String getName() {
+      return "setConsent";
+    }
+
+    /**
+     * This method is called when the Lua function is called.
+     * <p>
+     * Warning! This method is not called on the main UI thread.
+     * @param luaState Reference to the Lua state.
+     *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+     * @return Returns the number of values to be returned by the Lua function.
+     */
+    @Override
+    public int invoke( LuaState luaState ) {
+      final String functionSignature = "chartboost.setConsent(consent)";
+
+      // get number of arguments
+      int nargs = luaState.getTop();
+      if (nargs != 1) {
+        PluginLog.error(functionSignature, "Expected 1 argument, got %s", nargs);
         return 0;
       }
 
-      boolean isLoaded = false;
-      String location = (namedLocation != null) ? namedLocation : "default";
+      if (luaState.type(1) != LuaType.TABLE) {
+        PluginLog.error(functionSignature, "consent table expected. Got %s", luaState.typeName(1));
+        return 0;
+      }
+
+      // a null value clears the signal
+      Map<ConsentState.Signal, Boolean> requested = new HashMap<>();
+
+      for (luaState.pushNil(); luaState.next(1); luaState.pop(1)) {
+        String key = luaState.toString(-2);
+
+        if (key.equals("clear")) {
+          if (luaState.type(-1) != LuaType.TABLE) {
+            PluginLog.error(functionSignature, "consent.clear expected (table). Got %s", luaState.typeName(-1));
+            return 0;
+          }
+
+          int clearIndex = luaState.getTop();
+          int count = luaState.length(clearIndex);
+          for (int i = 1; i <= count; i++) {
+            luaState.rawGet(clearIndex, i);
+            String name = (luaState.type(-1) == LuaType.STRING) ? luaState.toString(-1) : null;
+            luaState.pop(1);
 
-      if (adType.equals(TYPE_REWARDED_VIDEO)) {
-        if(coronaAdsStore.get(("REWARED/"+location)) != null) {
-          isLoaded = ((Ad) coronaAdsStore.get(("REWARED/"+location))).isCached();
+            ConsentState.Signal signal = (name != null) ? signalOf(name) : null;
+            if (signal == null) {
+              PluginLog.error(functionSignature, "consent.clear[%d] expected ('gdpr', 'ccpa' or 'coppa')", i);
+              return 0;
+            }
+            if (requested.get(signal) != null) {
+              PluginLog.error(functionSignature, "consent.%s cannot be set and cleared at once", name);
+              return 0;
+            }
+            requested.put(signal, null);
+          }
+          continue;
         }
-      }
-      else if (adType.equals(TYPE_INTERSTITIAL)) {
-        if(coronaAdsStore.get(("INTERSTITIAL/"+location)) != null) {
-          isLoaded = ((Ad) coronaAdsStore.get(("INTERSTITIAL/"+location))).isCached();
+
+        ConsentState.Signal signal = signalOf(key);
+        if (signal == null) {
+          PluginLog.error(functionSignature, "Invalid option '%s'", key);
+          return 0;
         }
-      }
-      else {
-        logMsg(ERROR_MSG, "Invalid ad type '" + adType + "'");
+
+        if (luaState.type(-1) != LuaType.BOOLEAN) {
+          PluginLog.error(functionSignature, "consent.%s expected (boolean). Got %s", key, luaState.typeName(-1));
+          return 0;
+        }
+        if (requested.containsKey(signal) && (requested.get(signal) == null)) {
+          PluginLog.error(functionSignature, "consent.%s cannot be set and cleared at once", key);
+          return 0;
+        }
+        requested.put(signal, luaState.toBoolean(-1));
       }
 
-      // can't show unless ad is loaded
-      if (! isLoaded) {
-        logMsg(ERROR_MSG, "adType '" + adType + "' not loaded");
+      // only the signals that changed are sent to the SDK, all of them in one UI thread hop
+      final Map<ConsentState.Signal, Boolean> changes = getConsentState().update(requested);
+      if (changes.isEmpty()) {
         return 0;
       }
 
-      // declare final variables for inner loop
-      final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
-      final String fAdType = adType;
-      final String fNamedLocation = namedLocation;
-      final String fLocation = location;
+      final Context applicationContext = CoronaEnvironment.getApplicationContext();
+      uiHandler.post(MainThreadProfiler.wrap("chartboost.setConsent", new Runnable() {
+        @Override
+        public void run() {
+          ConsentState.apply(applicationContext, changes);
+        }
+      }));
 
-      // Run the activity on the uiThread
-      if (coronaActivity != null) {
-        // Create a new runnable object to invoke our activity
-        Runnable runnableActivity = new Runnable() {
-          public void run() {
-            if (fAdType.equals(TYPE_REWARDED_VIDEO)) {
-              Rewarded ad = (Rewarded) coronaAdsStore.get(("REWARED/"+location));
-              ad.show();
-            }
-            else if (fAdType.equals(TYPE_INTERSTITIAL)) {
-              Interstitial ad = (Interstitial) coronaAdsStore.get(("INTERSTITIAL/"+location));
-              ad.show();
-            }
-            else {
-              logMsg(ERROR_MSG, "Invalid ad type '" + fAdType + "'");
-            }
-          }
-        };
+      return 0;
+    }
 
-        coronaActivity.runOnUiThread(runnableActivity);
+    // signal of a consent key, null if unknown
+    private ConsentState.Signal signalOf(String key)
+    {
+      if (key.equals("gdpr")) {
+        return ConsentState.Signal.GDPR;
       }
-
-      return 0;
+      else if (key.equals("ccpa")) {
+        return ConsentState.Signal.CCPA;
+      }
+      else if (key.equals("coppa")) {
+        return ConsentState.Signal.COPPA;
+      }
+      return null;
     }
   }
 
-  // [Lua] chartboost.hide()
-  public class Hide implements NamedJavaFunction
+  // [Lua] chartboost.stopTrace()
+  public class StopTrace implements NamedJavaFunction
   {
     /**
      * Gets the name of the Lua function as it would appear in the Lua script.
@@ -835,7 +2624,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      */
     @Override
     public String getName() {
-      return "hide";
+      return "stopTrace";
     }
 
     /**
@@ -847,39 +2636,61 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      * @return Returns the number of values to be returned by the Lua function.
      */
     @Override
-    public int invoke( LuaState luaState )  {
-      functionSignature = "chartboost.hide()";
-
-      if (! isSDKInitialized()) {
-        return 0;
+    public int invoke( LuaState luaState ) {
+      // the file is complete once the pending records are written, shortly after this returns
+      String path = TraceRecorder.stop();
+      if (path != null) {
+        luaState.pushString(path);
+      }
+      else {
+        luaState.pushNil();
       }
 
-      // get number of arguments
-      int nargs = luaState.getTop();
-      if (nargs != 0) {
-        logMsg(ERROR_MSG, "Expected no arguments, got " + nargs);
-        return 0;
+      return 1;
+    }
+  }
+
+  // records the calls of a Lua function in the trace
+  private static class TracedFunction implements NamedJavaFunction
+  {
+    private final NamedJavaFunction function;
+    private final boolean canStartTrace;
+
+    // 'canStartTrace': the function may start a trace, its own call is then the first record
+    TracedFunction(NamedJavaFunction function, boolean canStartTrace)
+    {
+      this.function = function;
+      this.canStartTrace = canStartTrace;
+    }
+
+    @Override
+    public String getName() {
+      return function.getName();
+    }
+
+    @Override
+    public int invoke( LuaState luaState ) {
+      // no trace: a plain call, nothing is captured
+      if (! canStartTrace && ! TraceRecorder.isRecording()) {
+        return function.invoke(luaState);
       }
 
-      final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+      int nargs = luaState.getTop();
+      long startedAt = SystemClock.elapsedRealtimeNanos();
 
-      // Run the activity on the uiThread
-      if (coronaActivity != null) {
-        // Create a new runnable object to invoke our activity
-        Runnable runnableActivity = new Runnable() {
-          public void run() {
-          }
-        };
+      int results = function.invoke(luaState);
 
-        coronaActivity.runOnUiThread(runnableActivity);
+      // arguments are recorded after the call so init() is recorded in the trace it starts
+      if (TraceRecorder.isRecording()) {
+        TraceRecorder.recordCall(function.getName(), startedAt, luaState, nargs);
       }
 
-      return 0;
+      return results;
     }
   }
 
-  // [Lua] chartboost.onBackPressed()
-  public class OnBackPressed implements NamedJavaFunction
+  // [Lua] chartboost.ackReward(rewardId)
+  public class AckReward implements NamedJavaFunction
   {
     /**
      * Gets the name of the Lua function as it would appear in the Lua script.
@@ -887,7 +2698,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      */
     @Override
     public String getName() {
-      return "onBackPressed";
+      return "ackReward";
     }
 
     /**
@@ -900,9 +2711,27 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
      */
     @Override
     public int invoke( LuaState luaState ) {
-      functionSignature = "chartboost.onBackPressed()";
+      final String functionSignature = "chartboost.ackReward(rewardId)";
+
+      // get number of arguments
+      int nargs = luaState.getTop();
+      if (nargs != 1) {
+        PluginLog.error(functionSignature, "Expected 1 argument, got %s", nargs);
+        return 0;
+      }
+
+      if (luaState.type(1) != LuaType.STRING) {
+        PluginLog.error(functionSignature, "rewardId expected (string), got %s", luaState.typeName(1));
+        return 0;
+      }
 
-      logMsg(WARNING_MSG, "This function is not longer supported");
+      RewardLedger ledger = rewardLedger;
+      if (ledger == null) {
+        PluginLog.warn(functionSignature, "The reward ledger is not enabled (see the rewardLedger init option)");
+        return 0;
+      }
+
+      ledger.acknowledge(luaState.toString(1));
 
       return 0;
     }
@@ -913,142 +2742,516 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
   // -------------------------------------------------------------------
   private void didInitialize(String error)
   {
-    // flag the SDK as ready for API calls
-    chartboostObjects.put(SDK_READY_KEY, true);
-    softBoot = true;
+    watchdog.disarm(INIT_REQUEST);
+
+    // flag the SDK as ready for API calls (or failed, so init can be retried)
+    boolean started = error.isEmpty();
+    SdkLifecycle.State result = started ? SdkLifecycle.State.READY : SdkLifecycle.State.FAILED;
+    if (! sdkLifecycle.transition(SdkLifecycle.State.INITIALIZING, result)) {
+      // only a late successful start may still complete a failed init
+      if (! started || ! sdkLifecycle.transition(SdkLifecycle.State.FAILED, SdkLifecycle.State.READY)) {
+        return;
+      }
+    }
 
     // send Corona Lua event
     Map<String, Object> coronaEvent = new HashMap<>();
 
-    if(error == ""){
-      coronaEvent.put("isError", false);
+    if(started){
+      coronaEvent.put(CoronaLuaEvent.ISERROR_KEY, false);
     }else{
+      coronaEvent.put(CoronaLuaEvent.ISERROR_KEY, true);
       coronaEvent.put(DATA_ERRORMSG_KEY, error);
     }
     coronaEvent.put(EVENT_PHASE_KEY, PHASE_INIT);
     dispatchLuaEvent(coronaEvent);
+
+    // the listener has its 'init' event, replay the rewards of the previous session after it
+    RewardLedger ledger = rewardLedger;
+    if (started && (ledger != null)) {
+      ledger.replay(new RewardLedger.RewardCallback() {
+        @Override
+        public void onReward(RewardLedger.Reward reward) {
+          dispatchRewardEvent(reward.location, reward.amount, reward.id, true, null);
+        }
+      });
+    }
+  }
+  // report a cache request the SDK did not answer in time and free its place in the slot (UI thread)
+  private void didTimeOutCaching(Ad ad)
+  {
+    String adType = adTypeOf(ad);
+    String location = ad.getLocation();
+
+    // the SDK result may have been captured meanwhile (the worker reports it), the slot lets only one of them complete
+    // the request; the banner view is kept, the next refresh or load re-uses it
+    AdSlot slot = coronaAdsStore.get(storeKeyOf(adType, location));
+    if ((slot == null) || !slot.onTimedOut(ad, ad instanceof Banner)) {
+      return;
+    }
+    pluginStats.increment(PluginStats.TIMEOUTS);
+
+    if (ad == activeBanner) {
+      scheduleBannerRefresh();
+    }
+    didWarm(storeKeyOf(adType, location));
+
+    PluginLog.warn("", "No response from the SDK while caching '%s' at location '%s'", adType, location);
+
+    if (! isEventWanted(PHASE_BIT_FAILED, typeBitOf(adType), location)) {
+      return;
+    }
+
+    JSONObject data = new JSONObject();
+    try {
+      data.put(DATA_LOCATION_KEY, location);
+      data.put(DATA_REASON_KEY, REASON_TIMEOUT);
+      data.put(DATA_ERRORMSG_KEY, ERROR_TIMEOUT);
+    }
+    catch (Exception e) {
+      System.err.println();
+    }
+
+    Map<String, Object> coronaEvent = new HashMap<>();
+    coronaEvent.put(EVENT_PHASE_KEY, PHASE_FAILED);
+    coronaEvent.put(EVENT_TYPE_KEY, adType);
+    coronaEvent.put(EVENT_DATA_KEY, data.toString());
+    dispatchLuaEvent(coronaEvent, "cache/" + adType + "/" + location);
+  }
+
+  // notify Lua that a show was rejected by the pacing rules
+  private void dispatchCappedEvent(String adType, String location, String reason)
+  {
+    if (! isEventWanted(PHASE_BIT_CAPPED, typeBitOf(adType), location)) {
+      return;
+    }
+
+    JSONObject data = new JSONObject();
+    try {
+      data.put(DATA_LOCATION_KEY, location);
+      data.put(DATA_REASON_KEY, reason);
+    }
+    catch (Exception e) {
+      System.err.println();
+    }
+
+    Map<String, Object> coronaEvent = new HashMap<>();
+    coronaEvent.put(EVENT_PHASE_KEY, PHASE_CAPPED);
+    coronaEvent.put(EVENT_TYPE_KEY, adType);
+    coronaEvent.put(EVENT_DATA_KEY, data.toString());
+    dispatchLuaEvent(coronaEvent);
+  }
+
+  // notify Lua of a reward, with its ledger id when the reward ledger is enabled
+  // 'callback' is the SDK callback the reward came with, null for a replayed reward
+  private void dispatchRewardEvent(
+    String location, int reward, String rewardId, boolean replayed, CallbackQueue.Callback callback
+  )
+  {
+    if (! isEventWanted(PHASE_BIT_REWARD, TYPE_BIT_REWARDED_VIDEO, location)) {
+      return;
+    }
+
+    // create data
+    JSONObject data = new JSONObject();
+    try {
+      data.put(DATA_LOCATION_KEY, location);
+      data.put(DATA_REWARD_KEY, reward);
+      if (rewardId != null) {
+        data.put(DATA_REWARD_ID_KEY, rewardId);
+        data.put(DATA_REPLAYED_KEY, replayed);
+      }
+    }
+    catch (Exception e) {
+      System.err.println();
+    }
+
+    Map<String, Object> coronaEvent = new HashMap<>();
+    coronaEvent.put(EVENT_PHASE_KEY, PHASE_REWARD);
+    coronaEvent.put(EVENT_TYPE_KEY, TYPE_REWARDED_VIDEO);
+    coronaEvent.put(EVENT_DATA_KEY, data.toString());
+    if (callback != null) {
+      stampEvent(coronaEvent, callback);
+    }
+    dispatchLuaEvent(coronaEvent);
   }
-  class CoronaChartboostDelegate implements RewardedCallback, InterstitialCallback
+
+  class CoronaChartboostDelegate implements RewardedCallback, InterstitialCallback, BannerCallback, CallbackQueue.Handler
   {
+    // SDK callbacks only capture their fields here, the plugin worker does the rest
+    private final CallbackQueue callbacks = new CallbackQueue(this);
+
+    void shutdown()
+    {
+      callbacks.shutdown();
+    }
 
     @Override public void onRewardEarned(@NotNull RewardEvent rewardEvent) {
-      // create data
-      JSONObject data = new JSONObject();
+      long startedAt = MainThreadProfiler.begin("delegate.onRewardEarned");
       try {
-        data.put(DATA_LOCATION_KEY, rewardEvent.getAd().getLocation());
-        data.put(DATA_REWARD_KEY, rewardEvent.getReward());
+        Ad ad = rewardEvent.getAd();
+
+        // rewards go to the ledger as they are captured, not through the worker: a runtime exiting right after
+        // drops the pending callbacks, and Lua may have filtered the event out (dispatchRewardEvent() applies
+        // the filter once the reward is on disk)
+        RewardLedger ledger = rewardLedger;
+        if (ledger != null) {
+          final CallbackQueue.Callback callback = new CallbackQueue.Callback(CallbackQueue.REWARD_EARNED, ad, null, rewardEvent.getReward());
+          ledger.append(ad.getLocation(), callback.reward, new RewardLedger.RewardCallback() {
+            @Override
+            public void onReward(RewardLedger.Reward reward) {
+              // once the runtime has exited the reward waits in the ledger, the next session replays it
+              if (coronaChartboostDelegate == CoronaChartboostDelegate.this) {
+                recordCallback(callback);
+                dispatchRewardEvent(reward.location, reward.amount, reward.id, false, callback);
+              }
+            }
+          });
+        }
+        else if (isEventWanted(PHASE_BIT_REWARD, TYPE_BIT_REWARDED_VIDEO, ad.getLocation())) {
+          callbacks.post(CallbackQueue.REWARD_EARNED, ad, null, rewardEvent.getReward());
+        }
       }
-      catch (Exception e) {
-        System.err.println();
+      finally {
+        MainThreadProfiler.end("delegate.onRewardEarned", startedAt);
       }
-
-      Map<String, Object> coronaEvent = new HashMap<>();
-      coronaEvent.put(EVENT_PHASE_KEY, PHASE_REWARD);
-      coronaEvent.put(EVENT_TYPE_KEY, TYPE_REWARDED_VIDEO);
-      coronaEvent.put(EVENT_DATA_KEY, data.toString());
-      dispatchLuaEvent(coronaEvent);
     }@Override public void onAdDismiss(@NotNull DismissEvent dismissEvent) {
-      // create data
-      JSONObject data = new JSONObject();
+      long startedAt = MainThreadProfiler.begin("delegate.onAdDismiss");
       try {
-        data.put(DATA_LOCATION_KEY, dismissEvent.getAd().getLocation());
-      }
-      catch (Exception e) {
-        System.err.println();
+        // visibility is updated right away, isAdVisible() must not lag behind the screen
+        if (! (dismissEvent.getAd() instanceof Banner)) {
+          setAdVisible(adTypeOf(dismissEvent.getAd()), false);
+        }
+
+        // keep-warm placements are re-cached on dismiss, even if Lua filtered the event out
+        Ad ad = dismissEvent.getAd();
+        PlacementManifest manifest = placementManifest;
+        boolean keepWarm = (manifest != null) && (manifest.getKeepWarm(adTypeOf(ad), ad.getLocation()) != null);
+        if (keepWarm || isEventWanted(PHASE_BIT_CLOSED, typeBitOf(ad), ad.getLocation())) {
+          callbacks.post(CallbackQueue.AD_DISMISSED, ad, null, 0);
+        }
       }
-      Map<String, Object> coronaEvent = new HashMap<>();
-      coronaEvent.put(EVENT_PHASE_KEY, PHASE_CLOSED);
-      if(dismissEvent.getAd() instanceof Interstitial){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_INTERSTITIAL);
-      }else if(dismissEvent.getAd() instanceof Rewarded){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_REWARDED_VIDEO);
+      finally {
+        MainThreadProfiler.end("delegate.onAdDismiss", startedAt);
       }
-      coronaEvent.put(EVENT_DATA_KEY, data.toString());
-      dispatchLuaEvent(coronaEvent);
     }@Override public void onAdLoaded(@NotNull CacheEvent cacheEvent,@Nullable CacheError cacheError) {
-      // create data
-      JSONObject data = new JSONObject();
+      long startedAt = MainThreadProfiler.begin("delegate.onAdLoaded");
       try {
-        data.put(DATA_LOCATION_KEY, cacheEvent.getAd().getLocation());
+        // stop the deadline; if it already passed, the slot completes the request once, with whichever of the
+        // timeout (UI thread) and this result (worker) gets to it first (see AdSlot.onLoaded / onTimedOut)
+        watchdog.disarm(cacheEvent.getAd());
+
+        callbacks.post(CallbackQueue.AD_LOADED, cacheEvent.getAd(), cacheError, 0);
       }
-      catch (Exception e) {
-        System.err.println();
+      finally {
+        MainThreadProfiler.end("delegate.onAdLoaded", startedAt);
       }
-      Map<String, Object> coronaEvent = new HashMap<>();
-      if(cacheError != null){
+    }@Override public void onAdRequestedToShow(@NotNull ShowEvent showEvent) {
+      long startedAt = MainThreadProfiler.begin("delegate.onAdRequestedToShow");
+      try {
+        // banner visibility follows show() / hide()
+        if (! (showEvent.getAd() instanceof Banner)) {
+          setAdVisible(adTypeOf(showEvent.getAd()), true);
+        }
+
+        Ad ad = showEvent.getAd();
+        if (isEventWanted(PHASE_BIT_DISPLAYED, typeBitOf(ad), ad.getLocation())) {
+          callbacks.post(CallbackQueue.AD_REQUESTED_TO_SHOW, ad, null, 0);
+        }
+        else {
+          fallbackShows.remove(ad);
+        }
+      }
+      finally {
+        MainThreadProfiler.end("delegate.onAdRequestedToShow", startedAt);
+      }
+    }@Override public void onAdShown(@NotNull ShowEvent showEvent,@Nullable ShowError showError) {
+      long startedAt = MainThreadProfiler.begin("delegate.onAdShown");
+      try {
+        // a full screen ad that failed to show never made it on screen
+        if ((showError != null) && !(showEvent.getAd() instanceof Banner)) {
+          setAdVisible(adTypeOf(showEvent.getAd()), false);
+        }
+
+        // shows are counted by the pacing rules, even if Lua filtered the event out
+        Ad ad = showEvent.getAd();
+        boolean counted = (pacingEngine != null) && (showError == null) && !(ad instanceof Banner);
+        boolean reported = (showError != null) || !(ad instanceof Banner);
+        int phaseBit = (showError != null) ? PHASE_BIT_FAILED : PHASE_BIT_CLOSED;
+        if (counted || (reported && isEventWanted(phaseBit, typeBitOf(ad), ad.getLocation()))) {
+          callbacks.post(CallbackQueue.AD_SHOWN, ad, showError, 0);
+        }
+        else {
+          fallbackShows.remove(ad);
+        }
+      }
+      finally {
+        MainThreadProfiler.end("delegate.onAdShown", startedAt);
+      }
+    }@Override public void onAdClicked(@NotNull ClickEvent clickEvent,@Nullable ClickError clickError) {
+      long startedAt = MainThreadProfiler.begin("delegate.onAdClicked");
+      try {
+        Ad ad = clickEvent.getAd();
+        if (isEventWanted(PHASE_BIT_CLICKED, typeBitOf(ad), ad.getLocation())) {
+          callbacks.post(CallbackQueue.AD_CLICKED, ad, null, 0);
+        }
+      }
+      finally {
+        MainThreadProfiler.end("delegate.onAdClicked", startedAt);
+      }
+    }@Override public void onImpressionRecorded(@NotNull ImpressionEvent impressionEvent) {
+
+    }
+
+    // -------------------------------------------------------------------
+    // captured callbacks (plugin worker thread)
+    // -------------------------------------------------------------------
+
+    @Override
+    public void handle(CallbackQueue.Callback callback)
+    {
+      recordCallback(callback);
+
+      switch (callback.kind) {
+        case CallbackQueue.REWARD_EARNED:
+          didEarnReward(callback);
+          break;
+        case CallbackQueue.AD_DISMISSED:
+          didDismissAd(callback);
+          break;
+        case CallbackQueue.AD_LOADED:
+          didLoadAd(callback);
+          break;
+        case CallbackQueue.AD_REQUESTED_TO_SHOW:
+          didRequestToShowAd(callback);
+          break;
+        case CallbackQueue.AD_SHOWN:
+          didShowAd(callback);
+          break;
+        case CallbackQueue.AD_CLICKED:
+          didClickAd(callback);
+          break;
+      }
+    }
+
+    // add a captured callback to the trace, if one is recording
+    private void recordCallback(CallbackQueue.Callback callback)
+    {
+      if (! TraceRecorder.isRecording()) {
+        return;
+      }
+
+      Object errorCode = null;
+      if (callback.error instanceof CacheError) {
+        errorCode = ((CacheError) callback.error).getCode();
+      }
+      else if (callback.error instanceof ShowError) {
+        errorCode = ((ShowError) callback.error).getCode();
+      }
+
+      TraceRecorder.recordCallback(
+        CallbackQueue.nameOf(callback.kind), adTypeOf(callback.ad), callback.ad.getLocation(), errorCode, callback.reward,
+        callback.capturedAt
+      );
+    }
+
+    // a reward without the ledger (with it, see onRewardEarned)
+    private void didEarnReward(CallbackQueue.Callback callback)
+    {
+      dispatchRewardEvent(callback.ad.getLocation(), callback.reward, null, false, callback);
+    }
+
+    private void didDismissAd(CallbackQueue.Callback callback)
+    {
+      final String adType = adTypeOf(callback.ad);
+      final String location = callback.ad.getLocation();
+
+      if (isEventWanted(PHASE_BIT_CLOSED, typeBitOf(callback.ad), location)) {
+        // create data
+        JSONObject data = new JSONObject();
         try {
-          data.put(DATA_ERRORMSG_KEY, cacheError.getException().getLocalizedMessage());
-          data.put(DATA_ERRORCODE_KEY, cacheError.getCode());
+          data.put(DATA_LOCATION_KEY, location);
         }
         catch (Exception e) {
           System.err.println();
         }
-        coronaEvent.put(EVENT_PHASE_KEY, PHASE_FAILED);
-      }else{
-        coronaEvent.put(EVENT_PHASE_KEY, PHASE_LOADED);
+        Map<String, Object> coronaEvent = new HashMap<>();
+        coronaEvent.put(EVENT_PHASE_KEY, PHASE_CLOSED);
+        coronaEvent.put(EVENT_TYPE_KEY, adType);
+        coronaEvent.put(EVENT_DATA_KEY, data.toString());
+        stampEvent(coronaEvent, callback);
+        dispatchLuaEvent(coronaEvent);
       }
 
-      if(cacheEvent.getAd() instanceof Interstitial){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_INTERSTITIAL);
-      }else if(cacheEvent.getAd() instanceof Rewarded){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_REWARDED_VIDEO);
+      // re-cache placements the manifest keeps warm
+      PlacementManifest manifest = placementManifest;
+      final PlacementManifest.Placement placement = (manifest != null) ? manifest.getKeepWarm(adType, location) : null;
+      if (placement != null) {
+        uiHandler.post(MainThreadProfiler.wrap("plugin.keepWarm", new Runnable() {
+          @Override
+          public void run() {
+            CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+            if (coronaActivity != null) {
+              cacheAd("", coronaActivity, adType, location, bannerSizeOf(placement.bannerSize));
+            }
+          }
+        }));
       }
-      coronaEvent.put(EVENT_DATA_KEY, data.toString());
-      dispatchLuaEvent(coronaEvent);
-    }@Override public void onAdRequestedToShow(@NotNull ShowEvent showEvent) {
+    }
+
+    private void didLoadAd(CallbackQueue.Callback callback)
+    {
+      final Ad ad = callback.ad;
+      CacheError cacheError = (CacheError) callback.error;
+      String adType = adTypeOf(ad);
+
+      // an ad that timed out has already been reported as failed (and left its slot unless it is a banner)
+      AdSlot slot = coronaAdsStore.get(storeKeyOf(adType, ad.getLocation()));
+      if ((slot == null) || !slot.onLoaded(ad, cacheError == null)) {
+        return;
+      }
+      didWarm(storeKeyOf(adType, ad.getLocation()));
+
+      // a full screen ad that failed is released now rather than on the next load, the banner view is re-used
+      if ((cacheError != null) && !(ad instanceof Banner)) {
+        slot.remove(ad);
+      }
+
+      // refresh timers and banner views belong to the UI thread
+      final boolean loaded = (cacheError == null);
+      if (loaded || (ad == activeBanner)) {
+        uiHandler.post(MainThreadProfiler.wrap("plugin.adLoaded", new Runnable() {
+          @Override
+          public void run() {
+            Banner displayedBanner = activeBanner;
+
+            if (loaded) {
+              // the new ad may now be the oldest one to refresh
+              scheduleAdRefresh();
+
+              // a refreshed creative for the displayed banner is shown in the same view
+              if (ad == displayedBanner) {
+                displayedBanner.show();
+              }
+            }
+
+            if (ad == displayedBanner) {
+              scheduleBannerRefresh();
+            }
+          }
+        }));
+      }
+
+      String phase = (cacheError != null) ? PHASE_FAILED : PHASE_LOADED;
+      int phaseBit = (cacheError != null) ? PHASE_BIT_FAILED : PHASE_BIT_LOADED;
+      if (! isEventWanted(phaseBit, typeBitOf(ad), ad.getLocation())) {
+        return;
+      }
+
+      // create data
       JSONObject data = new JSONObject();
       try {
-        data.put(DATA_LOCATION_KEY, showEvent.getAd().getLocation());
+        data.put(DATA_LOCATION_KEY, ad.getLocation());
+        if (cacheError != null) {
+          data.put(DATA_ERRORMSG_KEY, cacheError.getException().getLocalizedMessage());
+          data.put(DATA_ERRORCODE_KEY, cacheError.getCode());
+        }
       }
       catch (Exception e) {
         System.err.println();
       }
 
       Map<String, Object> coronaEvent = new HashMap<>();
-      coronaEvent.put(EVENT_PHASE_KEY, PHASE_DISPLAYED);
-      if(showEvent.getAd() instanceof Interstitial){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_INTERSTITIAL);
-      }else if(showEvent.getAd() instanceof Rewarded){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_REWARDED_VIDEO);
-      }
+      coronaEvent.put(EVENT_PHASE_KEY, phase);
+      coronaEvent.put(EVENT_TYPE_KEY, adType);
       coronaEvent.put(EVENT_DATA_KEY, data.toString());
-      dispatchLuaEvent(coronaEvent);
+      stampEvent(coronaEvent, callback);
+
+      // a newer cache result for the same location supersedes an undelivered one
+      dispatchLuaEvent(coronaEvent, "cache/" + adType + "/" + ad.getLocation());
+    }
+
+    private void didRequestToShowAd(CallbackQueue.Callback callback)
+    {
+      // the location that was asked for when a fallback served the show
+      String requestedLocation = fallbackShows.remove(callback.ad);
+
+      if (! isEventWanted(PHASE_BIT_DISPLAYED, typeBitOf(callback.ad), callback.ad.getLocation())) {
+        return;
+      }
 
-    }@Override public void onAdShown(@NotNull ShowEvent showEvent,@Nullable ShowError showError) {
-      // create data
       JSONObject data = new JSONObject();
       try {
-        data.put(DATA_LOCATION_KEY, showEvent.getAd().getLocation());
+        data.put(DATA_LOCATION_KEY, callback.ad.getLocation());
+        if (requestedLocation != null) {
+          data.put(DATA_REQUESTED_LOCATION_KEY, requestedLocation);
+        }
       }
       catch (Exception e) {
         System.err.println();
       }
 
       Map<String, Object> coronaEvent = new HashMap<>();
-      if(showError != null){
-        try {
+      coronaEvent.put(EVENT_PHASE_KEY, PHASE_DISPLAYED);
+      coronaEvent.put(EVENT_TYPE_KEY, adTypeOf(callback.ad));
+      coronaEvent.put(EVENT_DATA_KEY, data.toString());
+      stampEvent(coronaEvent, callback);
+      dispatchLuaEvent(coronaEvent);
+    }
+
+    private void didShowAd(CallbackQueue.Callback callback)
+    {
+      ShowError showError = (ShowError) callback.error;
+      fallbackShows.remove(callback.ad);
+
+      // pacing counts full screen ads that made it on screen, against the location that served them
+      PacingEngine pacing = pacingEngine;
+      if ((pacing != null) && (showError == null) && !(callback.ad instanceof Banner)) {
+        pacing.recordShow(adTypeOf(callback.ad), callback.ad.getLocation());
+      }
+
+      // banners stay on screen until hidden
+      if ((showError == null) && (callback.ad instanceof Banner)) {
+        return;
+      }
+
+      String phase = (showError != null) ? PHASE_FAILED : PHASE_CLOSED;
+      int phaseBit = (showError != null) ? PHASE_BIT_FAILED : PHASE_BIT_CLOSED;
+      if (! isEventWanted(phaseBit, typeBitOf(callback.ad), callback.ad.getLocation())) {
+        return;
+      }
+
+      // create data
+      JSONObject data = new JSONObject();
+      try {
+        data.put(DATA_LOCATION_KEY, callback.ad.getLocation());
+        if (showError != null) {
           data.put(DATA_ERRORMSG_KEY, showError.getException().getLocalizedMessage());
           data.put(DATA_ERRORCODE_KEY, showError.getCode());
         }
-        catch (Exception e) {
-          System.err.println();
-        }
-        coronaEvent.put(EVENT_PHASE_KEY, PHASE_FAILED);
-      }else{
-        coronaEvent.put(EVENT_PHASE_KEY, PHASE_CLOSED);
       }
-      if(showEvent.getAd() instanceof Interstitial){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_INTERSTITIAL);
-      }else if(showEvent.getAd() instanceof Rewarded){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_REWARDED_VIDEO);
+      catch (Exception e) {
+        System.err.println();
       }
+
+      Map<String, Object> coronaEvent = new HashMap<>();
+      coronaEvent.put(EVENT_PHASE_KEY, phase);
+      coronaEvent.put(EVENT_TYPE_KEY, adTypeOf(callback.ad));
       coronaEvent.put(EVENT_DATA_KEY, data.toString());
+      stampEvent(coronaEvent, callback);
       dispatchLuaEvent(coronaEvent);
-    }@Override public void onAdClicked(@NotNull ClickEvent clickEvent,@Nullable ClickError clickError) {
+    }
+
+    private void didClickAd(CallbackQueue.Callback callback)
+    {
+      if (! isEventWanted(PHASE_BIT_CLICKED, typeBitOf(callback.ad), callback.ad.getLocation())) {
+        return;
+      }
+
       // create data
       JSONObject data = new JSONObject();
       try {
-        data.put(DATA_LOCATION_KEY, clickEvent.getAd().getLocation());
+        data.put(DATA_LOCATION_KEY, callback.ad.getLocation());
       }
       catch (Exception e) {
         System.err.println();
@@ -1056,14 +3259,10 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
 
       Map<String, Object> coronaEvent = new HashMap<>();
       coronaEvent.put(EVENT_PHASE_KEY, PHASE_CLICKED);
-      if(clickEvent.getAd() instanceof Interstitial){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_INTERSTITIAL);
-      }else if(clickEvent.getAd() instanceof Rewarded){
-        coronaEvent.put(EVENT_TYPE_KEY, TYPE_REWARDED_VIDEO);
-      }
+      coronaEvent.put(EVENT_TYPE_KEY, adTypeOf(callback.ad));
       coronaEvent.put(EVENT_DATA_KEY, data.toString());
+      stampEvent(coronaEvent, callback);
       dispatchLuaEvent(coronaEvent);
-    }@Override public void onImpressionRecorded(@NotNull ImpressionEvent impressionEvent) {
-
-    }}
+    }
+  }
 }
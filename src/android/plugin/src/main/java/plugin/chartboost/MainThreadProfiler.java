@@ -0,0 +1,218 @@
+// MainThreadProfiler.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in timing of plugin work on the main thread and in SDK callbacks.
+ * <p>
+ * Work is bracketed with {@link #begin(String)} / {@link #end(String, long)}. While the profiler is off the
+ * calls go to a no-op sink. While it is on, every operation is also emitted as an android.os.Trace section
+ * (API 18+) so it shows up in Perfetto / systrace captures, timed into a per-operation histogram, and flagged when it
+ * takes longer than the frame budget.
+ */
+final class MainThreadProfiler
+{
+  // upper bounds of the histogram buckets (ms), the last bucket holds everything slower
+  static final int[] BUCKET_LIMITS_MS = { 1, 2, 4, 8, 16, 33 };
+
+  // android.os.Trace was added in API 18, older devices only get the timings
+  private static final boolean TRACE_SECTIONS = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2);
+
+  /**
+   * Where begin() / end() calls go.
+   */
+  private interface Sink
+  {
+    long begin(String name);
+    void end(String name, long startedAt);
+  }
+
+  /**
+   * Timings of one operation.
+   */
+  static final class Operation
+  {
+    long count = 0;
+    long totalNanos = 0;
+    long maxNanos = 0;
+    long overBudget = 0;
+    final long[] histogram = new long[BUCKET_LIMITS_MS.length + 1];
+
+    Operation copy()
+    {
+      Operation copy = new Operation();
+      copy.count = count;
+      copy.totalNanos = totalNanos;
+      copy.maxNanos = maxNanos;
+      copy.overBudget = overBudget;
+      System.arraycopy(histogram, 0, copy.histogram, 0, histogram.length);
+
+      return copy;
+    }
+  }
+
+  private static final Sink NO_OP = new Sink() {
+    @Override
+    public long begin(String name) {
+      return 0;
+    }
+
+    @Override
+    public void end(String name, long startedAt) {
+      // the profiler was turned off while the operation ran
+      if ((startedAt != 0) && TRACE_SECTIONS) {
+        Trace.endSection();
+      }
+    }
+  };
+
+  /**
+   * Records timings and trace sections.
+   */
+  private static final class Recorder implements Sink
+  {
+    private final long budgetNanos;
+    private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<>();
+
+    Recorder(long budgetNanos)
+    {
+      this.budgetNanos = budgetNanos;
+    }
+
+    @Override
+    public long begin(String name) {
+      if (TRACE_SECTIONS) {
+        Trace.beginSection(name);
+      }
+      return SystemClock.elapsedRealtimeNanos();
+    }
+
+    @Override
+    public void end(String name, long startedAt) {
+      // the profiler was turned on while the operation ran
+      if (startedAt == 0) {
+        return;
+      }
+
+      long elapsed = SystemClock.elapsedRealtimeNanos() - startedAt;
+      if (TRACE_SECTIONS) {
+        Trace.endSection();
+      }
+
+      Operation operation = operations.get(name);
+      if (operation == null) {
+        operation = new Operation();
+        Operation previous = operations.putIfAbsent(name, operation);
+        if (previous != null) {
+          operation = previous;
+        }
+      }
+
+      int bucket = 0;
+      while ((bucket < BUCKET_LIMITS_MS.length) && (elapsed >= BUCKET_LIMITS_MS[bucket] * 1000000L)) {
+        bucket++;
+      }
+
+      synchronized (operation) {
+        operation.count++;
+        operation.totalNanos += elapsed;
+        operation.maxNanos = Math.max(operation.maxNanos, elapsed);
+        operation.histogram[bucket]++;
+        if (elapsed > budgetNanos) {
+          operation.overBudget++;
+        }
+      }
+
+      if (elapsed > budgetNanos) {
+        PluginLog.warn("", "%s took %.1f ms, over the %.1f ms frame budget", name, elapsed / 1e6, budgetNanos / 1e6);
+      }
+    }
+
+    Map<String, Operation> snapshot()
+    {
+      Map<String, Operation> copy = new TreeMap<>();
+      for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+        synchronized (entry.getValue()) {
+          copy.put(entry.getKey(), entry.getValue().copy());
+        }
+      }
+
+      return copy;
+    }
+  }
+
+  private static volatile Sink sink = NO_OP;
+
+  private MainThreadProfiler()
+  {
+  }
+
+  // start recording (discarding previous timings), operations slower than 'budgetMs' are flagged
+  static void enable(double budgetMs)
+  {
+    sink = new Recorder((long) (budgetMs * 1000000));
+  }
+
+  static void disable()
+  {
+    sink = NO_OP;
+  }
+
+  static boolean isEnabled()
+  {
+    return sink != NO_OP;
+  }
+
+  // start timing an operation, pass the result to end() on the same thread
+  static long begin(String name)
+  {
+    return sink.begin(name);
+  }
+
+  static void end(String name, long startedAt)
+  {
+    sink.end(name, startedAt);
+  }
+
+  // run 'runnable' as a timed operation if the profiler is on when it runs (not when it is posted)
+  static Runnable wrap(final String name, final Runnable runnable)
+  {
+    return new Runnable() {
+      @Override
+      public void run() {
+        if (! isEnabled()) {
+          runnable.run();
+          return;
+        }
+
+        long startedAt = begin(name);
+        try {
+          runnable.run();
+        }
+        finally {
+          end(name, startedAt);
+        }
+      }
+    };
+  }
+
+  // timings recorded since the profiler was enabled, sorted by operation name
+  static Map<String, Operation> snapshot()
+  {
+    Sink current = sink;
+    return (current instanceof Recorder) ? ((Recorder) current).snapshot() : new TreeMap<String, Operation>();
+  }
+}
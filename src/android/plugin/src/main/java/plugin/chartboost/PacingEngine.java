@@ -0,0 +1,162 @@
+// PacingEngine.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Frequency capping and pacing rules for ad shows.
+ * <p>
+ * Rules are configured once from chartboost.init() and keyed either by ad type ("interstitial")
+ * or by ad type and location ("interstitial/levelEnd"). A location rule takes precedence over the
+ * ad type rule. Counters belong to the rule, so an ad type rule caps all locations of that type together.
+ * Time of last show and daily counts are persisted so they carry over to the next session.
+ */
+class PacingEngine
+{
+  // rejection reasons reported to Lua
+  static final String REASON_INITIAL_DELAY   = "initialDelay";
+  static final String REASON_MIN_INTERVAL    = "minInterval";
+  static final String REASON_MAX_PER_SESSION = "maxPerSession";
+  static final String REASON_MAX_PER_DAY     = "maxPerDay";
+
+  private static final String PREFERENCES_NAME = "plugin.chartboost.pacing";
+  private static final long   MILLIS_PER_DAY   = 24L * 60 * 60 * 1000;
+
+  /**
+   * A single pacing rule and its counters.
+   */
+  static class Rule
+  {
+    // limits (0 = no limit)
+    long initialDelayMs = 0;
+    long minIntervalMs  = 0;
+    int maxPerSession   = 0;
+    int maxPerDay       = 0;
+
+    // counters
+    private long lastShowTime = 0;      // wall clock, persisted
+    private long day          = 0;      // local day of dayCount, persisted
+    private int dayCount      = 0;      // persisted
+    private int sessionCount  = 0;
+  }
+
+  private final Map<String, Rule> rules = new HashMap<>();
+  private final SharedPreferences preferences;
+  private final long sessionStart;
+
+  PacingEngine(Context context)
+  {
+    this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+  }
+
+  // counters are persisted in 'preferences'
+  PacingEngine(SharedPreferences preferences)
+  {
+    this.preferences = preferences;
+    sessionStart = SystemClock.elapsedRealtime();
+  }
+
+  // add a rule for "adType" or "adType/location" and restore its persisted counters
+  void addRule(String key, Rule rule)
+  {
+    rule.lastShowTime = preferences.getLong(key + ".lastShow", 0);
+    rule.day = preferences.getLong(key + ".day", 0);
+    rule.dayCount = preferences.getInt(key + ".dayCount", 0);
+    rules.put(key, rule);
+  }
+
+  // return the rejection reason for showing an ad, or null if the show is allowed
+  String check(String adType, String location)
+  {
+    if (rules.isEmpty()) {
+      return null;
+    }
+
+    Rule rule = ruleFor(adType, location);
+    if (rule == null) {
+      return null;
+    }
+
+    synchronized (rule) {
+      if ((rule.initialDelayMs > 0) && ((SystemClock.elapsedRealtime() - sessionStart) < rule.initialDelayMs)) {
+        return REASON_INITIAL_DELAY;
+      }
+
+      long now = System.currentTimeMillis();
+      if ((rule.minIntervalMs > 0) && (rule.lastShowTime > 0) && ((now - rule.lastShowTime) < rule.minIntervalMs)) {
+        return REASON_MIN_INTERVAL;
+      }
+
+      if ((rule.maxPerSession > 0) && (rule.sessionCount >= rule.maxPerSession)) {
+        return REASON_MAX_PER_SESSION;
+      }
+
+      if ((rule.maxPerDay > 0) && (rule.day == localDay(now)) && (rule.dayCount >= rule.maxPerDay)) {
+        return REASON_MAX_PER_DAY;
+      }
+    }
+
+    return null;
+  }
+
+  // count a show against the matching rule
+  void recordShow(String adType, String location)
+  {
+    if (rules.isEmpty()) {
+      return;
+    }
+
+    String key = adType + "/" + location;
+    Rule rule = rules.get(key);
+    if (rule == null) {
+      key = adType;
+      rule = rules.get(key);
+    }
+    if (rule == null) {
+      return;
+    }
+
+    synchronized (rule) {
+      long now = System.currentTimeMillis();
+      long today = localDay(now);
+
+      if (rule.day != today) {
+        rule.day = today;
+        rule.dayCount = 0;
+      }
+
+      rule.lastShowTime = now;
+      rule.dayCount++;
+      rule.sessionCount++;
+
+      preferences.edit()
+        .putLong(key + ".lastShow", rule.lastShowTime)
+        .putLong(key + ".day", rule.day)
+        .putInt(key + ".dayCount", rule.dayCount)
+        .apply();
+    }
+  }
+
+  private Rule ruleFor(String adType, String location)
+  {
+    Rule rule = rules.get(adType + "/" + location);
+    return (rule != null) ? rule : rules.get(adType);
+  }
+
+  private static long localDay(long time)
+  {
+    return (time + TimeZone.getDefault().getOffset(time)) / MILLIS_PER_DAY;
+  }
+}
@@ -0,0 +1,111 @@
+// PlacementManifest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Placements to cache as soon as the SDK has started.
+ * <p>
+ * Built once from chartboost.init(), either from an inline Lua table or from a JSON resource:
+ * <pre>
+ * { "placements": [ { "location": "levelEnd", "type": "interstitial", "priority": 10, "keepWarm": true, "depth": 2, "bannerSize": "medium" }, ... ] }
+ * </pre>
+ * Placements are kept sorted by descending priority.
+ */
+final class PlacementManifest
+{
+  static final class Placement
+  {
+    final String adType;
+    final String location;
+    final int priority;
+    final boolean keepWarm;
+    final int depth;              // number of ads kept cached for the location
+    final String bannerSize;      // banner view size name, banners only
+
+    Placement(String adType, String location, int priority, boolean keepWarm, int depth, String bannerSize)
+    {
+      this.adType = adType;
+      this.location = location;
+      this.priority = priority;
+      this.keepWarm = keepWarm;
+      this.depth = depth;
+      this.bannerSize = bannerSize;
+    }
+  }
+
+  private final List<Placement> placements;
+  private final Map<String, Placement> keepWarmPlacements = new HashMap<>();
+
+  PlacementManifest(List<Placement> placements)
+  {
+    List<Placement> sorted = new ArrayList<>(placements);
+    Collections.sort(sorted, new Comparator<Placement>() {
+      @Override
+      public int compare(Placement a, Placement b) {
+        return (a.priority < b.priority) ? 1 : ((a.priority == b.priority) ? 0 : -1);
+      }
+    });
+    this.placements = Collections.unmodifiableList(sorted);
+
+    for (Placement placement : sorted) {
+      if (placement.keepWarm) {
+        keepWarmPlacements.put(placement.adType + "/" + placement.location, placement);
+      }
+    }
+  }
+
+  // parse a JSON manifest (an array of placements, or an object with a "placements" array)
+  static PlacementManifest fromJson(String json) throws Exception
+  {
+    String trimmed = json.trim();
+    JSONArray array = trimmed.startsWith("[") ? new JSONArray(trimmed) : new JSONObject(trimmed).optJSONArray("placements");
+    if (array == null) {
+      throw new IllegalArgumentException("'placements' array expected");
+    }
+
+    List<Placement> placements = new ArrayList<>();
+    for (int i = 0; i < array.length(); i++) {
+      JSONObject entry = array.optJSONObject(i);
+      if ((entry == null) || !entry.has("type")) {
+        throw new IllegalArgumentException("placement " + (i + 1) + ": 'type' expected");
+      }
+
+      placements.add(new Placement(
+        entry.optString("type"),
+        entry.optString("location", "default"),
+        entry.optInt("priority", 0),
+        entry.optBoolean("keepWarm", false),
+        entry.optInt("depth", 1),
+        entry.optString("bannerSize", "standard")
+      ));
+    }
+
+    return new PlacementManifest(placements);
+  }
+
+  List<Placement> getPlacements()
+  {
+    return placements;
+  }
+
+  // the placement to cache again once its ad is closed, or null
+  Placement getKeepWarm(String adType, String location)
+  {
+    return keepWarmPlacements.get(adType + "/" + location);
+  }
+}
@@ -0,0 +1,259 @@
+// PluginLog.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Leveled logger for the plugin.
+ * <p>
+ * Calls with up to three arguments have fixed-arity overloads, so a message below the configured level costs a
+ * level check and no argument array. Messages that pass the check are formatted once; the ring buffer keeps the
+ * formatted string, never the arguments, so it can't keep ads or activities alive. The ring buffer keeps the same
+ * messages as the console, so recent diagnostics can be pulled from Lua, and nothing is formatted when logging is off.
+ */
+final class PluginLog
+{
+  // log levels
+  static final int OFF   = 0;
+  static final int ERROR = 1;
+  static final int WARN  = 2;
+  static final int INFO  = 3;
+  static final int DEBUG = 4;
+
+  private static final String CORONA_TAG = "Corona";
+  private static final String[] LEVEL_NAMES = { "off", "error", "warn", "info", "debug" };
+  private static final String[] LEVEL_PREFIXES = { "", "ERROR: ", "WARNING: ", "", "DEBUG: " };
+
+  private static final int RING_SIZE = 100;
+
+  private static volatile int level = INFO;
+
+  /**
+   * A ring buffer slot. Slots are allocated once and overwritten in place.
+   */
+  private static final class Entry
+  {
+    int level;
+    long time;
+    String message;
+  }
+
+  private static final Entry[] ring = new Entry[RING_SIZE];
+  private static int ringNext = 0;
+  private static int ringCount = 0;
+
+  static {
+    for (int i = 0; i < RING_SIZE; i++) {
+      ring[i] = new Entry();
+    }
+  }
+
+  private PluginLog() {}
+
+  // return the level for a name ("off", "error", "warn", "info", "debug"), or -1 if invalid
+  static int levelOf(String name)
+  {
+    for (int i = 0; i < LEVEL_NAMES.length; i++) {
+      if (LEVEL_NAMES[i].equals(name)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  static void setLevel(int newLevel)
+  {
+    level = newLevel;
+  }
+
+  static void error(String functionSignature, String format)
+  {
+    if (ERROR <= level) {
+      log(ERROR, functionSignature, format, (Object[]) null);
+    }
+  }
+
+  static void error(String functionSignature, String format, Object arg0)
+  {
+    if (ERROR <= level) {
+      log(ERROR, functionSignature, format, arg0);
+    }
+  }
+
+  static void error(String functionSignature, String format, Object arg0, Object arg1)
+  {
+    if (ERROR <= level) {
+      log(ERROR, functionSignature, format, arg0, arg1);
+    }
+  }
+
+  static void error(String functionSignature, String format, Object arg0, Object arg1, Object arg2)
+  {
+    if (ERROR <= level) {
+      log(ERROR, functionSignature, format, arg0, arg1, arg2);
+    }
+  }
+
+  static void warn(String functionSignature, String format)
+  {
+    if (WARN <= level) {
+      log(WARN, functionSignature, format, (Object[]) null);
+    }
+  }
+
+  static void warn(String functionSignature, String format, Object arg0)
+  {
+    if (WARN <= level) {
+      log(WARN, functionSignature, format, arg0);
+    }
+  }
+
+  static void warn(String functionSignature, String format, Object arg0, Object arg1)
+  {
+    if (WARN <= level) {
+      log(WARN, functionSignature, format, arg0, arg1);
+    }
+  }
+
+  static void warn(String functionSignature, String format, Object arg0, Object arg1, Object arg2)
+  {
+    if (WARN <= level) {
+      log(WARN, functionSignature, format, arg0, arg1, arg2);
+    }
+  }
+
+  static void info(String functionSignature, String format)
+  {
+    if (INFO <= level) {
+      log(INFO, functionSignature, format, (Object[]) null);
+    }
+  }
+
+  static void info(String functionSignature, String format, Object arg0)
+  {
+    if (INFO <= level) {
+      log(INFO, functionSignature, format, arg0);
+    }
+  }
+
+  static void info(String functionSignature, String format, Object arg0, Object arg1)
+  {
+    if (INFO <= level) {
+      log(INFO, functionSignature, format, arg0, arg1);
+    }
+  }
+
+  static void info(String functionSignature, String format, Object arg0, Object arg1, Object arg2)
+  {
+    if (INFO <= level) {
+      log(INFO, functionSignature, format, arg0, arg1, arg2);
+    }
+  }
+
+  static void debug(String functionSignature, String format)
+  {
+    if (DEBUG <= level) {
+      log(DEBUG, functionSignature, format, (Object[]) null);
+    }
+  }
+
+  static void debug(String functionSignature, String format, Object arg0)
+  {
+    if (DEBUG <= level) {
+      log(DEBUG, functionSignature, format, arg0);
+    }
+  }
+
+  static void debug(String functionSignature, String format, Object arg0, Object arg1)
+  {
+    if (DEBUG <= level) {
+      log(DEBUG, functionSignature, format, arg0, arg1);
+    }
+  }
+
+  static void debug(String functionSignature, String format, Object arg0, Object arg1, Object arg2)
+  {
+    if (DEBUG <= level) {
+      log(DEBUG, functionSignature, format, arg0, arg1, arg2);
+    }
+  }
+
+  static void log(int msgLevel, String functionSignature, String format, Object... args)
+  {
+    if (msgLevel > level) {
+      return;
+    }
+
+    String message = prefixOf(functionSignature) + format(format, args);
+
+    synchronized (ring) {
+      Entry entry = ring[ringNext];
+      entry.level = msgLevel;
+      entry.time = System.currentTimeMillis();
+      entry.message = message;
+
+      ringNext = (ringNext + 1) % RING_SIZE;
+      ringCount = Math.min(ringCount + 1, RING_SIZE);
+    }
+
+    if (msgLevel == ERROR) {
+      Log.e(CORONA_TAG, LEVEL_PREFIXES[msgLevel] + message);
+    }
+    else if (msgLevel == WARN) {
+      Log.w(CORONA_TAG, LEVEL_PREFIXES[msgLevel] + message);
+    }
+    else {
+      Log.i(CORONA_TAG, LEVEL_PREFIXES[msgLevel] + message);
+    }
+  }
+
+  // return the buffered entries, oldest first, formatted as "time level signature, message"
+  static List<String> getEntries()
+  {
+    List<String> entries = new ArrayList<>();
+    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+
+    synchronized (ring) {
+      int first = (ringNext - ringCount + RING_SIZE) % RING_SIZE;
+
+      for (int i = 0; i < ringCount; i++) {
+        Entry entry = ring[(first + i) % RING_SIZE];
+        entries.add(timeFormat.format(new Date(entry.time)) + " " + LEVEL_NAMES[entry.level] + " " + entry.message);
+      }
+    }
+
+    return entries;
+  }
+
+  private static String prefixOf(String functionSignature)
+  {
+    return ((functionSignature == null) || functionSignature.isEmpty()) ? "" : functionSignature + ", ";
+  }
+
+  private static String format(String format, Object[] args)
+  {
+    if ((args == null) || (args.length == 0)) {
+      return format;
+    }
+
+    try {
+      return String.format(Locale.US, format, args);
+    }
+    catch (Exception ex) {
+      return format;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+// PluginStats.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters reported to Lua by chartboost.getStats().
+ * <p>
+ * Counters are updated from the Lua, UI and SDK threads without locking.
+ */
+final class PluginStats
+{
+  // counter names, as seen from Lua
+  static final String ADS_REFRESHED       = "adsRefreshed";         // cached ads replaced before reaching their maximum age
+  static final String STALE_SHOWS_AVOIDED = "staleShowsAvoided";    // shows that found an expired ad and did not use it
+  static final String TIMEOUTS            = "timeouts";             // init and cache requests the SDK did not answer in time
+  static final String DEFERRED_LOADS      = "deferredLoads";        // cache requests held back while the app was suspended
+  static final String RESUME_WARMUPS      = "resumeWarmups";        // resumes that had to re-warm cold placements
+  static final String RESUME_WARM_MS      = "lastResumeWarmMs";     // time from the last resume until its placements were warm again
+  static final String EVENTS_COALESCED    = "eventsCoalesced";      // events held while suspended that a newer one replaced
+
+  // registry sizes, sampled when the stats are read
+  static final String AD_SLOTS            = "adSlots";              // ad type / location pairs with a slot
+  static final String HELD_ADS            = "heldAds";              // ad objects held by the slots, loading or cached
+  static final String PENDING_SHOWS       = "pendingShows";         // fallback shows waiting for their SDK callback
+
+  private static final String[] NAMES = {
+    ADS_REFRESHED, STALE_SHOWS_AVOIDED, TIMEOUTS, DEFERRED_LOADS, RESUME_WARMUPS, RESUME_WARM_MS, EVENTS_COALESCED,
+    AD_SLOTS, HELD_ADS, PENDING_SHOWS
+  };
+
+  private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+  PluginStats()
+  {
+    // known counters are reported even before they are first updated
+    for (String name : NAMES) {
+      counters.put(name, new AtomicLong());
+    }
+  }
+
+  void increment(String name)
+  {
+    add(name, 1);
+  }
+
+  void add(String name, long delta)
+  {
+    counterOf(name).addAndGet(delta);
+  }
+
+  void set(String name, long value)
+  {
+    counterOf(name).set(value);
+  }
+
+  // current values, sorted by name
+  Map<String, Long> snapshot()
+  {
+    Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().get());
+    }
+
+    return values;
+  }
+
+  void reset()
+  {
+    for (AtomicLong counter : counters.values()) {
+      counter.set(0);
+    }
+  }
+
+  private AtomicLong counterOf(String name)
+  {
+    AtomicLong counter = counters.get(name);
+
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+
+    return counter;
+  }
+}
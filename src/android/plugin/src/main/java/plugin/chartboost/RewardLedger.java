@@ -0,0 +1,404 @@
+// RewardLedger.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only on-disk log of earned rewards.
+ * <p>
+ * A reward is written to the ledger before its Lua event is dispatched, and stays there until Lua acknowledges
+ * it with chartboost.ackReward(). Unacknowledged rewards found by {@link #open()} are passed back by
+ * {@link #replay(RewardCallback)}, so they can be dispatched again once Lua is ready for them.
+ * <p>
+ * Writes are group-committed on a single background thread: every record queued while a write is in progress
+ * goes out in the next write, with one fsync for the whole group. Acknowledged rewards are dropped from the file
+ * when it is opened or closed, and when it grows past {@link #COMPACT_THRESHOLD} bytes, so a commit is a single
+ * append in the common case.
+ * <p>
+ * Each line of the file is a JSON object, either a reward {"id", "location", "reward", "time"} or an ack {"ack"}.
+ */
+final class RewardLedger
+{
+  private static final String FILE_NAME = "plugin.chartboost.rewards.log";
+
+  // file size past which a commit also compacts the file
+  static final long COMPACT_THRESHOLD = 32 * 1024;
+
+  /**
+   * A reward recorded in the ledger.
+   */
+  static final class Reward
+  {
+    final String id;
+    final String location;
+    final int amount;
+    final long time;
+
+    Reward(String id, String location, int amount, long time)
+    {
+      this.id = id;
+      this.location = location;
+      this.amount = amount;
+      this.time = time;
+    }
+  }
+
+  /**
+   * Receives rewards that can be dispatched to Lua, on the writer thread: new rewards once they are on
+   * disk, and unacknowledged rewards from a previous session when they are replayed.
+   */
+  interface RewardCallback
+  {
+    void onReward(Reward reward);
+  }
+
+  private final File file;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "chartboost-reward-ledger");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * A record waiting for the next group commit.
+   */
+  private static final class PendingRecord
+  {
+    final String line;
+    final Reward reward;            // set for rewards
+    final String ackId;             // set for acks
+    final RewardCallback callback;
+
+    PendingRecord(String line, Reward reward, String ackId, RewardCallback callback)
+    {
+      this.line = line;
+      this.reward = reward;
+      this.ackId = ackId;
+      this.callback = callback;
+    }
+  }
+
+  // guarded by 'this'
+  private List<PendingRecord> pending = new ArrayList<>();
+  private boolean flushScheduled = false;
+
+  // only touched on the writer thread
+  private final Map<String, Reward> unacknowledged = new LinkedHashMap<>();
+  private List<Reward> replayable = new ArrayList<>();
+  private FileOutputStream output = null;
+  private long fileSize = 0;
+
+  RewardLedger(File directory)
+  {
+    file = new File(directory, FILE_NAME);
+  }
+
+  // read the ledger and compact it to the unacknowledged rewards (runs on the writer thread, ahead of any new record)
+  void open()
+  {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          load();
+          rewrite();
+        }
+        catch (Exception ex) {
+          PluginLog.error("", "Reward ledger can't be read (%s)", ex);
+        }
+
+        replayable = new ArrayList<>(unacknowledged.values());
+      }
+    });
+  }
+
+  // pass the rewards left unacknowledged by a previous session to 'onReplay', oldest first, once
+  // (skipping the ones acknowledged since open())
+  void replay(final RewardCallback onReplay)
+  {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        List<Reward> rewards = replayable;
+        replayable = new ArrayList<>();
+
+        for (Reward reward : rewards) {
+          if (unacknowledged.containsKey(reward.id)) {
+            onReplay.onReward(reward);
+          }
+        }
+      }
+    });
+  }
+
+  // record a new reward, 'onCommitted' runs on the writer thread once the reward is on disk
+  // (or right away if the ledger is closed, the reward must not be lost)
+  Reward append(String location, int amount, RewardCallback onCommitted)
+  {
+    Reward reward = new Reward(UUID.randomUUID().toString(), location, amount, System.currentTimeMillis());
+    enqueue(new PendingRecord(toLine(reward), reward, null, onCommitted));
+
+    return reward;
+  }
+
+  // mark a reward as handled by Lua
+  void acknowledge(String id)
+  {
+    String line;
+    try {
+      line = new JSONObject().put("ack", id).toString();
+    }
+    catch (Exception ex) {
+      return;
+    }
+
+    enqueue(new PendingRecord(line, null, id, null));
+  }
+
+  // flush pending records, compact the file and stop the writer thread
+  void close()
+  {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rewrite();
+        }
+        catch (Exception ex) {
+          PluginLog.error("", "Reward ledger compaction failed (%s)", ex);
+        }
+        closeOutput();
+      }
+    });
+    writer.shutdown();
+  }
+
+  // wait until the writer thread has stopped after close(), return false on timeout
+  boolean awaitClosed(long timeoutMs) throws InterruptedException
+  {
+    return writer.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void enqueue(PendingRecord record)
+  {
+    synchronized (this) {
+      pending.add(record);
+
+      // a flush is already queued, the record joins its group
+      if (flushScheduled) {
+        return;
+      }
+      flushScheduled = true;
+    }
+
+    boolean queued = execute(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    });
+
+    if (! queued) {
+      // closed in the meantime, nothing can be written: hand the rewards over as they are
+      List<PendingRecord> group;
+      synchronized (this) {
+        group = pending;
+        pending = new ArrayList<>();
+        flushScheduled = false;
+      }
+
+      for (PendingRecord pendingRecord : group) {
+        if (pendingRecord.callback != null) {
+          pendingRecord.callback.onReward(pendingRecord.reward);
+        }
+      }
+    }
+  }
+
+  // run a task on the writer thread, return false if the ledger is closed
+  private boolean execute(Runnable task)
+  {
+    try {
+      writer.execute(task);
+      return true;
+    }
+    catch (RejectedExecutionException ex) {
+      return false;
+    }
+  }
+
+  // write every queued record with a single fsync, then run the callbacks of the group (writer thread)
+  private void flush()
+  {
+    List<PendingRecord> group;
+
+    synchronized (this) {
+      group = pending;
+      pending = new ArrayList<>();
+      flushScheduled = false;
+    }
+
+    try {
+      if (output == null) {
+        output = new FileOutputStream(file, true);
+      }
+
+      StringBuilder content = new StringBuilder();
+      for (PendingRecord record : group) {
+        content.append(record.line).append('\n');
+      }
+
+      byte[] bytes = content.toString().getBytes("UTF-8");
+      output.write(bytes);
+      output.flush();
+      output.getFD().sync();
+      fileSize += bytes.length;
+    }
+    catch (Exception ex) {
+      PluginLog.error("", "Reward ledger write failed (%s)", ex);
+    }
+
+    // rewards are dispatched even if the write failed, the player must not lose them now
+    for (PendingRecord record : group) {
+      if (record.reward != null) {
+        unacknowledged.put(record.reward.id, record.reward);
+      }
+      else if (record.ackId != null) {
+        unacknowledged.remove(record.ackId);
+      }
+
+      if (record.callback != null) {
+        record.callback.onReward(record.reward);
+      }
+    }
+
+    // keep the file to about the threshold, most of it is acknowledged rewards by then
+    if (fileSize > COMPACT_THRESHOLD) {
+      try {
+        rewrite();
+      }
+      catch (Exception ex) {
+        PluginLog.error("", "Reward ledger compaction failed (%s)", ex);
+      }
+    }
+  }
+
+  // load the unacknowledged rewards from the file (writer thread)
+  private void load() throws Exception
+  {
+    unacknowledged.clear();
+
+    if (! file.exists()) {
+      return;
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        JSONObject record;
+        try {
+          record = new JSONObject(line);
+        }
+        catch (Exception ex) {
+          // a torn last line from a crash during a write
+          continue;
+        }
+
+        if (record.has("ack")) {
+          unacknowledged.remove(record.optString("ack"));
+        }
+        else if (record.has("id")) {
+          Reward reward = new Reward(
+            record.optString("id"), record.optString("location"), record.optInt("reward", 0), record.optLong("time", 0)
+          );
+          unacknowledged.put(reward.id, reward);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  // replace the file with the unacknowledged rewards only (writer thread)
+  private void rewrite() throws Exception
+  {
+    closeOutput();
+
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temp, false);
+    try {
+      StringBuilder content = new StringBuilder();
+      for (Reward reward : unacknowledged.values()) {
+        content.append(toLine(reward)).append('\n');
+      }
+
+      byte[] bytes = content.toString().getBytes("UTF-8");
+      stream.write(bytes);
+      stream.flush();
+      stream.getFD().sync();
+      fileSize = bytes.length;
+    }
+    finally {
+      stream.close();
+    }
+
+    if (! temp.renameTo(file)) {
+      throw new IllegalStateException("can't replace " + file);
+    }
+  }
+
+  private static String toLine(Reward reward)
+  {
+    try {
+      return new JSONObject()
+        .put("id", reward.id)
+        .put("location", reward.location)
+        .put("reward", reward.amount)
+        .put("time", reward.time)
+        .toString();
+    }
+    catch (Exception ex) {
+      return "{}";
+    }
+  }
+
+  private void closeOutput()
+  {
+    if (output != null) {
+      try {
+        output.close();
+      }
+      catch (Exception ex) {
+        // ignore
+      }
+      output = null;
+    }
+  }
+}
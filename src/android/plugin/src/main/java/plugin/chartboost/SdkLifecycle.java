@@ -0,0 +1,108 @@
+// SdkLifecycle.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lifecycle of the Chartboost SDK as seen by the plugin.
+ * <p>
+ * The state is held in a single atomic reference so API calls on the Lua thread see updates made by
+ * SDK callbacks on other threads with one volatile read. Transitions are compare-and-set and only the
+ * transitions listed in {@link #isAllowed(State, State)} are accepted; others are logged and ignored, as
+ * they can come from SDK callback paths that must not throw.
+ */
+final class SdkLifecycle
+{
+  enum State
+  {
+    UNINITIALIZED,
+    INITIALIZING,
+    READY,
+    FAILED,
+    SHUTTING_DOWN
+  }
+
+  /**
+   * Notified after every successful transition, on the thread that made it.
+   */
+  interface Listener
+  {
+    void onStateChanged(State from, State to);
+  }
+
+  private final AtomicReference<State> state = new AtomicReference<>(State.UNINITIALIZED);
+  private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  State get()
+  {
+    return state.get();
+  }
+
+  // add a listener, once
+  void addListener(Listener listener)
+  {
+    listeners.addIfAbsent(listener);
+  }
+
+  void removeListener(Listener listener)
+  {
+    listeners.remove(listener);
+  }
+
+  // move from one state to another, return false if the current state is not 'from' or the transition is not allowed
+  boolean transition(State from, State to)
+  {
+    if (! isAllowed(from, to)) {
+      PluginLog.warn("", "Ignored SDK state transition %s -> %s", from, to);
+      return false;
+    }
+
+    if (! state.compareAndSet(from, to)) {
+      return false;
+    }
+
+    for (Listener listener : listeners) {
+      listener.onStateChanged(from, to);
+    }
+
+    return true;
+  }
+
+  // move to SHUTTING_DOWN from whatever the current state is, return the previous state
+  State shutdown()
+  {
+    State from = state.getAndSet(State.SHUTTING_DOWN);
+
+    if (from != State.SHUTTING_DOWN) {
+      for (Listener listener : listeners) {
+        listener.onStateChanged(from, State.SHUTTING_DOWN);
+      }
+    }
+
+    return from;
+  }
+
+  private static boolean isAllowed(State from, State to)
+  {
+    switch (from) {
+      case UNINITIALIZED:
+        return to == State.INITIALIZING;
+      case INITIALIZING:
+        return (to == State.READY) || (to == State.FAILED);
+      case FAILED:
+        // init may be retried, or the SDK may still report a late start
+        return (to == State.INITIALIZING) || (to == State.READY);
+      case SHUTTING_DOWN:
+        return to == State.UNINITIALIZED;
+      default:
+        return false;
+    }
+  }
+}
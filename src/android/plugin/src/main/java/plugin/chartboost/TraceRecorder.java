@@ -0,0 +1,290 @@
+// TraceRecorder.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.SystemClock;
+
+import com.naef.jnlua.LuaState;
+import com.naef.jnlua.LuaType;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Opt-in recording of the plugin's Lua API calls, SDK callbacks and Lua event dispatches to a trace file.
+ * <p>
+ * The trace keeps the order and timing of a real session so it can be replayed offline. Each line is one
+ * tab separated record, times are microseconds since the start of the trace (SystemClock.elapsedRealtimeNanos()):
+ * <pre>
+ * #chartboost-trace  1  pluginVersion
+ * C  time  durationUs  function  [args as JSON]
+ * S  time  callback  adType  location  errorCode  reward
+ * D  time  seq  phase  type
+ * </pre>
+ * Records are written in groups on a background thread. Credentials passed to init() are not recorded, and
+ * recording stops when the file reaches {@link #MAX_BYTES}.
+ */
+final class TraceRecorder
+{
+  static final String FILE_NAME = "plugin.chartboost.trace";
+  static final long MAX_BYTES = 16 * 1024 * 1024;
+
+  private static final int FORMAT_VERSION = 1;
+  private static final int MAX_TABLE_DEPTH = 4;
+  private static final List<String> REDACTED_KEYS = Arrays.asList("appId", "appSig");
+
+  /**
+   * One trace file being written.
+   */
+  private static final class Recording
+  {
+    final File file;
+    final long startedAt;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "chartboost-trace");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    // guarded by 'this'
+    private List<String> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    // only touched on the writer thread
+    private FileOutputStream output = null;
+    private long bytesWritten = 0;
+
+    Recording(File file)
+    {
+      this.file = file;
+      this.startedAt = SystemClock.elapsedRealtimeNanos();
+    }
+
+    long timeOf(long nanos)
+    {
+      return (nanos - startedAt) / 1000;
+    }
+
+    void add(String line)
+    {
+      synchronized (this) {
+        pending.add(line);
+
+        // a flush is already queued, the line joins its group
+        if (flushScheduled) {
+          return;
+        }
+        flushScheduled = true;
+      }
+
+      try {
+        writer.execute(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        });
+      }
+      catch (Exception ex) {
+        // closed in the meantime
+      }
+    }
+
+    // write the queued lines (writer thread)
+    private void flush()
+    {
+      List<String> group;
+
+      synchronized (this) {
+        group = pending;
+        pending = new ArrayList<>();
+        flushScheduled = false;
+      }
+
+      if (bytesWritten >= MAX_BYTES) {
+        return;
+      }
+
+      try {
+        if (output == null) {
+          output = new FileOutputStream(file, false);
+        }
+
+        StringBuilder content = new StringBuilder();
+        for (String line : group) {
+          content.append(line).append('\n');
+        }
+
+        byte[] bytes = content.toString().getBytes("UTF-8");
+        output.write(bytes);
+        bytesWritten += bytes.length;
+
+        if (bytesWritten >= MAX_BYTES) {
+          PluginLog.warn("", "Trace reached %d bytes, recording stopped", MAX_BYTES);
+        }
+      }
+      catch (Exception ex) {
+        PluginLog.error("", "Trace write failed (%s)", ex);
+      }
+    }
+
+    // write what is left and close the file
+    void close()
+    {
+      try {
+        writer.execute(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+
+            if (output != null) {
+              try {
+                output.close();
+              }
+              catch (Exception ex) {
+                // ignore
+              }
+              output = null;
+            }
+          }
+        });
+      }
+      catch (Exception ex) {
+        // already closed
+      }
+      writer.shutdown();
+    }
+  }
+
+  private static volatile Recording recording = null;
+
+  private TraceRecorder()
+  {
+  }
+
+  // start a new trace in 'file', replacing the one being recorded (if any)
+  static void start(File file, String pluginVersion)
+  {
+    stop();
+
+    Recording started = new Recording(file);
+    started.add("#chartboost-trace\t" + FORMAT_VERSION + "\t" + pluginVersion);
+    recording = started;
+  }
+
+  // stop recording, return the path of the trace file (null if nothing was being recorded)
+  static String stop()
+  {
+    Recording stopped = recording;
+    recording = null;
+
+    if (stopped == null) {
+      return null;
+    }
+
+    stopped.close();
+    return stopped.file.getPath();
+  }
+
+  static boolean isRecording()
+  {
+    return recording != null;
+  }
+
+  // a Lua API call that started at 'startedAt' and just returned, its 'nargs' arguments are still on the stack
+  static void recordCall(String function, long startedAt, LuaState luaState, int nargs)
+  {
+    Recording current = recording;
+    if (current == null) {
+      return;
+    }
+
+    JSONArray args = new JSONArray();
+    for (int i = 1; i <= nargs; i++) {
+      args.put(valueOf(luaState, i, 0));
+    }
+
+    long endedAt = SystemClock.elapsedRealtimeNanos();
+    current.add("C\t" + current.timeOf(startedAt) + "\t" + ((endedAt - startedAt) / 1000) + "\t" + function + "\t" + args);
+  }
+
+  // an SDK callback captured at 'capturedAt' (SystemClock.elapsedRealtimeNanos() time)
+  static void recordCallback(String callback, String adType, String location, Object errorCode, int reward, long capturedAt)
+  {
+    Recording current = recording;
+    if (current == null) {
+      return;
+    }
+
+    current.add("S\t" + current.timeOf(capturedAt) + "\t" + callback + "\t" + adType + "\t" + location
+      + "\t" + ((errorCode != null) ? errorCode : "-") + "\t" + reward);
+  }
+
+  // a Lua event handed to the listener at 'dispatchedAt' (SystemClock.elapsedRealtimeNanos() time)
+  static void recordDispatch(long seq, Object phase, Object type, long dispatchedAt)
+  {
+    Recording current = recording;
+    if (current == null) {
+      return;
+    }
+
+    current.add("D\t" + current.timeOf(dispatchedAt) + "\t" + seq + "\t" + phase + "\t" + type);
+  }
+
+  // JSON value of the Lua value at the absolute stack index 'index'
+  private static Object valueOf(LuaState luaState, int index, int depth)
+  {
+    LuaType type = luaState.type(index);
+
+    if (type == LuaType.STRING) {
+      return luaState.toString(index);
+    }
+    else if (type == LuaType.NUMBER) {
+      return luaState.toNumber(index);
+    }
+    else if (type == LuaType.BOOLEAN) {
+      return luaState.toBoolean(index);
+    }
+    else if (type == LuaType.NIL) {
+      return JSONObject.NULL;
+    }
+    else if ((type != LuaType.TABLE) || (depth >= MAX_TABLE_DEPTH)) {
+      return "<" + luaState.typeName(index) + ">";
+    }
+
+    JSONObject table = new JSONObject();
+    for (luaState.pushNil(); luaState.next(index); luaState.pop(1)) {
+      // copy the key, toString() would turn a number key into a string in place and break next()
+      luaState.pushValue(-2);
+      String key = luaState.toString(-1);
+      luaState.pop(1);
+
+      try {
+        table.put(key, REDACTED_KEYS.contains(key) ? "*" : valueOf(luaState, luaState.getTop(), depth + 1));
+      }
+      catch (Exception ex) {
+        // not a valid JSON value (NaN...)
+      }
+    }
+
+    return table;
+  }
+}
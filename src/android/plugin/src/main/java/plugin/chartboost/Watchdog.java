@@ -0,0 +1,129 @@
+// Watchdog.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deadlines for SDK requests that may never call back.
+ * <p>
+ * Every pending request is armed with its own deadline, but a single runnable on the handler is scheduled
+ * for the earliest one, so the number of pending requests doesn't change the number of timers. Requests are
+ * identified by any key (the init request, an ad object...) and disarmed when their callback arrives.
+ */
+final class Watchdog
+{
+  /**
+   * Notified on the handler thread for every request whose deadline passed.
+   */
+  interface Listener
+  {
+    void onTimeout(Object key);
+  }
+
+  private final Handler handler;
+  private final Listener listener;
+
+  // deadlines in SystemClock.elapsedRealtime() time, guarded by 'this'
+  private final Map<Object, Long> deadlines = new HashMap<>();
+  private long scheduledAt = 0;
+
+  private final Runnable checkRunnable = new Runnable() {
+    @Override
+    public void run() {
+      check();
+    }
+  };
+
+  Watchdog(Handler handler, Listener listener)
+  {
+    this.handler = handler;
+    this.listener = listener;
+  }
+
+  // start (or restart) the deadline of a request, a timeout of 0 or less disables it
+  void arm(Object key, long timeoutMs)
+  {
+    if (timeoutMs <= 0) {
+      return;
+    }
+
+    synchronized (this) {
+      deadlines.put(key, SystemClock.elapsedRealtime() + timeoutMs);
+      reschedule();
+    }
+  }
+
+  // stop the deadline of a request, return false if it was not armed (or already timed out)
+  boolean disarm(Object key)
+  {
+    synchronized (this) {
+      return deadlines.remove(key) != null;
+    }
+  }
+
+  void clear()
+  {
+    synchronized (this) {
+      deadlines.clear();
+      scheduledAt = 0;
+      handler.removeCallbacks(checkRunnable);
+    }
+  }
+
+  // notify the requests past their deadline, then wait for the next one
+  private void check()
+  {
+    List<Object> expired = new ArrayList<>();
+
+    synchronized (this) {
+      long now = SystemClock.elapsedRealtime();
+      Iterator<Map.Entry<Object, Long>> iterator = deadlines.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Object, Long> entry = iterator.next();
+        if (entry.getValue() <= now) {
+          expired.add(entry.getKey());
+          iterator.remove();
+        }
+      }
+
+      scheduledAt = 0;
+      reschedule();
+    }
+
+    for (Object key : expired) {
+      listener.onTimeout(key);
+    }
+  }
+
+  // schedule the check for the earliest deadline, unless an earlier check is already scheduled (guarded by 'this')
+  private void reschedule()
+  {
+    long earliest = 0;
+    for (long deadline : deadlines.values()) {
+      if ((earliest == 0) || (deadline < earliest)) {
+        earliest = deadline;
+      }
+    }
+
+    if ((earliest == 0) || ((scheduledAt != 0) && (scheduledAt <= earliest))) {
+      return;
+    }
+
+    handler.removeCallbacks(checkRunnable);
+    handler.postDelayed(checkRunnable, Math.max(earliest - SystemClock.elapsedRealtime(), 0));
+    scheduledAt = earliest;
+  }
+}
@@ -0,0 +1,42 @@
+// Handler.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package android.os;
+
+/**
+ * JVM stand-in for the android.jar stub, posting to the queue of its {@link Looper}.
+ */
+public class Handler
+{
+  private final Looper looper;
+
+  public Handler(Looper looper)
+  {
+    this.looper = looper;
+  }
+
+  public final Looper getLooper()
+  {
+    return looper;
+  }
+
+  public final boolean post(Runnable runnable)
+  {
+    return postDelayed(runnable, 0);
+  }
+
+  public final boolean postDelayed(Runnable runnable, long delayMillis)
+  {
+    looper.enqueue(this, runnable, SystemClock.uptimeMillis() + Math.max(delayMillis, 0));
+    return true;
+  }
+
+  public final void removeCallbacks(Runnable runnable)
+  {
+    looper.remove(this, runnable);
+  }
+}
@@ -0,0 +1,161 @@
+// Looper.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM stand-in for the android.jar stub: the main looper is a "main" thread running what is posted to its
+ * handlers, in time order, so plugin code that hops to the UI thread runs as it does on a device.
+ * <p>
+ * Delayed messages follow {@link SystemClock}, so moving the clock forward makes them due. A message that throws
+ * is reported by {@link #takeFailure()} instead of killing the thread.
+ */
+public final class Looper
+{
+  // how long the loop sleeps at most while a delayed message is pending, the clock may be advanced meanwhile
+  private static final long POLL_MS = 10;
+
+  private static final Looper main = new Looper();
+
+  /**
+   * A posted runnable.
+   */
+  private static final class Message implements Comparable<Message>
+  {
+    final Handler handler;
+    final Runnable callback;
+    final long when;
+    final long order;
+
+    Message(Handler handler, Runnable callback, long when, long order)
+    {
+      this.handler = handler;
+      this.callback = callback;
+      this.when = when;
+      this.order = order;
+    }
+
+    @Override
+    public int compareTo(Message other) {
+      if (when != other.when) {
+        return (when < other.when) ? -1 : 1;
+      }
+      return Long.compare(order, other.order);
+    }
+  }
+
+  // guarded by 'this'
+  private final PriorityQueue<Message> messages = new PriorityQueue<>();
+  private long posted = 0;
+
+  private volatile Throwable failure = null;
+  private final Thread thread;
+
+  private Looper()
+  {
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, "main");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public static Looper getMainLooper()
+  {
+    return main;
+  }
+
+  public static Looper myLooper()
+  {
+    return (Thread.currentThread() == main.thread) ? main : null;
+  }
+
+  public Thread getThread()
+  {
+    return thread;
+  }
+
+  // test only: wait until every message due by now has run, return false on timeout
+  public boolean awaitIdle(long timeoutMs) throws InterruptedException
+  {
+    final CountDownLatch idle = new CountDownLatch(1);
+    enqueue(null, new Runnable() {
+      @Override
+      public void run() {
+        idle.countDown();
+      }
+    }, SystemClock.uptimeMillis());
+
+    return idle.await(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  // test only: return and clear the first exception thrown by a message
+  public Throwable takeFailure()
+  {
+    Throwable thrown = failure;
+    failure = null;
+    return thrown;
+  }
+
+  synchronized void enqueue(Handler handler, Runnable callback, long when)
+  {
+    messages.add(new Message(handler, callback, when, posted++));
+    notifyAll();
+  }
+
+  synchronized void remove(Handler handler, Runnable callback)
+  {
+    for (Iterator<Message> it = messages.iterator(); it.hasNext(); ) {
+      Message message = it.next();
+      if ((message.handler == handler) && (message.callback == callback)) {
+        it.remove();
+      }
+    }
+  }
+
+  private void loop()
+  {
+    while (true) {
+      Message next;
+
+      synchronized (this) {
+        while (true) {
+          next = messages.peek();
+          long now = SystemClock.uptimeMillis();
+          if ((next != null) && (next.when <= now)) {
+            messages.poll();
+            break;
+          }
+
+          try {
+            wait((next == null) ? 0 : Math.min(next.when - now, POLL_MS));
+          }
+          catch (InterruptedException ex) {
+            return;
+          }
+        }
+      }
+
+      try {
+        next.callback.run();
+      }
+      catch (Throwable ex) {
+        if (failure == null) {
+          failure = ex;
+        }
+      }
+    }
+  }
+}
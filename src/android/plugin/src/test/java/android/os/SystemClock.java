@@ -0,0 +1,47 @@
+// SystemClock.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package android.os;
+
+/**
+ * JVM stand-in for the android.jar stub, so plugin classes can be tested without a device.
+ * <p>
+ * Time starts one hour after "boot" (so it is never 0, which the plugin reads as "not set") and can be moved
+ * forward with {@link #advance(long)}.
+ */
+public final class SystemClock
+{
+  private static final long BOOT_OFFSET_NANOS = 60L * 60 * 1000000000L;
+  private static final long ORIGIN = System.nanoTime();
+
+  private static volatile long advancedNanos = 0;
+
+  private SystemClock()
+  {
+  }
+
+  public static long elapsedRealtime()
+  {
+    return elapsedRealtimeNanos() / 1000000;
+  }
+
+  public static long elapsedRealtimeNanos()
+  {
+    return (System.nanoTime() - ORIGIN) + BOOT_OFFSET_NANOS + advancedNanos;
+  }
+
+  public static long uptimeMillis()
+  {
+    return elapsedRealtime();
+  }
+
+  // test only: move the clock forward by 'ms'
+  public static synchronized void advance(long ms)
+  {
+    advancedNanos += ms * 1000000;
+  }
+}
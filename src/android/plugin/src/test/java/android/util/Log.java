@@ -0,0 +1,51 @@
+// Log.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package android.util;
+
+/**
+ * JVM stand-in for the android.jar stub: errors and warnings go to stderr, the rest is dropped.
+ */
+public final class Log
+{
+  private Log()
+  {
+  }
+
+  public static int e(String tag, String msg)
+  {
+    System.err.println(tag + " E " + msg);
+    return 0;
+  }
+
+  public static int e(String tag, String msg, Throwable tr)
+  {
+    System.err.println(tag + " E " + msg + " " + tr);
+    return 0;
+  }
+
+  public static int w(String tag, String msg)
+  {
+    System.err.println(tag + " W " + msg);
+    return 0;
+  }
+
+  public static int i(String tag, String msg)
+  {
+    return 0;
+  }
+
+  public static int d(String tag, String msg)
+  {
+    return 0;
+  }
+
+  public static int v(String tag, String msg)
+  {
+    return 0;
+  }
+}
@@ -0,0 +1,90 @@
+// CoronaActivity.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.ansca.corona;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.FrameLayout;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import plugin.chartboost.InMemoryPreferences;
+
+/**
+ * JVM stand-in for the Corona activity: the UI thread is the main {@link Looper}, files and preferences stay in
+ * a test directory and in memory. It is its own application context.
+ */
+public class CoronaActivity extends ContextWrapper
+{
+  private final File directory;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Map<String, SharedPreferences> preferences = new HashMap<>();
+  private FrameLayout overlayView = null;
+
+  public CoronaActivity(File directory)
+  {
+    super(null);
+    this.directory = directory;
+  }
+
+  // run right away on the UI thread, else post to it
+  public void runOnUiThread(Runnable action)
+  {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      action.run();
+    }
+    else {
+      handler.post(action);
+    }
+  }
+
+  public FrameLayout getOverlayView()
+  {
+    if (overlayView == null) {
+      overlayView = new FrameLayout(this);
+    }
+    return overlayView;
+  }
+
+  @Override
+  public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+    SharedPreferences namedPreferences = preferences.get(name);
+    if (namedPreferences == null) {
+      namedPreferences = new InMemoryPreferences();
+      preferences.put(name, namedPreferences);
+    }
+    return namedPreferences;
+  }
+
+  @Override
+  public File getCacheDir() {
+    return subdirectory("cache");
+  }
+
+  @Override
+  public File getFilesDir() {
+    return subdirectory("files");
+  }
+
+  @Override
+  public Context getApplicationContext() {
+    return this;
+  }
+
+  private File subdirectory(String name)
+  {
+    File subdirectory = new File(directory, name);
+    subdirectory.mkdirs();
+    return subdirectory;
+  }
+}
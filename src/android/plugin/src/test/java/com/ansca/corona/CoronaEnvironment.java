@@ -0,0 +1,50 @@
+// CoronaEnvironment.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.ansca.corona;
+
+import android.content.Context;
+
+/**
+ * JVM stand-in for the Corona environment. Runtime listeners are not kept, the test calls its plugin's
+ * listener methods itself.
+ */
+public final class CoronaEnvironment
+{
+  private static volatile CoronaActivity coronaActivity = null;
+  private static volatile Context applicationContext = null;
+
+  private CoronaEnvironment()
+  {
+  }
+
+  public static void addRuntimeListener(CoronaRuntimeListener listener)
+  {
+  }
+
+  public static CoronaActivity getCoronaActivity()
+  {
+    return coronaActivity;
+  }
+
+  public static Context getApplicationContext()
+  {
+    return applicationContext;
+  }
+
+  // test only: the activity of the running session, null once it is destroyed
+  public static void setCoronaActivity(CoronaActivity activity)
+  {
+    coronaActivity = activity;
+  }
+
+  // test only
+  public static void setApplicationContext(Context context)
+  {
+    applicationContext = context;
+  }
+}
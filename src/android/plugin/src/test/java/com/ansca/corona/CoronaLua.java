@@ -0,0 +1,99 @@
+// CoronaLua.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.ansca.corona;
+
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JVM stand-in for the Corona Lua helpers, over the stand-in {@link LuaState}. Listeners are Java functions,
+ * or tables with a Java function named after the event.
+ */
+public final class CoronaLua
+{
+  public static final int REFNIL = -1;
+
+  private static final Map<Integer, Object> refs = new ConcurrentHashMap<>();
+  private static final AtomicInteger nextRef = new AtomicInteger(0);
+
+  private CoronaLua()
+  {
+  }
+
+  public static int newRef(LuaState L, int index)
+  {
+    Object value = L.value(index);
+    if (value == null) {
+      return REFNIL;
+    }
+
+    int ref = nextRef.incrementAndGet();
+    refs.put(ref, value);
+    return ref;
+  }
+
+  public static void deleteRef(LuaState L, int ref)
+  {
+    refs.remove(ref);
+  }
+
+  public static boolean isListener(LuaState L, int index, String eventName)
+  {
+    Object value = L.value(index);
+    if (value instanceof LuaState.Table) {
+      value = ((LuaState.Table) value).get(eventName);
+    }
+    return value instanceof JavaFunction;
+  }
+
+  public static void newEvent(LuaState L, String eventName)
+  {
+    L.newTable();
+    L.pushString(eventName);
+    L.setField(-2, "name");
+  }
+
+  public static void pushValue(LuaState L, Object value)
+  {
+    L.push(value);
+  }
+
+  // call the listener with the event on top of the stack, the event is popped
+  public static void dispatchEvent(LuaState L, int listenerRef, int nresults) throws Exception
+  {
+    Object listener = refs.get(listenerRef);
+    if (listener == null) {
+      throw new IllegalStateException("no listener for ref " + listenerRef);
+    }
+
+    Object event = L.value(-1);
+    L.pop(1);
+
+    if (listener instanceof LuaState.Table) {
+      L.push(((LuaState.Table) listener).get(((LuaState.Table) event).get("name")));
+      L.push(listener);
+      L.push(event);
+      L.call(2, nresults);
+    }
+    else {
+      L.push(listener);
+      L.push(event);
+      L.call(1, nresults);
+    }
+  }
+
+  // test only: number of live references, a runtime that exited must have released its own
+  public static int refCount()
+  {
+    return refs.size();
+  }
+}
@@ -0,0 +1,56 @@
+// CoronaRuntime.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.ansca.corona;
+
+import com.naef.jnlua.LuaState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM stand-in for the Corona runtime. Tasks sent to it wait until the test, acting as the Lua thread, runs
+ * them with {@link #runTasks()}.
+ */
+public class CoronaRuntime
+{
+  private final LuaState luaState;
+
+  private List<CoronaRuntimeTask> tasks = new ArrayList<>();  // guarded by 'this'
+
+  public CoronaRuntime(LuaState luaState)
+  {
+    this.luaState = luaState;
+  }
+
+  public LuaState getLuaState()
+  {
+    return luaState;
+  }
+
+  // test only: queue a task for the Lua thread
+  public synchronized void post(CoronaRuntimeTask task)
+  {
+    tasks.add(task);
+  }
+
+  // test only: run the queued tasks on the calling thread, return how many ran
+  public int runTasks()
+  {
+    List<CoronaRuntimeTask> batch;
+    synchronized (this) {
+      batch = tasks;
+      tasks = new ArrayList<>();
+    }
+
+    for (CoronaRuntimeTask task : batch) {
+      task.executeUsing(this);
+    }
+
+    return batch.size();
+  }
+}
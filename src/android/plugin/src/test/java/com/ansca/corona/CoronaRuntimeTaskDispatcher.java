@@ -0,0 +1,26 @@
+// CoronaRuntimeTaskDispatcher.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.ansca.corona;
+
+/**
+ * JVM stand-in for the Corona task dispatcher, queuing tasks on its {@link CoronaRuntime}.
+ */
+public class CoronaRuntimeTaskDispatcher
+{
+  private final CoronaRuntime runtime;
+
+  public CoronaRuntimeTaskDispatcher(CoronaRuntime runtime)
+  {
+    this.runtime = runtime;
+  }
+
+  public void send(CoronaRuntimeTask task)
+  {
+    runtime.post(task);
+  }
+}
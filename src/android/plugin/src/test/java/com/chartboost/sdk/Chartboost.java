@@ -0,0 +1,87 @@
+// Chartboost.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk;
+
+import android.content.Context;
+
+import com.chartboost.sdk.ads.Ad;
+import com.chartboost.sdk.callbacks.StartCallback;
+import com.chartboost.sdk.privacy.model.DataUseConsent;
+
+/**
+ * JVM stand-in for the Chartboost SDK entry point. Start requests, and the cache and show requests of the ad
+ * stand-ins, go to the {@link Backend} the test installed, which answers them through the callbacks.
+ */
+public final class Chartboost
+{
+  /**
+   * The test's side of the SDK.
+   */
+  public interface Backend
+  {
+    void onStart(StartCallback callback);
+    void onCreated(Ad ad);
+    void onCache(Ad ad);
+    void onShow(Ad ad);
+  }
+
+  // a backend that never answers
+  private static final Backend SILENT = new Backend() {
+    @Override
+    public void onStart(StartCallback callback) {
+    }
+
+    @Override
+    public void onCreated(Ad ad) {
+    }
+
+    @Override
+    public void onCache(Ad ad) {
+    }
+
+    @Override
+    public void onShow(Ad ad) {
+    }
+  };
+
+  private static volatile Backend backend = SILENT;
+
+  private Chartboost()
+  {
+  }
+
+  public static String getSDKVersion()
+  {
+    return "9.7.0";
+  }
+
+  public static void startWithAppId(Context context, String appId, String appSignature, StartCallback onStarted)
+  {
+    backend.onStart(onStarted);
+  }
+
+  public static void addDataUseConsent(Context context, DataUseConsent dataUseConsent)
+  {
+  }
+
+  public static void clearDataUseConsent(Context context, String privacyStandard)
+  {
+  }
+
+  // test only: null for a backend that never answers
+  public static void setBackend(Backend newBackend)
+  {
+    backend = (newBackend != null) ? newBackend : SILENT;
+  }
+
+  // test only
+  public static Backend getBackend()
+  {
+    return backend;
+  }
+}
@@ -0,0 +1,20 @@
+// Ad.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.ads;
+
+/**
+ * JVM stand-in for the SDK ad interface.
+ */
+public interface Ad
+{
+  String getLocation();
+  void cache();
+  void show();
+  boolean isCached();
+  void clearCache();
+}
@@ -0,0 +1,87 @@
+// Banner.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.ads;
+
+import android.content.Context;
+import android.widget.FrameLayout;
+
+import com.chartboost.sdk.Chartboost;
+import com.chartboost.sdk.Mediation;
+import com.chartboost.sdk.callbacks.BannerCallback;
+
+/**
+ * JVM stand-in for the SDK banner view, requests go to the test's {@link Chartboost.Backend}.
+ */
+public final class Banner extends FrameLayout implements Ad
+{
+  public enum BannerSize
+  {
+    STANDARD, MEDIUM, LEADERBOARD
+  }
+
+  private final String location;
+  private final BannerCallback callback;
+  private volatile boolean cached = false;
+  private volatile boolean detached = false;
+
+  public Banner(Context context, String location, BannerSize size, BannerCallback callback, Mediation mediation)
+  {
+    super(context);
+    this.location = location;
+    this.callback = callback;
+    Chartboost.getBackend().onCreated(this);
+  }
+
+  @Override
+  public String getLocation() {
+    return location;
+  }
+
+  @Override
+  public void cache() {
+    Chartboost.getBackend().onCache(this);
+  }
+
+  @Override
+  public void show() {
+    Chartboost.getBackend().onShow(this);
+  }
+
+  @Override
+  public boolean isCached() {
+    return cached;
+  }
+
+  @Override
+  public void clearCache() {
+    cached = false;
+  }
+
+  public void detach()
+  {
+    detached = true;
+  }
+
+  // test only
+  public BannerCallback getCallback()
+  {
+    return callback;
+  }
+
+  // test only
+  public void setCached(boolean cached)
+  {
+    this.cached = cached;
+  }
+
+  // test only
+  public boolean isDetached()
+  {
+    return detached;
+  }
+}
@@ -0,0 +1,66 @@
+// Rewarded.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.ads;
+
+import com.chartboost.sdk.Chartboost;
+import com.chartboost.sdk.Mediation;
+import com.chartboost.sdk.callbacks.RewardedCallback;
+
+/**
+ * JVM stand-in for the SDK rewarded ad, requests go to the test's {@link Chartboost.Backend}.
+ */
+public final class Rewarded implements Ad
+{
+  private final String location;
+  private final RewardedCallback callback;
+  private volatile boolean cached = false;
+
+  public Rewarded(String location, RewardedCallback callback, Mediation mediation)
+  {
+    this.location = location;
+    this.callback = callback;
+    Chartboost.getBackend().onCreated(this);
+  }
+
+  @Override
+  public String getLocation() {
+    return location;
+  }
+
+  @Override
+  public void cache() {
+    Chartboost.getBackend().onCache(this);
+  }
+
+  @Override
+  public void show() {
+    Chartboost.getBackend().onShow(this);
+  }
+
+  @Override
+  public boolean isCached() {
+    return cached;
+  }
+
+  @Override
+  public void clearCache() {
+    cached = false;
+  }
+
+  // test only
+  public RewardedCallback getCallback()
+  {
+    return callback;
+  }
+
+  // test only
+  public void setCached(boolean cached)
+  {
+    this.cached = cached;
+  }
+}
@@ -0,0 +1,38 @@
+// CacheError.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.events;
+
+/**
+ * JVM stand-in for the SDK error of a failed cache request.
+ */
+public class CacheError
+{
+  public enum Code
+  {
+    INTERNAL, INTERNET_UNAVAILABLE, NETWORK_FAILURE, NO_AD_FOUND, SESSION_NOT_STARTED, SERVER_ERROR
+  }
+
+  private final Code code;
+  private final Exception exception;
+
+  public CacheError(Code code, Exception exception)
+  {
+    this.code = code;
+    this.exception = exception;
+  }
+
+  public Code getCode()
+  {
+    return code;
+  }
+
+  public Exception getException()
+  {
+    return exception;
+  }
+}
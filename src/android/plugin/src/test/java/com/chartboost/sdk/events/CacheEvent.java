@@ -0,0 +1,28 @@
+// CacheEvent.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.events;
+
+import com.chartboost.sdk.ads.Ad;
+
+/**
+ * JVM stand-in for the SDK event of a cache request.
+ */
+public class CacheEvent
+{
+  private final Ad ad;
+
+  public CacheEvent(Ad ad)
+  {
+    this.ad = ad;
+  }
+
+  public Ad getAd()
+  {
+    return ad;
+  }
+}
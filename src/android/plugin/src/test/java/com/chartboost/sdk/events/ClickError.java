@@ -0,0 +1,38 @@
+// ClickError.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.events;
+
+/**
+ * JVM stand-in for the SDK error of a failed click.
+ */
+public class ClickError
+{
+  public enum Code
+  {
+    INTERNAL, URI_INVALID, URI_UNRECOGNIZED
+  }
+
+  private final Code code;
+  private final Exception exception;
+
+  public ClickError(Code code, Exception exception)
+  {
+    this.code = code;
+    this.exception = exception;
+  }
+
+  public Code getCode()
+  {
+    return code;
+  }
+
+  public Exception getException()
+  {
+    return exception;
+  }
+}
@@ -0,0 +1,35 @@
+// RewardEvent.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.events;
+
+import com.chartboost.sdk.ads.Ad;
+
+/**
+ * JVM stand-in for the SDK event of an earned reward.
+ */
+public class RewardEvent
+{
+  private final Ad ad;
+  private final int reward;
+
+  public RewardEvent(Ad ad, int reward)
+  {
+    this.ad = ad;
+    this.reward = reward;
+  }
+
+  public Ad getAd()
+  {
+    return ad;
+  }
+
+  public int getReward()
+  {
+    return reward;
+  }
+}
@@ -0,0 +1,38 @@
+// ShowError.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.events;
+
+/**
+ * JVM stand-in for the SDK error of a failed show.
+ */
+public class ShowError
+{
+  public enum Code
+  {
+    INTERNAL, SESSION_NOT_STARTED, AD_ALREADY_VISIBLE, INTERNET_UNAVAILABLE, PRESENTATION_FAILURE, NO_CACHED_AD
+  }
+
+  private final Code code;
+  private final Exception exception;
+
+  public ShowError(Code code, Exception exception)
+  {
+    this.code = code;
+    this.exception = exception;
+  }
+
+  public Code getCode()
+  {
+    return code;
+  }
+
+  public Exception getException()
+  {
+    return exception;
+  }
+}
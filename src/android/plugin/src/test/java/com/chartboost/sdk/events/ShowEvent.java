@@ -0,0 +1,28 @@
+// ShowEvent.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.events;
+
+import com.chartboost.sdk.ads.Ad;
+
+/**
+ * JVM stand-in for the SDK event of a show.
+ */
+public class ShowEvent
+{
+  private final Ad ad;
+
+  public ShowEvent(Ad ad)
+  {
+    this.ad = ad;
+  }
+
+  public Ad getAd()
+  {
+    return ad;
+  }
+}
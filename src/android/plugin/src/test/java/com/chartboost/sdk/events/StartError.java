@@ -0,0 +1,38 @@
+// StartError.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.chartboost.sdk.events;
+
+/**
+ * JVM stand-in for the SDK error of a failed SDK start.
+ */
+public class StartError
+{
+  public enum Code
+  {
+    INVALID_CREDENTIALS, NETWORK_FAILURE, SERVER_ERROR, INTERNAL
+  }
+
+  private final Code code;
+  private final Exception exception;
+
+  public StartError(Code code, Exception exception)
+  {
+    this.code = code;
+    this.exception = exception;
+  }
+
+  public Code getCode()
+  {
+    return code;
+  }
+
+  public Exception getException()
+  {
+    return exception;
+  }
+}
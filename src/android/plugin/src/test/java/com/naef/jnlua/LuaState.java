@@ -0,0 +1,371 @@
+// LuaState.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package com.naef.jnlua;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the JNLua state of the Corona runtime: a value stack and tables kept in Java, enough for the
+ * plugin's argument parsing, event building and function registration.
+ * <p>
+ * Lua values are null (nil), Boolean, Double, String, {@link Table} and {@link JavaFunction}. Like the real state it
+ * is not thread safe, only the thread running Lua may use it.
+ */
+public class LuaState
+{
+  /**
+   * A Lua table, entries in insertion order, number keys as Doubles.
+   */
+  public static final class Table
+  {
+    public final Map<Object, Object> entries = new LinkedHashMap<>();
+
+    public Object get(Object key)
+    {
+      return entries.get(keyOf(key));
+    }
+
+    public void put(Object key, Object value)
+    {
+      if (value == null) {
+        entries.remove(keyOf(key));
+      }
+      else {
+        entries.put(keyOf(key), value);
+      }
+    }
+
+    private static Object keyOf(Object key)
+    {
+      return (key instanceof Number) ? (Object) ((Number) key).doubleValue() : key;
+    }
+  }
+
+  private final List<Object> stack = new ArrayList<>();
+  private final Map<String, Table> modules = new HashMap<>();
+
+  // first slot of the running function's frame
+  private int base = 0;
+
+  public int getTop()
+  {
+    return stack.size() - base;
+  }
+
+  public void setTop(int index)
+  {
+    int top = (index >= 0) ? base + index : stack.size() + index + 1;
+    while (stack.size() > top) {
+      stack.remove(stack.size() - 1);
+    }
+    while (stack.size() < top) {
+      stack.add(null);
+    }
+  }
+
+  public LuaType type(int index)
+  {
+    if (! isValid(index)) {
+      return null;
+    }
+
+    Object value = value(index);
+    if (value == null) {
+      return LuaType.NIL;
+    }
+    else if (value instanceof Boolean) {
+      return LuaType.BOOLEAN;
+    }
+    else if (value instanceof Double) {
+      return LuaType.NUMBER;
+    }
+    else if (value instanceof String) {
+      return LuaType.STRING;
+    }
+    else if (value instanceof Table) {
+      return LuaType.TABLE;
+    }
+    else if (value instanceof JavaFunction) {
+      return LuaType.FUNCTION;
+    }
+
+    return LuaType.USERDATA;
+  }
+
+  public String typeName(int index)
+  {
+    LuaType type = type(index);
+    return (type == null) ? "no value" : type.name().toLowerCase(Locale.US);
+  }
+
+  public boolean isNoneOrNil(int index)
+  {
+    return ! isValid(index) || (value(index) == null);
+  }
+
+  public String toString(int index)
+  {
+    Object value = value(index);
+    if (value instanceof Double) {
+      double number = (Double) value;
+      return (number == Math.rint(number)) ? Long.toString((long) number) : value.toString();
+    }
+
+    return (value instanceof String) ? (String) value : null;
+  }
+
+  public double toNumber(int index)
+  {
+    Object value = value(index);
+    if (value instanceof Double) {
+      return (Double) value;
+    }
+    else if (value instanceof String) {
+      try {
+        return Double.parseDouble((String) value);
+      }
+      catch (NumberFormatException ex) {
+        return 0;
+      }
+    }
+
+    return 0;
+  }
+
+  public boolean toBoolean(int index)
+  {
+    Object value = value(index);
+    return (value != null) && !Boolean.FALSE.equals(value);
+  }
+
+  public void pushNil()
+  {
+    stack.add(null);
+  }
+
+  public void pushBoolean(boolean value)
+  {
+    stack.add(value);
+  }
+
+  public void pushNumber(double value)
+  {
+    stack.add(value);
+  }
+
+  public void pushString(String value)
+  {
+    stack.add(value);
+  }
+
+  public void pushValue(int index)
+  {
+    stack.add(value(index));
+  }
+
+  public void pushJavaFunction(JavaFunction function)
+  {
+    stack.add(function);
+  }
+
+  public void pop(int count)
+  {
+    setTop(-count - 1);
+  }
+
+  public void newTable()
+  {
+    stack.add(new Table());
+  }
+
+  public void newTable(int arrayCount, int recordCount)
+  {
+    newTable();
+  }
+
+  // t[key] = value on top, the value is popped
+  public void setField(int index, String key)
+  {
+    Table table = table(index);
+    table.put(key, popValue());
+  }
+
+  public void getField(int index, String key)
+  {
+    stack.add(table(index).get(key));
+  }
+
+  public void rawSet(int index, int key)
+  {
+    Table table = table(index);
+    table.put(key, popValue());
+  }
+
+  public void rawGet(int index, int key)
+  {
+    stack.add(table(index).get(key));
+  }
+
+  public int length(int index)
+  {
+    Object value = value(index);
+    if (value instanceof String) {
+      return ((String) value).length();
+    }
+    else if (value instanceof Table) {
+      int length = 0;
+      while (((Table) value).get(length + 1) != null) {
+        length++;
+      }
+      return length;
+    }
+
+    return 0;
+  }
+
+  public int rawLen(int index)
+  {
+    return length(index);
+  }
+
+  // pop a key, push the next key and value of the table, or nothing at the end
+  public boolean next(int index)
+  {
+    Table table = table(index);
+    Object key = popValue();
+
+    Iterator<Map.Entry<Object, Object>> entries = table.entries.entrySet().iterator();
+    if (key != null) {
+      while (entries.hasNext() && !entries.next().getKey().equals(Table.keyOf(key))) {
+        // skip to the key
+      }
+    }
+
+    if (! entries.hasNext()) {
+      return false;
+    }
+
+    Map.Entry<Object, Object> entry = entries.next();
+    stack.add(entry.getKey());
+    stack.add(entry.getValue());
+    return true;
+  }
+
+  // create (or extend) the module table, push it
+  public void register(String moduleName, NamedJavaFunction[] functions)
+  {
+    Table module = modules.get(moduleName);
+    if (module == null) {
+      module = new Table();
+      modules.put(moduleName, module);
+    }
+
+    for (NamedJavaFunction function : functions) {
+      module.put(function.getName(), function);
+    }
+
+    stack.add(module);
+  }
+
+  // call the function below the 'nargs' arguments on top, in a frame of its own, and push 'nresults' results
+  // (all of them if negative)
+  public void call(int nargs, int nresults)
+  {
+    int functionSlot = stack.size() - nargs - 1;
+    Object function = stack.get(functionSlot);
+    if (! (function instanceof JavaFunction)) {
+      throw new IllegalStateException("attempt to call a " + typeName(functionSlot - base + 1) + " value");
+    }
+
+    int callerBase = base;
+    List<Object> results;
+    base = functionSlot + 1;
+    try {
+      int count = ((JavaFunction) function).invoke(this);
+      results = new ArrayList<>(stack.subList(Math.max(stack.size() - count, base), stack.size()));
+    }
+    finally {
+      while (stack.size() > functionSlot) {
+        stack.remove(stack.size() - 1);
+      }
+      base = callerBase;
+    }
+
+    int count = (nresults < 0) ? results.size() : nresults;
+    for (int i = 0; i < count; i++) {
+      stack.add((i < results.size()) ? results.get(i) : null);
+    }
+  }
+
+  // test only: push a Java value, maps and lists become tables
+  public void push(Object value)
+  {
+    stack.add(luaValueOf(value));
+  }
+
+  // test only: the value at an index, null for nil or none
+  public Object value(int index)
+  {
+    return isValid(index) ? stack.get(slotOf(index)) : null;
+  }
+
+  private static Object luaValueOf(Object value)
+  {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    else if (value instanceof Map) {
+      Table table = new Table();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        table.put(entry.getKey(), luaValueOf(entry.getValue()));
+      }
+      return table;
+    }
+    else if (value instanceof List) {
+      Table table = new Table();
+      List<?> list = (List<?>) value;
+      for (int i = 0; i < list.size(); i++) {
+        table.put(i + 1, luaValueOf(list.get(i)));
+      }
+      return table;
+    }
+
+    return value;
+  }
+
+  private int slotOf(int index)
+  {
+    return (index > 0) ? base + index - 1 : stack.size() + index;
+  }
+
+  private boolean isValid(int index)
+  {
+    int slot = slotOf(index);
+    return (index != 0) && (slot >= base) && (slot < stack.size());
+  }
+
+  private Table table(int index)
+  {
+    Object value = value(index);
+    if (! (value instanceof Table)) {
+      throw new IllegalStateException("table expected at " + index + ", got " + typeName(index));
+    }
+    return (Table) value;
+  }
+
+  private Object popValue()
+  {
+    return stack.remove(stack.size() - 1);
+  }
+}
@@ -0,0 +1,260 @@
+// AdSlotTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import com.chartboost.sdk.ads.Ad;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AdSlot as used by the plugin: loads on the UI thread, shows on the Lua thread, SDK callbacks on the
+ * callback worker and the cache watchdog on the UI thread.
+ */
+public class AdSlotTest
+{
+  private static final int ROUNDS = 2000;
+
+  @Test
+  public void loadedAndTimedOutCompleteARequestOnce() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      // a timed out banner keeps its place in the slot, other ads leave it
+      final boolean banner = (round % 2) == 1;
+      final AdSlot slot = new AdSlot(banner ? "banner" : "interstitial", "level");
+      final FakeAd fake = new FakeAd("level");
+      slot.add(fake.ad);
+
+      final AtomicBoolean loaded = new AtomicBoolean();
+      final AtomicBoolean timedOut = new AtomicBoolean();
+
+      Interleaving.run(
+        // callback worker
+        new Runnable() {
+          @Override
+          public void run() {
+            fake.cached = true;
+            loaded.set(slot.onLoaded(fake.ad, true));
+          }
+        },
+        // cache watchdog
+        new Runnable() {
+          @Override
+          public void run() {
+            timedOut.set(slot.onTimedOut(fake.ad, banner));
+          }
+        }
+      );
+
+      assertTrue("exactly one completion wins", loaded.get() ^ timedOut.get());
+      if (loaded.get()) {
+        assertEquals(1, slot.size());
+        assertSame(fake.ad, slot.firstCached(0));
+      }
+      else {
+        assertEquals(banner ? 1 : 0, slot.size());
+      }
+    }
+  }
+
+  @Test
+  public void showRacingReloadAndItsCallback() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final AdSlot slot = new AdSlot("interstitial", "level");
+      final FakeAd first = new FakeAd("level");
+      final FakeAd second = new FakeAd("level");
+
+      slot.add(first.ad);
+      first.cached = true;
+      assertTrue(slot.onLoaded(first.ad, true));
+
+      final AtomicReference<Ad> shown = new AtomicReference<>();
+      final AtomicBoolean secondRequested = new AtomicBoolean();
+      final AtomicBoolean secondLoaded = new AtomicBoolean();
+
+      Interleaving.run(
+        // Lua thread: chartboost.show()
+        new Runnable() {
+          @Override
+          public void run() {
+            Ad ad = slot.firstCached(0);
+            if (ad != null) {
+              slot.remove(ad);
+              shown.set(ad);
+            }
+          }
+        },
+        // UI thread: chartboost.load() of the same location
+        new Runnable() {
+          @Override
+          public void run() {
+            int missing = slot.prepareLoad();
+            assertEquals(1, missing);
+            slot.add(second.ad);
+            secondRequested.set(true);
+          }
+        },
+        // SDK + callback worker: the new ad is cached, its callback is handled a bit later
+        new Runnable() {
+          @Override
+          public void run() {
+            while (!secondRequested.get()) {
+              Thread.yield();
+            }
+            second.cached = true;
+            secondLoaded.set(slot.onLoaded(second.ad, true));
+          }
+        }
+      );
+
+      Ad ad = shown.get();
+      assertTrue((ad == null) || (ad == first.ad) || (ad == second.ad));
+      if (!secondLoaded.get()) {
+        assertSame("a callback is only ignored for an ad already shown", second.ad, ad);
+      }
+
+      // the load always adds the new ad, a single-ad slot never holds more than one
+      assertEquals((ad == second.ad) ? 0 : 1, slot.size());
+      if (ad != null) {
+        assertNotEquals(ad, slot.firstCached(0));
+      }
+    }
+  }
+
+  @Test
+  public void deepSlotServesEachAdOnceWhileRefilling() throws Exception {
+    final int depth = 3;
+    final int ads = 10000;
+
+    final AdSlot slot = new AdSlot("rewardedVideo", "shop");
+    slot.setDepth(depth);
+
+    final ConcurrentLinkedQueue<FakeAd> requested = new ConcurrentLinkedQueue<>();
+    final Set<Ad> served = Collections.newSetFromMap(new ConcurrentHashMap<Ad, Boolean>());
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger maxSize = new AtomicInteger();
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Interleaving.run(
+      // UI thread: top the slot up
+      new Runnable() {
+        @Override
+        public void run() {
+          while (created.get() < ads) {
+            int missing = slot.prepareLoad();
+            for (int i = 0; i < missing; i++) {
+              FakeAd fake = new FakeAd("shop");
+              slot.add(fake.ad);
+              requested.add(fake);
+              created.incrementAndGet();
+            }
+            maxSize.set(Math.max(maxSize.get(), slot.size()));
+            Thread.yield();
+          }
+          done.set(true);
+        }
+      },
+      // callback worker: requests complete, one in four fails
+      new Runnable() {
+        @Override
+        public void run() {
+          int completed = 0;
+          while (!done.get() || !requested.isEmpty()) {
+            FakeAd fake = requested.poll();
+            if (fake == null) {
+              Thread.yield();
+              continue;
+            }
+
+            // the SDK reports the ad as cached before its callback is handled, it may be shown in between
+            boolean success = (completed++ % 4) != 0;
+            fake.cached = success;
+            if (!slot.onLoaded(fake.ad, success)) {
+              assertTrue("a callback is only ignored for an ad already shown", served.contains(fake.ad));
+            }
+          }
+        }
+      },
+      // Lua thread: show whatever is ready
+      new Runnable() {
+        @Override
+        public void run() {
+          while (!done.get()) {
+            Ad ad = slot.firstCached(0);
+            if (ad == null) {
+              Thread.yield();
+              continue;
+            }
+            assertTrue("an ad is shown once", served.add(ad));
+            slot.remove(ad);
+          }
+        }
+      }
+    );
+
+    assertTrue(maxSize.get() <= depth);
+    assertTrue(slot.size() <= depth);
+    assertFalse(served.isEmpty());
+  }
+
+  @Test
+  public void singleAdSlotKeepsALoadingAd() {
+    AdSlot slot = new AdSlot("interstitial", "level");
+    FakeAd fake = new FakeAd("level");
+
+    slot.add(fake.ad);
+    assertEquals("the pending request is kept", 0, slot.prepareLoad());
+
+    fake.cached = true;
+    assertTrue(slot.onLoaded(fake.ad, true));
+    assertEquals("a cached ad is given up for a new request", 1, slot.prepareLoad());
+    assertEquals(0, slot.size());
+  }
+
+  @Test
+  public void lateCallbackForARemovedAdIsIgnored() {
+    AdSlot slot = new AdSlot("interstitial", "level");
+    FakeAd fake = new FakeAd("level");
+
+    slot.add(fake.ad);
+    slot.remove(fake.ad);
+
+    assertFalse(slot.onLoaded(fake.ad, true));
+    assertFalse(slot.onTimedOut(fake.ad, false));
+    assertNull(slot.firstCached(0));
+  }
+
+  @Test
+  public void timedOutBannerKeepsItsPlace() {
+    AdSlot slot = new AdSlot("banner", "home");
+    FakeAd fake = new FakeAd("home");
+
+    slot.add(fake.ad);
+    assertTrue(slot.onTimedOut(fake.ad, true));
+    assertEquals(1, slot.size());
+
+    // the refresh starts a new request on the same view
+    slot.onLoading(fake.ad);
+    fake.cached = true;
+    assertTrue(slot.onLoaded(fake.ad, true));
+    assertSame(fake.ad, slot.firstCached(0));
+  }
+}
@@ -0,0 +1,156 @@
+// CallbackQueueTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CallbackQueue with callbacks arriving from several SDK threads at once.
+ */
+public class CallbackQueueTest
+{
+  private static final int PRODUCERS = 4;
+  private static final int CALLBACKS_PER_PRODUCER = 20000;
+
+  @Test
+  public void callbacksAreHandledOnceInOrderOnOneThread() throws Exception {
+    final int total = PRODUCERS * CALLBACKS_PER_PRODUCER;
+    final CountDownLatch handled = new CountDownLatch(total);
+    final List<List<Integer>> received = new ArrayList<>();
+    final long[] lastSeq = new long[PRODUCERS];
+    final AtomicInteger outOfSequence = new AtomicInteger();
+    final Set<String> threads = new HashSet<>();
+
+    final FakeAd[] ads = new FakeAd[PRODUCERS];
+    for (int p = 0; p < PRODUCERS; p++) {
+      ads[p] = new FakeAd("location" + p);
+      received.add(new ArrayList<Integer>());
+    }
+
+    // only the worker thread touches 'received', 'lastSeq' and 'threads'
+    final CallbackQueue queue = new CallbackQueue(new CallbackQueue.Handler() {
+      @Override
+      public void handle(CallbackQueue.Callback callback) {
+        for (int p = 0; p < PRODUCERS; p++) {
+          if (callback.ad == ads[p].ad) {
+            received.get(p).add(callback.reward);
+            if (callback.seq <= lastSeq[p]) {
+              outOfSequence.incrementAndGet();
+            }
+            lastSeq[p] = callback.seq;
+          }
+        }
+        threads.add(Thread.currentThread().getName());
+        handled.countDown();
+      }
+    });
+
+    Runnable[] actors = new Runnable[PRODUCERS];
+    for (int p = 0; p < PRODUCERS; p++) {
+      final int producer = p;
+      actors[p] = new Runnable() {
+        @Override
+        public void run() {
+          for (int seq = 0; seq < CALLBACKS_PER_PRODUCER; seq++) {
+            queue.post(CallbackQueue.REWARD_EARNED, ads[producer].ad, null, seq);
+          }
+        }
+      };
+    }
+
+    Interleaving.run(actors);
+    assertTrue("every callback is handled", handled.await(Interleaving.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    queue.shutdown();
+
+    // the latch publishes what the worker recorded
+    assertEquals(1, threads.size());
+    assertTrue(threads.contains("chartboost-callbacks"));
+    assertEquals("sequence numbers follow the capture order", 0, outOfSequence.get());
+
+    for (int p = 0; p < PRODUCERS; p++) {
+      List<Integer> seqs = received.get(p);
+      assertEquals(CALLBACKS_PER_PRODUCER, seqs.size());
+      for (int seq = 0; seq < CALLBACKS_PER_PRODUCER; seq++) {
+        assertEquals("callbacks of one thread keep their order", seq, (int) seqs.get(seq));
+      }
+    }
+  }
+
+  @Test
+  public void failingCallbackDoesNotStopTheQueue() throws Exception {
+    final CountDownLatch handled = new CountDownLatch(2);
+    final AtomicInteger calls = new AtomicInteger();
+
+    CallbackQueue queue = new CallbackQueue(new CallbackQueue.Handler() {
+      @Override
+      public void handle(CallbackQueue.Callback callback) {
+        handled.countDown();
+        if (calls.incrementAndGet() == 1) {
+          throw new IllegalStateException("first callback fails");
+        }
+      }
+    });
+
+    queue.post(CallbackQueue.AD_SHOWN, null, null, 0);
+    queue.post(CallbackQueue.AD_DISMISSED, null, null, 0);
+
+    assertTrue(handled.await(Interleaving.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    queue.shutdown();
+  }
+
+  @Test
+  public void postRacingShutdownIsDropped() throws Exception {
+    for (int round = 0; round < 200; round++) {
+      final AtomicInteger handled = new AtomicInteger();
+      final CallbackQueue queue = new CallbackQueue(new CallbackQueue.Handler() {
+        @Override
+        public void handle(CallbackQueue.Callback callback) {
+          handled.incrementAndGet();
+        }
+      });
+
+      // SDK callbacks keep coming while the app exits, none may throw on the SDK's thread
+      Interleaving.run(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 0; i < 100; i++) {
+              queue.post(CallbackQueue.AD_CLICKED, null, null, i);
+            }
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            queue.shutdown();
+          }
+        }
+      );
+
+      // at most the callback being handled during shutdown() finishes
+      assertTrue("worker stopped", queue.awaitShutdown(Interleaving.TIMEOUT_MS));
+      int settled = handled.get();
+      assertTrue(settled <= 100);
+
+      // no worker is left to run a late post
+      queue.post(CallbackQueue.AD_CLICKED, null, null, 0);
+      assertEquals("nothing is handled once shut down", settled, handled.get());
+    }
+  }
+}
@@ -0,0 +1,170 @@
+// EventBufferTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EventBuffer under the lock LuaLoader holds it with: callbacks enqueue while the runtime is suspended,
+ * the resume flushes.
+ */
+public class EventBufferTest
+{
+  private static final int PRODUCERS = 4;
+  private static final int EVENTS_PER_PRODUCER = 20000;
+
+  @Test
+  public void flushRacingEnqueueDeliversEveryEventOnce() throws Exception {
+    final EventBuffer buffer = new EventBuffer();
+    final List<Map<String, Object>> delivered = new ArrayList<>();
+    final AtomicInteger producing = new AtomicInteger(PRODUCERS);
+    final AtomicInteger replaced = new AtomicInteger();
+
+    Runnable[] actors = new Runnable[PRODUCERS + 1];
+    for (int p = 0; p < PRODUCERS; p++) {
+      final int producer = p;
+      actors[p] = new Runnable() {
+        @Override
+        public void run() {
+          for (int seq = 0; seq < EVENTS_PER_PRODUCER; seq++) {
+            // every other event is a 'loaded' state that coalesces per producer
+            boolean coalesce = (seq % 2) == 1;
+            synchronized (buffer) {
+              if (buffer.add(event(producer, seq, coalesce), coalesce ? "loaded/" + producer : null)) {
+                replaced.incrementAndGet();
+              }
+            }
+          }
+          producing.decrementAndGet();
+        }
+      };
+    }
+
+    // resume: flush whatever is pending, over and over until the producers are done
+    actors[PRODUCERS] = new Runnable() {
+      @Override
+      public void run() {
+        boolean last = false;
+        while (!last) {
+          last = (producing.get() == 0);
+          synchronized (buffer) {
+            delivered.addAll(buffer.drain());
+          }
+        }
+      }
+    };
+
+    Interleaving.run(actors);
+
+    // nothing lost, nothing delivered twice, coalesced events only replaced pending ones
+    assertEquals(PRODUCERS * EVENTS_PER_PRODUCER, delivered.size() + replaced.get());
+
+    int[] nextPlain = new int[PRODUCERS];
+    int[] lastLoaded = new int[PRODUCERS];
+    Arrays.fill(lastLoaded, -1);
+
+    for (Map<String, Object> event : delivered) {
+      int producer = (Integer) event.get("producer");
+      int seq = (Integer) event.get("seq");
+
+      if ((Boolean) event.get("coalesced")) {
+        assertTrue("states are delivered in order", seq > lastLoaded[producer]);
+        lastLoaded[producer] = seq;
+      }
+      else {
+        assertEquals("plain events are delivered once, in order", nextPlain[producer], seq);
+        nextPlain[producer] += 2;
+      }
+    }
+
+    for (int p = 0; p < PRODUCERS; p++) {
+      assertEquals(EVENTS_PER_PRODUCER, nextPlain[p]);
+      assertEquals("the latest state is delivered", EVENTS_PER_PRODUCER - 1, lastLoaded[p]);
+    }
+  }
+
+  @Test
+  public void coalescedEventKeepsItsPosition() {
+    EventBuffer buffer = new EventBuffer();
+
+    assertFalse(buffer.add(event(0, 0, true), "loaded/level"));
+    assertFalse(buffer.add(event(0, 1, false), null));
+    assertTrue(buffer.add(event(0, 2, true), "loaded/level"));
+
+    List<Map<String, Object>> events = buffer.drain();
+    assertEquals(2, events.size());
+    assertEquals(2, events.get(0).get("seq"));
+    assertEquals(1, events.get(1).get("seq"));
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void drainRacingSuspendDoesNotStrandEvents() throws Exception {
+    // LuaLoader buffers only while suspended, the resume clears the flag and drains under the same lock
+    for (int round = 0; round < 2000; round++) {
+      final EventBuffer buffer = new EventBuffer();
+      final AtomicBoolean suspended = new AtomicBoolean(true);
+      final List<Map<String, Object>> dispatched = new ArrayList<>();
+
+      Interleaving.run(
+        new Runnable() {
+          @Override
+          public void run() {
+            synchronized (buffer) {
+              if (suspended.get()) {
+                buffer.add(event(0, 0, false), null);
+                return;
+              }
+            }
+            synchronized (dispatched) {
+              dispatched.add(event(0, 0, false));
+            }
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            List<Map<String, Object>> events;
+            synchronized (buffer) {
+              suspended.set(false);
+              events = buffer.drain();
+            }
+            synchronized (dispatched) {
+              dispatched.addAll(events);
+            }
+          }
+        }
+      );
+
+      assertEquals(1, dispatched.size());
+      assertTrue(buffer.isEmpty());
+    }
+  }
+
+  private static Map<String, Object> event(int producer, int seq, boolean coalesced)
+  {
+    Map<String, Object> event = new HashMap<>();
+    event.put("producer", producer);
+    event.put("seq", seq);
+    event.put("coalesced", coalesced);
+
+    return event;
+  }
+}
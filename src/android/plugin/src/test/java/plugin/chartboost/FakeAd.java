@@ -0,0 +1,74 @@
+// FakeAd.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import com.chartboost.sdk.ads.Ad;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for an SDK ad whose cache state is set by the test.
+ * <p>
+ * The {@link Ad} seen by the plugin is a dynamic proxy, so the stand-in does not depend on the exact set of
+ * methods of the SDK interface: getLocation() and isCached() are answered from this object, cache() and show()
+ * are counted, anything else does nothing.
+ */
+final class FakeAd implements InvocationHandler
+{
+  final String location;
+  final Ad ad;
+
+  volatile boolean cached = false;
+  final AtomicInteger cacheCalls = new AtomicInteger(0);
+  final AtomicInteger showCalls = new AtomicInteger(0);
+
+  FakeAd(String location)
+  {
+    this.location = location;
+    this.ad = (Ad) Proxy.newProxyInstance(Ad.class.getClassLoader(), new Class<?>[] { Ad.class }, this);
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    String name = method.getName();
+
+    if (name.equals("getLocation")) {
+      return location;
+    }
+    else if (name.equals("isCached")) {
+      return cached;
+    }
+    else if (name.equals("cache")) {
+      cacheCalls.incrementAndGet();
+    }
+    else if (name.equals("show")) {
+      showCalls.incrementAndGet();
+    }
+    else if (name.equals("equals")) {
+      return proxy == args[0];
+    }
+    else if (name.equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    }
+    else if (name.equals("toString")) {
+      return "FakeAd(" + location + ")";
+    }
+
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) {
+      return false;
+    }
+    else if ((type == int.class) || (type == long.class) || (type == double.class) || (type == float.class)) {
+      return 0;
+    }
+    return null;
+  }
+}
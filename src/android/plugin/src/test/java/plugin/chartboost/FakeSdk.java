@@ -0,0 +1,197 @@
+// FakeSdk.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import com.chartboost.sdk.Chartboost;
+import com.chartboost.sdk.ads.Ad;
+import com.chartboost.sdk.ads.Banner;
+import com.chartboost.sdk.ads.Interstitial;
+import com.chartboost.sdk.ads.Rewarded;
+import com.chartboost.sdk.callbacks.AdCallback;
+import com.chartboost.sdk.callbacks.DismissibleAdCallback;
+import com.chartboost.sdk.callbacks.StartCallback;
+import com.chartboost.sdk.events.CacheError;
+import com.chartboost.sdk.events.CacheEvent;
+import com.chartboost.sdk.events.ClickEvent;
+import com.chartboost.sdk.events.DismissEvent;
+import com.chartboost.sdk.events.RewardEvent;
+import com.chartboost.sdk.events.ShowError;
+import com.chartboost.sdk.events.ShowEvent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Chartboost SDK as the plugin sees it: records the start, cache and show requests of the SDK stand-ins
+ * and answers them on demand, calling the ad's callback on the calling thread. Ads are only weakly referenced,
+ * so {@link #liveAds()} counts the ones the plugin still holds on to.
+ */
+final class FakeSdk implements Chartboost.Backend
+{
+  private final BlockingQueue<StartCallback> startRequests = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Ad> cacheRequests = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Ad> showRequests = new LinkedBlockingQueue<>();
+
+  private final ReferenceQueue<Ad> collected = new ReferenceQueue<>();
+  private final Set<Reference<Ad>> created = Collections.newSetFromMap(new ConcurrentHashMap<Reference<Ad>, Boolean>());
+
+  // answer the SDK requests of the stand-ins from now on
+  FakeSdk install()
+  {
+    Chartboost.setBackend(this);
+    return this;
+  }
+
+  @Override
+  public void onStart(StartCallback callback) {
+    startRequests.add(callback);
+  }
+
+  @Override
+  public void onCreated(Ad ad) {
+    created.add(new WeakReference<>(ad, collected));
+  }
+
+  @Override
+  public void onCache(Ad ad) {
+    cacheRequests.add(ad);
+  }
+
+  @Override
+  public void onShow(Ad ad) {
+    showRequests.add(ad);
+  }
+
+  // wait for the next request, fail if none comes
+  StartCallback takeStartRequest() throws InterruptedException
+  {
+    return take(startRequests, "start request");
+  }
+
+  Ad takeCacheRequest() throws InterruptedException
+  {
+    return take(cacheRequests, "cache request");
+  }
+
+  Ad takeShowRequest() throws InterruptedException
+  {
+    return take(showRequests, "show request");
+  }
+
+  // the next request if one was made, else null
+  Ad pollCacheRequest()
+  {
+    return cacheRequests.poll();
+  }
+
+  Ad pollShowRequest()
+  {
+    return showRequests.poll();
+  }
+
+  // number of ads created so far that are still reachable
+  int liveAds()
+  {
+    Reference<? extends Ad> reference;
+    while ((reference = collected.poll()) != null) {
+      created.remove(reference);
+    }
+    return created.size();
+  }
+
+  // SDK answers, on the calling thread
+
+  static void loaded(Ad ad)
+  {
+    setCached(ad, true);
+    callbackOf(ad).onAdLoaded(new CacheEvent(ad), null);
+  }
+
+  static void failedToLoad(Ad ad)
+  {
+    callbackOf(ad).onAdLoaded(new CacheEvent(ad), new CacheError(CacheError.Code.NO_AD_FOUND, new Exception("No ad found")));
+  }
+
+  static void shown(Ad ad)
+  {
+    requestedToShow(ad);
+    presented(ad);
+  }
+
+  static void requestedToShow(Ad ad)
+  {
+    callbackOf(ad).onAdRequestedToShow(new ShowEvent(ad));
+  }
+
+  static void presented(Ad ad)
+  {
+    setCached(ad, false);
+    callbackOf(ad).onAdShown(new ShowEvent(ad), null);
+  }
+
+  static void failedToShow(Ad ad)
+  {
+    setCached(ad, false);
+    callbackOf(ad).onAdShown(new ShowEvent(ad), new ShowError(ShowError.Code.PRESENTATION_FAILURE, new Exception("Presentation failed")));
+  }
+
+  static void clicked(Ad ad)
+  {
+    callbackOf(ad).onAdClicked(new ClickEvent(ad), null);
+  }
+
+  static void rewarded(Ad ad, int reward)
+  {
+    ((Rewarded) ad).getCallback().onRewardEarned(new RewardEvent(ad, reward));
+  }
+
+  static void dismissed(Ad ad)
+  {
+    ((DismissibleAdCallback) callbackOf(ad)).onAdDismiss(new DismissEvent(ad));
+  }
+
+  static AdCallback callbackOf(Ad ad)
+  {
+    if (ad instanceof Interstitial) {
+      return ((Interstitial) ad).getCallback();
+    }
+    else if (ad instanceof Rewarded) {
+      return ((Rewarded) ad).getCallback();
+    }
+    return ((Banner) ad).getCallback();
+  }
+
+  private static void setCached(Ad ad, boolean cached)
+  {
+    if (ad instanceof Interstitial) {
+      ((Interstitial) ad).setCached(cached);
+    }
+    else if (ad instanceof Rewarded) {
+      ((Rewarded) ad).setCached(cached);
+    }
+    else {
+      ((Banner) ad).setCached(cached);
+    }
+  }
+
+  private static <T> T take(BlockingQueue<T> requests, String what) throws InterruptedException
+  {
+    T request = requests.poll(Interleaving.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    if (request == null) {
+      throw new AssertionError("no " + what + " from the plugin");
+    }
+    return request;
+  }
+}
@@ -0,0 +1,158 @@
+// InMemoryPreferences.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SharedPreferences kept in a map, edits are applied when committed. Thread safe.
+ */
+public final class InMemoryPreferences implements SharedPreferences
+{
+  private final Map<String, Object> values = new HashMap<>();
+
+  @Override
+  public synchronized Map<String, ?> getAll() {
+    return new HashMap<>(values);
+  }
+
+  @Override
+  public String getString(String key, String defValue) {
+    return (String) get(key, defValue);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Set<String> getStringSet(String key, Set<String> defValues) {
+    return (Set<String>) get(key, defValues);
+  }
+
+  @Override
+  public int getInt(String key, int defValue) {
+    return (Integer) get(key, defValue);
+  }
+
+  @Override
+  public long getLong(String key, long defValue) {
+    return (Long) get(key, defValue);
+  }
+
+  @Override
+  public float getFloat(String key, float defValue) {
+    return (Float) get(key, defValue);
+  }
+
+  @Override
+  public boolean getBoolean(String key, boolean defValue) {
+    return (Boolean) get(key, defValue);
+  }
+
+  @Override
+  public synchronized boolean contains(String key) {
+    return values.containsKey(key);
+  }
+
+  @Override
+  public Editor edit() {
+    return new InMemoryEditor();
+  }
+
+  @Override
+  public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+  }
+
+  @Override
+  public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+  }
+
+  private synchronized Object get(String key, Object defValue)
+  {
+    return values.containsKey(key) ? values.get(key) : defValue;
+  }
+
+  private final class InMemoryEditor implements Editor
+  {
+    private final Map<String, Object> changes = new HashMap<>();
+    private boolean clear = false;
+
+    @Override
+    public Editor putString(String key, String value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor putStringSet(String key, Set<String> values) {
+      changes.put(key, values);
+      return this;
+    }
+
+    @Override
+    public Editor putInt(String key, int value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor putLong(String key, long value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor putFloat(String key, float value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor putBoolean(String key, boolean value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public Editor remove(String key) {
+      changes.put(key, null);
+      return this;
+    }
+
+    @Override
+    public Editor clear() {
+      clear = true;
+      return this;
+    }
+
+    @Override
+    public boolean commit() {
+      synchronized (InMemoryPreferences.this) {
+        if (clear) {
+          values.clear();
+        }
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+          if (change.getValue() == null) {
+            values.remove(change.getKey());
+          }
+          else {
+            values.put(change.getKey(), change.getValue());
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void apply() {
+      commit();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+// Interleaving.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs actors on their own threads, released at the same time, to exercise the interleavings of the plugin's
+ * UI thread, Lua thread and SDK / worker callbacks.
+ */
+final class Interleaving
+{
+  static final long TIMEOUT_MS = 10000;
+
+  private Interleaving()
+  {
+  }
+
+  // run every actor on its own thread and wait for all of them, rethrow the first failure
+  static void run(Runnable... actors) throws Exception
+  {
+    final CyclicBarrier start = new CyclicBarrier(actors.length);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] threads = new Thread[actors.length];
+
+    for (int i = 0; i < actors.length; i++) {
+      final Runnable actor = actors[i];
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            actor.run();
+          }
+          catch (Throwable ex) {
+            failure.compareAndSet(null, ex);
+          }
+        }
+      }, "actor-" + i);
+      threads[i].start();
+    }
+
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    for (Thread thread : threads) {
+      thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      if (thread.isAlive()) {
+        throw new AssertionError(thread.getName() + " did not finish, deadlock?");
+      }
+    }
+
+    Throwable thrown = failure.get();
+    if (thrown instanceof Exception) {
+      throw (Exception) thrown;
+    }
+    else if (thrown != null) {
+      throw (Error) thrown;
+    }
+  }
+}
@@ -0,0 +1,371 @@
+// LuaLoaderTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import com.ansca.corona.CoronaLua;
+import com.chartboost.sdk.Chartboost;
+import com.chartboost.sdk.ads.Ad;
+import com.chartboost.sdk.ads.Rewarded;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LuaLoader driven through its Lua functions and SDK callbacks (see PluginHarness), with the runtime exiting
+ * while loads, shows and SDK callbacks are in flight.
+ */
+public class LuaLoaderTest
+{
+  private static final int ROUNDS = 200;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeSdk sdk;
+  private PluginHarness harness = null;
+
+  // log entries from before the test, the ring buffer is shared with the other tests
+  private Set<String> earlierLogEntries;
+
+  @Before
+  public void installSdk() {
+    sdk = new FakeSdk().install();
+    earlierLogEntries = new HashSet<>(PluginLog.getEntries());
+  }
+
+  @After
+  public void removeSdk() {
+    // a failed test must not leave its session running
+    if (harness != null) {
+      harness.exit();
+    }
+    Chartboost.setBackend(null);
+  }
+
+  // a new runtime session of a new plugin instance
+  private PluginHarness newSession() throws Exception
+  {
+    harness = new PluginHarness(new LuaLoader(), folder.newFolder());
+    return harness;
+  }
+
+  @Test
+  public void loadShowAndCallbacksReachTheListener() throws Exception {
+    PluginHarness harness = newSession();
+    harness.init(Collections.<String, Object>emptyMap(), sdk);
+
+    harness.call("load", "rewardedVideo", "bonus");
+    Ad ad = sdk.takeCacheRequest();
+    assertFalse("loading", isLoaded(harness, "rewardedVideo", "bonus"));
+
+    FakeSdk.loaded(ad);
+    harness.awaitEvents("loaded", 1);
+    assertTrue(isLoaded(harness, "rewardedVideo", "bonus"));
+
+    harness.call("show", "rewardedVideo", "bonus");
+    assertFalse("a shown ad leaves its slot", isLoaded(harness, "rewardedVideo", "bonus"));
+    assertEquals(ad, sdk.takeShowRequest());
+
+    FakeSdk.shown(ad);
+    FakeSdk.rewarded(ad, 10);
+    FakeSdk.dismissed(ad);
+    harness.awaitEvents("closed", 2);
+
+    List<String> phases = new ArrayList<>();
+    double lastSeq = 0;
+    for (Map<String, Object> event : harness.events()) {
+      phases.add((String) event.get("phase"));
+      assertEquals("chartboost", event.get("provider"));
+      assertTrue("events in capture order", (Double) event.get("seq") > lastSeq);
+      lastSeq = (Double) event.get("seq");
+    }
+    assertEquals(Arrays.asList("init", "loaded", "displayed", "closed", "reward", "closed"), phases);
+
+    JSONObject reward = new JSONObject((String) harness.eventsOf("reward").get(0).get("data"));
+    assertEquals("bonus", reward.getString("location"));
+    assertEquals(10, reward.getInt("reward"));
+  }
+
+  @Test
+  public void callbacksAfterExitReachNothing() throws Exception {
+    int refs = CoronaLua.refCount();
+    PluginHarness harness = newSession();
+    harness.init(Collections.<String, Object>emptyMap(), sdk);
+
+    harness.call("load", "interstitial", "level");
+    harness.call("load", "rewardedVideo", "bonus");
+    final Ad interstitial = sdk.takeCacheRequest();
+    final Ad rewarded = sdk.takeCacheRequest();
+    FakeSdk.loaded(interstitial);
+    harness.awaitEvents("loaded", 1);
+    int delivered = harness.events().size();
+
+    harness.exit();
+    assertTrue("slots released", harness.loader.coronaAdsStore.isEmpty());
+    assertEquals("listener released", refs, CoronaLua.refCount());
+
+    // the SDK calls back late, on the UI thread
+    PluginHarness.onMain(new Runnable() {
+      @Override
+      public void run() {
+        FakeSdk.loaded(rewarded);
+        FakeSdk.shown(interstitial);
+        FakeSdk.clicked(interstitial);
+        FakeSdk.dismissed(interstitial);
+        FakeSdk.rewarded(rewarded, 5);
+      }
+    });
+
+    // the Lua functions refuse to work without a runtime
+    harness.call("load", "interstitial", "level");
+    assertEquals(0, harness.call("isLoaded", "interstitial", "level").length);
+    harness.call("show", "interstitial", "level");
+    PluginHarness.awaitMain();
+
+    harness.dispatch();
+    assertEquals("no event after onExiting()", delivered, harness.events().size());
+    assertTrue(harness.loader.coronaAdsStore.isEmpty());
+    assertEquals(null, sdk.pollCacheRequest());
+    assertEquals(null, sdk.pollShowRequest());
+    assertNoCallbackFailed();
+  }
+
+  @Test
+  public void rewardEarnedAsTheRuntimeExitsIsReplayedNextSession() throws Exception {
+    File directory = folder.newFolder();
+    Map<String, Object> options = new HashMap<>();
+    options.put("rewardLedger", true);
+
+    harness = new PluginHarness(new LuaLoader(), directory);
+    harness.init(options, sdk);
+    harness.call("load", "rewardedVideo", "bonus");
+    Ad ad = sdk.takeCacheRequest();
+    FakeSdk.loaded(ad);
+    harness.awaitEvents("loaded", 1);
+    harness.call("show", "rewardedVideo", "bonus");
+    sdk.takeShowRequest();
+
+    // the reward is earned and the runtime exits before Lua hears about it
+    FakeSdk.shown(ad);
+    FakeSdk.rewarded(ad, 10);
+    harness.exit();
+    harness.dispatch();
+    assertTrue(harness.eventsOf("reward").isEmpty());
+
+    // the next session gets it after its 'init' event
+    harness = new PluginHarness(new LuaLoader(), directory);
+    harness.init(options, sdk);
+    JSONObject reward = new JSONObject((String) harness.awaitEvents("reward", 1).get(0).get("data"));
+    assertEquals("bonus", reward.getString("location"));
+    assertEquals(10, reward.getInt("reward"));
+    assertTrue(reward.getBoolean("replayed"));
+
+    // until Lua acknowledges it
+    harness.call("ackReward", reward.getString("rewardId"));
+    harness.exit();
+    harness = new PluginHarness(new LuaLoader(), directory);
+    harness.init(options, sdk);
+    PluginHarness.awaitMain();
+    Thread.sleep(50);
+    harness.dispatch();
+    assertTrue(harness.eventsOf("reward").isEmpty());
+  }
+
+  @Test
+  public void exitRacingLoadsOnTheUiThread() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final PluginHarness harness = newSession();
+      Map<String, Object> options = new HashMap<>();
+      options.put("loadTimeout", 30);
+      harness.init(options, sdk);
+
+      final int loads = 1 + (round % 10);
+      final AtomicBoolean exited = new AtomicBoolean();
+      final AtomicInteger answered = new AtomicInteger();
+
+      Interleaving.run(
+        // Lua thread: loads, then the runtime exits while they are made on the UI thread
+        new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 0; i < loads; i++) {
+              harness.call("load", (i % 2 == 0) ? "interstitial" : "rewardedVideo", "location" + (i % 4), depthOf(i));
+              harness.dispatch();
+            }
+            harness.exit();
+            exited.set(true);
+          }
+        },
+        // SDK: answers the cache requests as they come, half of them fail
+        new Runnable() {
+          @Override
+          public void run() {
+            while (! exited.get()) {
+              Ad ad = sdk.pollCacheRequest();
+              if (ad == null) {
+                Thread.yield();
+              }
+              else if (answered.incrementAndGet() % 2 == 0) {
+                FakeSdk.failedToLoad(ad);
+              }
+              else {
+                FakeSdk.loaded(ad);
+              }
+            }
+          }
+        }
+      );
+
+      // requests the UI thread made after all are answered late
+      PluginHarness.awaitMain();
+      for (Ad ad; (ad = sdk.pollCacheRequest()) != null; ) {
+        FakeSdk.loaded(ad);
+      }
+      PluginHarness.awaitMain();
+
+      int delivered = harness.events().size();
+      harness.dispatch();
+      assertEquals("no event after onExiting()", delivered, harness.events().size());
+      assertTrue("slots released in round " + round, harness.loader.coronaAdsStore.isEmpty());
+    }
+    assertNoCallbackFailed();
+  }
+
+  @Test
+  public void exitRacingShowsAndSdkCallbacks() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final PluginHarness harness = newSession();
+      harness.init(Collections.<String, Object>emptyMap(), sdk);
+
+      harness.call("load", "interstitial", "level", depthOf(1));
+      harness.call("load", "rewardedVideo", "bonus");
+      PluginHarness.awaitMain();
+      final List<Ad> requested = new ArrayList<>();
+      for (Ad ad; (ad = sdk.pollCacheRequest()) != null; ) {
+        requested.add(ad);
+      }
+      assertEquals(3, requested.size());
+
+      final int frames = round % 8;
+      final AtomicBoolean exited = new AtomicBoolean();
+      final AtomicInteger shows = new AtomicInteger();
+      final AtomicInteger showRequests = new AtomicInteger();
+      final AtomicInteger deliveredAtExit = new AtomicInteger();
+
+      Interleaving.run(
+        // Lua thread: shows whatever isLoaded() reports, delivers events, and exits after a few frames
+        new Runnable() {
+          @Override
+          public void run() {
+            for (int frame = 0; frame < frames; frame++) {
+              if (isLoaded(harness, "interstitial", "level")) {
+                harness.call("show", "interstitial", "level");
+                shows.incrementAndGet();
+              }
+              if (isLoaded(harness, "rewardedVideo", "bonus")) {
+                harness.call("show", "rewardedVideo", "bonus");
+                shows.incrementAndGet();
+              }
+              harness.dispatch();
+              Thread.yield();
+            }
+            harness.exit();
+            deliveredAtExit.set(harness.events().size());
+            exited.set(true);
+          }
+        },
+        // SDK: the ads load, then every shown ad is shown, rewarded and dismissed
+        new Runnable() {
+          @Override
+          public void run() {
+            for (Ad ad : requested) {
+              FakeSdk.loaded(ad);
+            }
+            while (! exited.get()) {
+              Ad ad = sdk.pollShowRequest();
+              if (ad == null) {
+                Thread.yield();
+                continue;
+              }
+              showRequests.incrementAndGet();
+              playShow(ad);
+            }
+          }
+        }
+      );
+
+      // shows the UI thread made after all are played late, and the refills of deeper slots load late
+      PluginHarness.awaitMain();
+      for (Ad ad; (ad = sdk.pollShowRequest()) != null; ) {
+        showRequests.incrementAndGet();
+        playShow(ad);
+      }
+      for (Ad ad; (ad = sdk.pollCacheRequest()) != null; ) {
+        FakeSdk.loaded(ad);
+      }
+      PluginHarness.awaitMain();
+
+      // every show isLoaded() allowed reached the SDK, nothing reached Lua after onExiting()
+      assertEquals("shows in round " + round, shows.get(), showRequests.get());
+      harness.dispatch();
+      assertEquals("no event after onExiting()", deliveredAtExit.get(), harness.events().size());
+      assertTrue(harness.loader.coronaAdsStore.isEmpty());
+    }
+    assertNoCallbackFailed();
+  }
+
+  // load() options for a slot depth of 1 or 2
+  private static Map<String, Object> depthOf(int i)
+  {
+    Map<String, Object> options = new HashMap<>();
+    options.put("depth", 1 + (i % 2));
+    return options;
+  }
+
+  private static boolean isLoaded(PluginHarness harness, String adType, String location)
+  {
+    Object[] results = harness.call("isLoaded", adType, location);
+    return (results.length == 1) && Boolean.TRUE.equals(results[0]);
+  }
+
+  private static void playShow(Ad ad)
+  {
+    FakeSdk.shown(ad);
+    if (ad instanceof Rewarded) {
+      FakeSdk.rewarded(ad, 10);
+    }
+    FakeSdk.dismissed(ad);
+  }
+
+  private void assertNoCallbackFailed()
+  {
+    for (String entry : PluginLog.getEntries()) {
+      assertFalse(entry, !earlierLogEntries.contains(entry) && entry.contains("SDK callback failed"));
+    }
+  }
+}
@@ -0,0 +1,119 @@
+// PacingEngineTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.SystemClock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * PacingEngine with shows checked on the Lua thread while the callback worker counts them.
+ */
+public class PacingEngineTest
+{
+  @Test
+  public void concurrentShowsAreAllCounted() throws Exception {
+    final int threads = 4;
+    final int showsPerThread = 500;
+
+    InMemoryPreferences preferences = new InMemoryPreferences();
+    final PacingEngine pacing = new PacingEngine(preferences);
+
+    PacingEngine.Rule rule = new PacingEngine.Rule();
+    rule.maxPerSession = threads * showsPerThread;
+    pacing.addRule("interstitial", rule);
+
+    Runnable[] actors = new Runnable[threads + 1];
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      actors[t] = new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < showsPerThread; i++) {
+            pacing.recordShow("interstitial", "location" + thread);
+          }
+        }
+      };
+    }
+
+    // Lua thread: checks in the middle of the counting never see an invalid state
+    actors[threads] = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < threads * showsPerThread; i++) {
+          String reason = pacing.check("interstitial", "location0");
+          if ((reason != null) && !reason.equals(PacingEngine.REASON_MAX_PER_SESSION)) {
+            throw new AssertionError("unexpected reason " + reason);
+          }
+        }
+      }
+    };
+
+    Interleaving.run(actors);
+
+    assertEquals(PacingEngine.REASON_MAX_PER_SESSION, pacing.check("interstitial", "location1"));
+    assertEquals(threads * showsPerThread, preferences.getInt("interstitial.dayCount", 0));
+  }
+
+  @Test
+  public void locationRuleTakesPrecedence() {
+    PacingEngine pacing = new PacingEngine(new InMemoryPreferences());
+
+    PacingEngine.Rule typeRule = new PacingEngine.Rule();
+    typeRule.maxPerSession = 1;
+    pacing.addRule("interstitial", typeRule);
+
+    PacingEngine.Rule locationRule = new PacingEngine.Rule();
+    locationRule.maxPerSession = 2;
+    pacing.addRule("interstitial/levelEnd", locationRule);
+
+    pacing.recordShow("interstitial", "levelEnd");
+    assertNull(pacing.check("interstitial", "levelEnd"));
+    assertNull(pacing.check("interstitial", "menu"));
+
+    pacing.recordShow("interstitial", "levelEnd");
+    assertEquals(PacingEngine.REASON_MAX_PER_SESSION, pacing.check("interstitial", "levelEnd"));
+
+    pacing.recordShow("interstitial", "menu");
+    assertEquals(PacingEngine.REASON_MAX_PER_SESSION, pacing.check("interstitial", "menu"));
+  }
+
+  @Test
+  public void dailyCountCarriesOverToTheNextSession() {
+    InMemoryPreferences preferences = new InMemoryPreferences();
+
+    PacingEngine first = new PacingEngine(preferences);
+    PacingEngine.Rule rule = new PacingEngine.Rule();
+    rule.maxPerDay = 2;
+    first.addRule("rewardedVideo", rule);
+    first.recordShow("rewardedVideo", "shop");
+    first.recordShow("rewardedVideo", "shop");
+
+    PacingEngine second = new PacingEngine(preferences);
+    PacingEngine.Rule restored = new PacingEngine.Rule();
+    restored.maxPerDay = 2;
+    second.addRule("rewardedVideo", restored);
+
+    assertEquals(PacingEngine.REASON_MAX_PER_DAY, second.check("rewardedVideo", "shop"));
+  }
+
+  @Test
+  public void initialDelayCountsFromTheSessionStart() {
+    PacingEngine pacing = new PacingEngine(new InMemoryPreferences());
+    PacingEngine.Rule rule = new PacingEngine.Rule();
+    rule.initialDelayMs = 60000;
+    pacing.addRule("interstitial", rule);
+
+    assertEquals(PacingEngine.REASON_INITIAL_DELAY, pacing.check("interstitial", "level"));
+    SystemClock.advance(60000);
+    assertNull(pacing.check("interstitial", "level"));
+  }
+}
@@ -0,0 +1,203 @@
+// PluginHarness.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.ansca.corona.CoronaActivity;
+import com.ansca.corona.CoronaEnvironment;
+import com.ansca.corona.CoronaRuntime;
+import com.chartboost.sdk.callbacks.StartCallback;
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One Corona runtime session of the plugin on the JVM, from require() to onExiting().
+ * <p>
+ * The thread calling {@link #call(String, Object...)} and {@link #dispatch()} plays the Lua thread, the main
+ * looper plays the UI thread and {@link FakeSdk} answers for the Chartboost SDK. The LuaLoader may outlive the
+ * session, as it outlives the activity on a device.
+ */
+final class PluginHarness
+{
+  static final String MODULE_NAME = "plugin.chartboost";
+  static final String APP_ID = "4f7b433509b6025804000002";
+  static final String APP_SIG = "dd2d41b69ac01b80f443f5b6cf06096d457f82bd";
+
+  final LuaLoader loader;
+  final CoronaActivity activity;
+  final CoronaRuntime runtime;
+
+  private final LuaState luaState = new LuaState();
+  private final LuaState.Table module;
+
+  private boolean exited = false;
+
+  // events the listener received, in order
+  private final List<Map<String, Object>> events = new CopyOnWriteArrayList<>();
+
+  private final JavaFunction listener = new JavaFunction() {
+    @Override
+    public int invoke(LuaState L) {
+      events.add(mapOf((LuaState.Table) L.value(1)));
+      return 0;
+    }
+  };
+
+  // require("plugin.chartboost") in a new runtime whose activity keeps its files in 'directory'
+  PluginHarness(LuaLoader loader, File directory)
+  {
+    this.loader = loader;
+    activity = new CoronaActivity(directory);
+    CoronaEnvironment.setApplicationContext(activity);
+    CoronaEnvironment.setCoronaActivity(activity);
+
+    runtime = new CoronaRuntime(luaState);
+    luaState.pushString(MODULE_NAME);
+    loader.invoke(luaState);
+    module = (LuaState.Table) luaState.value(-1);
+    luaState.setTop(0);
+
+    loader.onLoaded(runtime);
+  }
+
+  // call a plugin function, arguments are Java values (maps and lists become tables), return its results
+  Object[] call(String function, Object... args)
+  {
+    luaState.setTop(0);
+    luaState.push(module.get(function));
+    for (Object arg : args) {
+      luaState.push(arg);
+    }
+    luaState.call(args.length, -1);
+
+    Object[] results = new Object[luaState.getTop()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = luaState.value(i + 1);
+    }
+    luaState.setTop(0);
+
+    return results;
+  }
+
+  // chartboost.init(listener, options) with the test app id and signature, the SDK start succeeds
+  void init(Map<String, Object> options, FakeSdk sdk) throws InterruptedException
+  {
+    Map<String, Object> initOptions = new LinkedHashMap<>();
+    initOptions.put("appId", APP_ID);
+    initOptions.put("appSig", APP_SIG);
+    initOptions.putAll(options);
+    call("init", listener, initOptions);
+
+    final StartCallback start = sdk.takeStartRequest();
+    onMain(new Runnable() {
+      @Override
+      public void run() {
+        start.onStartCompleted(null);
+      }
+    });
+    awaitEvents("init", 1);
+  }
+
+  // run the event tasks sent so far, as the runtime does on its next frame, return how many ran
+  int dispatch()
+  {
+    return runtime.runTasks();
+  }
+
+  // dispatch until the listener has had 'count' events of a phase, return them
+  List<Map<String, Object>> awaitEvents(final String phase, final int count) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + Interleaving.TIMEOUT_MS;
+    while (eventsOf(phase).size() < count) {
+      assertTrue("expected " + count + " '" + phase + "' events, got " + eventsOf(phase), System.currentTimeMillis() < deadline);
+      if (dispatch() == 0) {
+        Thread.sleep(1);
+      }
+    }
+
+    return eventsOf(phase);
+  }
+
+  List<Map<String, Object>> events()
+  {
+    return new ArrayList<>(events);
+  }
+
+  // the events received since the last take, the harness forgets them (long runs)
+  List<Map<String, Object>> takeEvents()
+  {
+    // the listener only runs in dispatch(), on the calling thread
+    List<Map<String, Object>> taken = new ArrayList<>(events);
+    events.clear();
+    return taken;
+  }
+
+  List<Map<String, Object>> eventsOf(String phase)
+  {
+    List<Map<String, Object>> matching = new ArrayList<>();
+    for (Map<String, Object> event : events) {
+      if (phase.equals(event.get("phase"))) {
+        matching.add(event);
+      }
+    }
+    return matching;
+  }
+
+  // runtime.onExiting(): the plugin lets go of the runtime and its activity is destroyed (once)
+  void exit()
+  {
+    if (exited) {
+      return;
+    }
+    exited = true;
+
+    loader.onExiting(runtime);
+    if (CoronaEnvironment.getCoronaActivity() == activity) {
+      CoronaEnvironment.setCoronaActivity(null);
+    }
+  }
+
+  // run a task on the UI thread and wait for it
+  static void onMain(Runnable task) throws InterruptedException
+  {
+    new Handler(Looper.getMainLooper()).post(task);
+    awaitMain();
+  }
+
+  // wait until the UI thread ran what was posted to it so far, fail if any of it threw
+  static void awaitMain() throws InterruptedException
+  {
+    assertTrue("the UI thread is stuck", Looper.getMainLooper().awaitIdle(Interleaving.TIMEOUT_MS));
+
+    Throwable failure = Looper.getMainLooper().takeFailure();
+    if (failure != null) {
+      throw new AssertionError("the UI thread failed", failure);
+    }
+  }
+
+  private static Map<String, Object> mapOf(LuaState.Table table)
+  {
+    Map<String, Object> map = new HashMap<>();
+    for (Map.Entry<Object, Object> entry : table.entries.entrySet()) {
+      map.put(String.valueOf(entry.getKey()), entry.getValue());
+    }
+    return map;
+  }
+}
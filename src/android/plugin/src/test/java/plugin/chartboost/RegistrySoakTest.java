@@ -0,0 +1,307 @@
+// RegistrySoakTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import com.chartboost.sdk.Chartboost;
+import com.chartboost.sdk.ads.Ad;
+import com.chartboost.sdk.ads.Rewarded;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Long runs of load / fail / show / dismiss cycles through LuaLoader (see PluginHarness), with the runtime
+ * restarting now and then: what the plugin keeps per ad type and location, the ads it holds on to (each one
+ * referencing its delegate) and the heap must stay bounded however many ads go through it.
+ */
+public class RegistrySoakTest
+{
+  // -Dchartboost.soak.cycles=... for a longer or shorter run
+  private static final int CYCLES = Integer.getInteger("chartboost.soak.cycles", 200000);
+  private static final int LOCATIONS = 8;
+  private static final int DEPTH = 2;
+  private static final int SESSIONS = 4;
+  private static final int SAMPLES = 20;
+
+  // ads the plugin may still reference between cycles: full slots, and the last ad shown at each location
+  private static final int MAX_LIVE_ADS = LOCATIONS * DEPTH + LOCATIONS;
+
+  // heap the run may grow by from one end to the other, far below what leaking one object per cycle would cost
+  private static final long MAX_HEAP_GROWTH = 4 * 1024 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeSdk sdk;
+  private PluginHarness harness = null;
+
+  private int rewardsEarned = 0;
+  private int rewardsAcknowledged = 0;
+  private int failures = 0;
+
+  @Before
+  public void installSdk() {
+    sdk = new FakeSdk().install();
+  }
+
+  @After
+  public void removeSdk() {
+    if (harness != null) {
+      harness.exit();
+    }
+    LuaLoader.awaitClosingLedger();
+    Chartboost.setBackend(null);
+  }
+
+  // a new runtime session of a new plugin instance, keeping its files (the reward ledger) in 'directory'
+  private PluginHarness newSession(File directory) throws Exception
+  {
+    harness = new PluginHarness(new LuaLoader(), directory);
+
+    Map<String, Object> options = new HashMap<>();
+    options.put("rewardLedger", true);
+    harness.init(options, sdk);
+
+    return harness;
+  }
+
+  @Test
+  public void pluginStateStaysBounded() throws Exception {
+    File directory = folder.newFolder();
+    newSession(directory);
+
+    long[] heap = new long[SAMPLES];
+    int samples = 0;
+    int shows = 0;
+
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      if ((cycle > 0) && (cycle % (CYCLES / SESSIONS) == 0)) {
+        harness.exit();
+        newSession(directory);
+      }
+
+      int index = cycle % LOCATIONS;
+      String adType = (index % 2 == 0) ? "interstitial" : "rewardedVideo";
+      String location = "location" + index;
+
+      // chartboost.load(), every third load of a location fails; Lua loads again once it got the 'failed' event
+      boolean fails = ((cycle / LOCATIONS) % 3) == 2;
+      harness.call("load", adType, location, depthOf(index));
+      if ((answerCacheRequests(fails) > 0) && fails) {
+        awaitFailure();
+      }
+
+      // chartboost.show() once the plugin has the ad, the ad is shown, rewarded and dismissed
+      if (! fails) {
+        awaitLoaded(adType, location);
+        harness.call("show", adType, location);
+        PluginHarness.awaitMain();
+
+        final Ad ad = sdk.pollShowRequest();
+        assertTrue("the plugin shows a loaded ad", ad != null);
+        PluginHarness.onMain(new Runnable() {
+          @Override
+          public void run() {
+            FakeSdk.shown(ad);
+            if (ad instanceof Rewarded) {
+              FakeSdk.rewarded(ad, 10);
+            }
+            FakeSdk.dismissed(ad);
+          }
+        });
+        if (ad instanceof Rewarded) {
+          rewardsEarned++;
+        }
+        shows++;
+
+        // deeper slots are topped up after a show
+        answerCacheRequests(false);
+      }
+
+      deliverEvents();
+
+      if ((cycle + 1) % (CYCLES / SAMPLES) == 0) {
+        heap[samples] = usedHeap();
+        int liveAds = sdk.liveAds();
+        int slots = harness.loader.coronaAdsStore.size();
+
+        assertTrue("sample " + samples + ": " + liveAds + " ads still referenced", liveAds <= MAX_LIVE_ADS);
+        assertTrue("sample " + samples + ": " + slots + " slots", slots <= LOCATIONS);
+        for (AdSlot slot : harness.loader.coronaAdsStore.values()) {
+          assertTrue(slot.size() <= slot.getDepth());
+        }
+        samples++;
+      }
+    }
+    assertTrue("most cycles show an ad", shows > CYCLES / 2);
+
+    // every reward reaches Lua once, the ones in flight at a restart are replayed by the next session
+    long deadline = System.currentTimeMillis() + Interleaving.TIMEOUT_MS;
+    while ((rewardsAcknowledged < rewardsEarned) && (System.currentTimeMillis() < deadline)) {
+      if (deliverEvents() == 0) {
+        Thread.sleep(1);
+      }
+    }
+    assertEquals("rewards acknowledged", rewardsEarned, rewardsAcknowledged);
+
+    harness.exit();
+    LuaLoader.awaitClosingLedger();
+
+    // ledger: compacted as rewards are acknowledged, it never keeps the whole run
+    File ledgerFile = new File(new File(directory, "files"), "plugin.chartboost.rewards.log");
+    assertTrue("ledger is " + ledgerFile.length() + " bytes", ledgerFile.length() < 64 * 1024);
+
+    // heap: the trend after the first sample (warm-up), projected over the run, stays within the bound
+    long growth = (long) (slopeOf(heap, 1, samples) * (samples - 1));
+    assertTrue("heap grows by " + growth + " bytes over the run, samples " + toString(heap, samples), growth < MAX_HEAP_GROWTH);
+  }
+
+  // answer the cache requests the plugin made so far, on the UI thread, return how many
+  private int answerCacheRequests(final boolean fail) throws InterruptedException
+  {
+    PluginHarness.awaitMain();
+
+    final List<Ad> requested = new ArrayList<>();
+    Ad ad;
+    while ((ad = sdk.pollCacheRequest()) != null) {
+      requested.add(ad);
+    }
+
+    PluginHarness.onMain(new Runnable() {
+      @Override
+      public void run() {
+        for (Ad ad : requested) {
+          if (fail) {
+            FakeSdk.failedToLoad(ad);
+          }
+          else {
+            FakeSdk.loaded(ad);
+          }
+        }
+      }
+    });
+
+    return requested.size();
+  }
+
+  // wait until the plugin has handled the load callback of a location
+  private void awaitLoaded(String adType, String location) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + Interleaving.TIMEOUT_MS;
+    while (! isLoaded(adType, location)) {
+      assertTrue(adType + " at " + location + " never loaded " + PluginLog.getEntries(), System.currentTimeMillis() < deadline);
+      Thread.yield();
+    }
+  }
+
+  // wait for the next 'failed' event
+  private void awaitFailure() throws InterruptedException
+  {
+    int expected = failures + 1;
+    long deadline = System.currentTimeMillis() + Interleaving.TIMEOUT_MS;
+    while (failures < expected) {
+      assertTrue("no 'failed' event", System.currentTimeMillis() < deadline);
+      if (deliverEvents() == 0) {
+        Thread.yield();
+      }
+    }
+  }
+
+  // run the runtime's event tasks, Lua acknowledges the rewards it gets, return how many events came
+  private int deliverEvents()
+  {
+    harness.dispatch();
+
+    List<Map<String, Object>> events = harness.takeEvents();
+    for (Map<String, Object> event : events) {
+      if ("failed".equals(event.get("phase"))) {
+        failures++;
+      }
+      else if ("reward".equals(event.get("phase"))) {
+        try {
+          harness.call("ackReward", new JSONObject((String) event.get("data")).getString("rewardId"));
+          rewardsAcknowledged++;
+        }
+        catch (Exception ex) {
+          throw new AssertionError("reward event without a rewardId: " + event, ex);
+        }
+      }
+    }
+
+    return events.size();
+  }
+
+  private boolean isLoaded(String adType, String location)
+  {
+    Object[] results = harness.call("isLoaded", adType, location);
+    return (results.length == 1) && Boolean.TRUE.equals(results[0]);
+  }
+
+  // half the locations keep one ad ready, the other half DEPTH
+  private static Map<String, Object> depthOf(int index)
+  {
+    return Collections.<String, Object>singletonMap("depth", (index < LOCATIONS / 2) ? 1 : DEPTH);
+  }
+
+  // least squares slope of values[from..to), per sample
+  private static double slopeOf(long[] values, int from, int to)
+  {
+    int n = to - from;
+    if (n < 2) {
+      return 0;
+    }
+
+    double meanX = (from + to - 1) / 2.0;
+    double meanY = 0;
+    for (int i = from; i < to; i++) {
+      meanY += values[i] / (double) n;
+    }
+
+    double covariance = 0;
+    double variance = 0;
+    for (int i = from; i < to; i++) {
+      covariance += (i - meanX) * (values[i] - meanY);
+      variance += (i - meanX) * (i - meanX);
+    }
+
+    return covariance / variance;
+  }
+
+  private static String toString(long[] values, int count)
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      text.append((i > 0) ? ", " : "").append(values[i] / 1024).append("K");
+    }
+    return text.toString();
+  }
+
+  private static long usedHeap() throws InterruptedException
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,224 @@
+// RewardLedgerTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RewardLedger with rewards appended from the callback worker while Lua acknowledges them.
+ */
+public class RewardLedgerTest
+{
+  private static final int REWARDS = 3000;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void appendRacingAckReplaysExactlyTheUnacknowledged() throws Exception {
+    final File directory = folder.newFolder();
+    final RewardLedger ledger = new RewardLedger(directory);
+    ledger.open();
+
+    final Set<String> acknowledged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final Set<String> appended = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final LinkedBlockingQueue<RewardLedger.Reward> committed = new LinkedBlockingQueue<>();
+    final CountDownLatch allCommitted = new CountDownLatch(2 * REWARDS);
+
+    final RewardLedger.RewardCallback onCommitted = new RewardLedger.RewardCallback() {
+      @Override
+      public void onReward(RewardLedger.Reward reward) {
+        committed.add(reward);
+        allCommitted.countDown();
+      }
+    };
+
+    Interleaving.run(
+      // callback worker: rewards Lua acknowledges right away, possibly before they are on disk
+      new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < REWARDS; i++) {
+            RewardLedger.Reward reward = ledger.append("early", 1, onCommitted);
+            appended.add(reward.id);
+            if ((i % 3) == 0) {
+              acknowledged.add(reward.id);
+              ledger.acknowledge(reward.id);
+            }
+          }
+        }
+      },
+      // callback worker: rewards Lua acknowledges once their event is dispatched
+      new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < REWARDS; i++) {
+            appended.add(ledger.append("dispatched", 1, onCommitted).id);
+          }
+        }
+      },
+      // Lua thread: acknowledge every other dispatched reward
+      new Runnable() {
+        @Override
+        public void run() {
+          try {
+            int seen = 0;
+            while (seen < 2 * REWARDS) {
+              RewardLedger.Reward reward = committed.poll(Interleaving.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+              assertNotNull("every reward is committed", reward);
+              if (reward.location.equals("dispatched") && ((seen % 2) == 0)) {
+                acknowledged.add(reward.id);
+                ledger.acknowledge(reward.id);
+              }
+              seen++;
+            }
+          }
+          catch (InterruptedException ex) {
+            throw new AssertionError(ex);
+          }
+        }
+      }
+    );
+
+    assertTrue(allCommitted.await(Interleaving.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    // every ack above was queued before this reward, so it is on disk once the reward is
+    RewardLedger.Reward barrier = appendAndWait(ledger, "barrier");
+    ledger.close();
+
+    Set<String> expected = new HashSet<>(appended);
+    expected.removeAll(acknowledged);
+    expected.add(barrier.id);
+
+    // next session
+    RewardLedger reopened = new RewardLedger(directory);
+    reopened.open();
+
+    final Set<String> replayed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    reopened.replay(new RewardLedger.RewardCallback() {
+      @Override
+      public void onReward(RewardLedger.Reward reward) {
+        assertTrue("a reward is replayed once", replayed.add(reward.id));
+      }
+    });
+
+    // the replay runs on the writer thread ahead of this reward
+    appendAndWait(reopened, "barrier");
+    reopened.close();
+
+    assertEquals(expected, replayed);
+  }
+
+  @Test
+  public void rewardAppendedAfterCloseIsStillHandedOver() throws Exception {
+    RewardLedger ledger = new RewardLedger(folder.newFolder());
+    ledger.open();
+    ledger.close();
+
+    final AtomicReference<RewardLedger.Reward> handedOver = new AtomicReference<>();
+    RewardLedger.Reward reward = ledger.append("level", 10, new RewardLedger.RewardCallback() {
+      @Override
+      public void onReward(RewardLedger.Reward reward) {
+        handedOver.set(reward);
+      }
+    });
+
+    assertEquals(reward, handedOver.get());
+  }
+
+  @Test
+  public void replayIsDeliveredOnce() throws Exception {
+    File directory = folder.newFolder();
+
+    RewardLedger first = new RewardLedger(directory);
+    first.open();
+    appendAndWait(first, "level");
+    first.close();
+
+    RewardLedger second = new RewardLedger(directory);
+    second.open();
+
+    final CountDownLatch replayed = new CountDownLatch(2);
+    RewardLedger.RewardCallback onReplay = new RewardLedger.RewardCallback() {
+      @Override
+      public void onReward(RewardLedger.Reward reward) {
+        replayed.countDown();
+      }
+    };
+    second.replay(onReplay);
+    second.replay(onReplay);
+    appendAndWait(second, "barrier");
+    second.close();
+
+    assertEquals("the second replay has nothing left", 1, replayed.getCount());
+  }
+
+  @Test
+  public void fileIsCompactedPastTheThresholdAndOnClose() throws Exception {
+    File directory = folder.newFolder();
+    File file = new File(directory, "plugin.chartboost.rewards.log");
+
+    RewardLedger ledger = new RewardLedger(directory);
+    ledger.open();
+
+    long maxLength = 0;
+    for (int i = 0; i < 1000; i++) {
+      ledger.acknowledge(appendAndWait(ledger, "level").id);
+      maxLength = Math.max(maxLength, file.length());
+    }
+    assertTrue("ledger reached " + maxLength + " bytes", maxLength < 2 * RewardLedger.COMPACT_THRESHOLD);
+
+    RewardLedger.Reward kept = appendAndWait(ledger, "shop");
+    ledger.close();
+    assertTrue(ledger.awaitClosed(Interleaving.TIMEOUT_MS));
+
+    // only the unacknowledged reward is left
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      assertTrue(reader.readLine().contains(kept.id));
+      assertNull(reader.readLine());
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  // append a reward and wait until it is on disk
+  private static RewardLedger.Reward appendAndWait(RewardLedger ledger, String location) throws Exception
+  {
+    final CountDownLatch committed = new CountDownLatch(1);
+    RewardLedger.Reward reward = ledger.append(location, 1, new RewardLedger.RewardCallback() {
+      @Override
+      public void onReward(RewardLedger.Reward reward) {
+        committed.countDown();
+      }
+    });
+
+    assertTrue(committed.await(Interleaving.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    return reward;
+  }
+}
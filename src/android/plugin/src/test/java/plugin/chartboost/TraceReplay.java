@@ -0,0 +1,630 @@
+// TraceReplay.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import com.chartboost.sdk.Chartboost;
+import com.chartboost.sdk.ads.Ad;
+import com.chartboost.sdk.ads.Banner;
+import com.chartboost.sdk.ads.Rewarded;
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays a trace written by {@link TraceRecorder} (see chartboost.stopTrace()) on the JVM.
+ * <p>
+ * The trace drives the plugin itself through {@link PluginHarness}: the recorded Lua calls go to the LuaLoader
+ * functions, the recorded SDK callbacks are answered by {@link FakeSdk} on the UI thread, on the ads the plugin
+ * asked it for, and each recorded Lua dispatch runs the event tasks sent to the runtime so far. Credentials
+ * redacted from the trace are replaced by test ones, and each reward acknowledged by Lua is replaced by the oldest
+ * reward the replay has received and not acknowledged yet. Each pass is one runtime session, from require() to
+ * onExiting(). The trace is replayed as fast as possible and the report gives:
+ * <ul>
+ * <li>throughput: callbacks replayed per second</li>
+ * <li>latency: callback capture to Lua dispatch (queueing at full speed included), next to the same gaps
+ * recorded on the device</li>
+ * <li>allocation: bytes allocated per callback by all threads (Lua, UI, SDK and plugin workers)</li>
+ * </ul>
+ * Callbacks of ads the plugin never asked for (the replayed session diverged from the recorded one) are skipped
+ * and counted.
+ * <p>
+ * Usage: {@code java -cp <unit test classpath> plugin.chartboost.TraceReplay trace [passes]}
+ */
+public final class TraceReplay
+{
+  static final String HEADER = "#chartboost-trace";
+
+  /**
+   * One record of the trace.
+   */
+  static final class Record
+  {
+    final char kind;              // 'C', 'S' or 'D'
+    final long time;              // us since the start of the trace
+    final String[] fields;        // the fields after the time
+
+    Record(char kind, long time, String[] fields)
+    {
+      this.kind = kind;
+      this.time = time;
+      this.fields = fields;
+    }
+  }
+
+  /**
+   * Results of a replay.
+   */
+  static final class Report
+  {
+    int passes;
+    int calls;
+    int callbacks;
+    int skipped;                                // callbacks of ads the plugin never asked for
+    int dispatches;
+    int events;
+    long elapsedNanos;
+    long[] latencyNanos = new long[0];          // capture to dispatch, replayed
+    long[] recordedLatencyNanos = new long[0];  // capture to next dispatch, on the device
+    long allocatedBytes = -1;                   // -1 if the JVM can't tell
+
+    double callbacksPerSecond()
+    {
+      return (elapsedNanos > 0) ? callbacks * 1e9 / elapsedNanos : 0;
+    }
+
+    long bytesPerCallback()
+    {
+      return ((allocatedBytes < 0) || (callbacks == 0)) ? -1 : allocatedBytes / callbacks;
+    }
+
+    String format()
+    {
+      StringBuilder report = new StringBuilder();
+      report.append(String.format(Locale.US, "passes      %d (%d calls, %d callbacks, %d dispatches per pass), %d callbacks skipped%n",
+        passes, calls / Math.max(passes, 1), callbacks / Math.max(passes, 1), dispatches / Math.max(passes, 1), skipped));
+      report.append(String.format(Locale.US, "throughput  %.0f callbacks/s, %d events delivered%n", callbacksPerSecond(), events));
+      report.append("latency     replayed " + percentiles(latencyNanos) + " (capture to dispatch, full speed)\n");
+      report.append("            recorded " + percentiles(recordedLatencyNanos) + " (capture to dispatch, on the device)\n");
+      report.append("allocation  " + ((bytesPerCallback() < 0) ? "n/a" : bytesPerCallback() + " bytes/callback") + "\n");
+
+      return report.toString();
+    }
+
+    private static String percentiles(long[] nanos)
+    {
+      if (nanos.length == 0) {
+        return "n/a";
+      }
+
+      long[] sorted = nanos.clone();
+      Arrays.sort(sorted);
+      return String.format(Locale.US, "p50 %.1f us, p99 %.1f us, max %.1f us",
+        sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3, sorted[sorted.length - 1] / 1e3);
+    }
+  }
+
+  private TraceReplay()
+  {
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1) {
+      System.err.println("usage: TraceReplay trace [passes]");
+      System.exit(2);
+    }
+
+    List<Record> records = read(new File(args[0]));
+    int passes = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+    // warm up the JIT before measuring
+    replay(records, 1);
+    System.out.print(replay(records, passes).format());
+  }
+
+  // parse a trace file, records in time order
+  static List<Record> read(File file) throws Exception
+  {
+    List<Record> records = new ArrayList<>();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      if ((line == null) || !line.startsWith(HEADER + "\t")) {
+        throw new IllegalArgumentException(file + " is not a chartboost trace");
+      }
+
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if ((fields.length < 2) || (fields[0].length() != 1)) {
+          continue;
+        }
+
+        try {
+          records.add(new Record(fields[0].charAt(0), Long.parseLong(fields[1]), Arrays.copyOfRange(fields, 2, fields.length)));
+        }
+        catch (NumberFormatException ex) {
+          // a torn last line
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+
+    // records are written from several threads, restore the order they happened in
+    Collections.sort(records, new Comparator<Record>() {
+      @Override
+      public int compare(Record a, Record b) {
+        return Long.compare(a.time, b.time);
+      }
+    });
+
+    return records;
+  }
+
+  // replay 'records' 'passes' times in a row, one runtime session per pass
+  static Report replay(List<Record> records, int passes) throws Exception
+  {
+    // the activity keeps its files (the reward ledger) there, from one pass to the next
+    File directory = File.createTempFile("chartboost-replay", "");
+    if (!directory.delete() || !directory.mkdir()) {
+      throw new IllegalStateException("can't create " + directory);
+    }
+
+    Chartboost.Backend backend = Chartboost.getBackend();
+    FakeSdk sdk = new FakeSdk().install();
+
+    Report report = new Report();
+    report.passes = passes;
+    List<Long> latencies = new ArrayList<>();
+
+    try {
+      for (int pass = 0; pass < passes; pass++) {
+        Session session = new Session(new PluginHarness(new LuaLoader(), directory), sdk, report);
+        try {
+          session.run(records);
+          session.collect(latencies);
+        }
+        finally {
+          session.exit();
+        }
+      }
+    }
+    finally {
+      Chartboost.setBackend(backend);
+      delete(directory);
+    }
+
+    report.latencyNanos = new long[latencies.size()];
+    for (int i = 0; i < report.latencyNanos.length; i++) {
+      report.latencyNanos[i] = latencies.get(i);
+    }
+    report.recordedLatencyNanos = recordedLatencies(records);
+
+    return report;
+  }
+
+  // on the device: time from each callback to the first dispatch after it
+  private static long[] recordedLatencies(List<Record> records)
+  {
+    ArrayDeque<Long> captured = new ArrayDeque<>();
+    List<Long> latencies = new ArrayList<>();
+
+    for (Record record : records) {
+      if (record.kind == 'S') {
+        captured.add(record.time);
+      }
+      else if (record.kind == 'D') {
+        while (!captured.isEmpty()) {
+          latencies.add((record.time - captured.poll()) * 1000);
+        }
+      }
+    }
+
+    long[] nanos = new long[latencies.size()];
+    for (int i = 0; i < nanos.length; i++) {
+      nanos[i] = latencies.get(i);
+    }
+    return nanos;
+  }
+
+  /**
+   * One pass of the records over a runtime session. The replaying thread plays the Lua thread (calls,
+   * dispatches), the SDK callbacks run on the UI thread, the plugin's worker and ledger writer run as they do
+   * on a device.
+   */
+  private static final class Session
+  {
+    private static final Map<String, Integer> KINDS = new HashMap<>();
+    static {
+      for (int kind = CallbackQueue.REWARD_EARNED; kind <= CallbackQueue.AD_CLICKED; kind++) {
+        KINDS.put(CallbackQueue.nameOf(kind), kind);
+      }
+    }
+
+    // how long nothing must reach the runtime before the pass is over
+    private static final long QUIET_NANOS = 50 * 1000000L;
+    private static final long DRAIN_TIMEOUT_NANOS = 30 * 1000000000L;
+
+    // stands in for the Lua functions of the recorded calls (recorded as "<function>")
+    private static final JavaFunction NO_OP = new JavaFunction() {
+      @Override
+      public int invoke(LuaState L) {
+        return 0;
+      }
+    };
+
+    private final PluginHarness harness;
+    private final FakeSdk sdk;
+    private final Report report;
+
+    private boolean initialized = false;
+
+    // rewards acknowledged so far, and acknowledgements recorded ahead of the rewards the replay got
+    private int rewardsAcknowledged = 0;
+    private int acknowledgementsOwed = 0;
+
+    // ads the plugin asked the SDK to cache and that are not answered yet, and the last ad shown, by adType/location
+    private final Map<String, ArrayDeque<Ad>> cacheRequests = new HashMap<>();
+    private final Map<String, Ad> shown = new HashMap<>();
+
+    private final long startedAt = System.nanoTime();
+    private long lastActiveAt = startedAt;
+    private final Map<Long, Long> allocatedAtStart = allocatedBytes();
+
+    Session(PluginHarness harness, FakeSdk sdk, Report report)
+    {
+      this.harness = harness;
+      this.sdk = sdk;
+      this.report = report;
+    }
+
+    void run(List<Record> records) throws Exception
+    {
+      for (Record record : records) {
+        if (record.kind == 'C') {
+          call(record);
+        }
+        else if ((record.kind == 'S') && KINDS.containsKey(field(record, 0))) {
+          callback(record);
+        }
+        else if (record.kind == 'D') {
+          dispatch();
+          report.dispatches++;
+        }
+        lastActiveAt = System.nanoTime();
+      }
+
+      drain();
+    }
+
+    // add the pass to the report: events delivered, their latencies, time and allocation up to the last event
+    void collect(List<Long> latencies)
+    {
+      for (Map<String, Object> event : harness.events()) {
+        if ("init".equals(event.get("phase"))) {
+          continue;
+        }
+
+        report.events++;
+        Object capturedAt = event.get("capturedAt");
+        Object dispatchedAt = event.get("dispatchedAt");
+        if ((capturedAt instanceof Double) && (dispatchedAt instanceof Double)) {
+          // milliseconds in the event
+          latencies.add((long) (((Double) dispatchedAt - (Double) capturedAt) * 1e6));
+        }
+      }
+
+      report.elapsedNanos += lastActiveAt - startedAt;
+
+      Map<Long, Long> allocated = allocatedBytes();
+      if ((allocatedAtStart != null) && (allocated != null)) {
+        long bytes = 0;
+        for (Map.Entry<Long, Long> thread : allocated.entrySet()) {
+          Long atStart = allocatedAtStart.get(thread.getKey());
+          bytes += thread.getValue() - ((atStart != null) ? atStart : 0);
+        }
+        report.allocatedBytes = Math.max(report.allocatedBytes, 0) + bytes;
+      }
+    }
+
+    // end the session, and let the ledger writer finish with the directory
+    void exit()
+    {
+      harness.exit();
+      LuaLoader.awaitClosingLedger();
+    }
+
+    // a recorded Lua call
+    private void call(Record record) throws Exception
+    {
+      String function = field(record, 1);
+
+      Object[] args;
+      try {
+        JSONArray json = new JSONArray(field(record, 2));
+        args = new Object[json.length()];
+        for (int i = 0; i < args.length; i++) {
+          args[i] = valueOf(json.get(i));
+        }
+      }
+      catch (Exception ex) {
+        return;
+      }
+
+      if (function.equals("init") && !initialized) {
+        init(((args.length > 1) && (args[1] instanceof Map)) ? (Map<?, ?>) args[1] : null);
+      }
+      else if (function.equals("ackReward")) {
+        // Lua acknowledged a reward it had received, the replay acknowledges its own once it has it
+        acknowledgementsOwed++;
+        acknowledgeRewards();
+      }
+      else {
+        init(null);
+        harness.call(function, args);
+      }
+      report.calls++;
+
+      collectRequests();
+    }
+
+    // a recorded SDK callback, answered on the ad the plugin asked for
+    private void callback(Record record) throws Exception
+    {
+      init(null);
+      collectRequests();
+
+      final int kind = KINDS.get(field(record, 0));
+      final boolean failed = !field(record, 3).equals("-");
+      int amount = 0;
+      try {
+        amount = Integer.parseInt(field(record, 4));
+      }
+      catch (NumberFormatException ex) {
+        // no reward
+      }
+      final int reward = amount;
+
+      String key = field(record, 1) + "/" + field(record, 2);
+      final Ad ad = (kind == CallbackQueue.AD_LOADED) ? requestsOf(key).poll() : shown.get(key);
+      if ((ad == null)
+        || ((kind == CallbackQueue.REWARD_EARNED) && !(ad instanceof Rewarded))
+        || ((kind == CallbackQueue.AD_DISMISSED) && (ad instanceof Banner))) {
+        report.skipped++;
+        return;
+      }
+
+      PluginHarness.onMain(new Runnable() {
+        @Override
+        public void run() {
+          switch (kind) {
+            case CallbackQueue.AD_LOADED:
+              if (failed) {
+                FakeSdk.failedToLoad(ad);
+              }
+              else {
+                FakeSdk.loaded(ad);
+              }
+              break;
+            case CallbackQueue.AD_REQUESTED_TO_SHOW:
+              FakeSdk.requestedToShow(ad);
+              break;
+            case CallbackQueue.AD_SHOWN:
+              if (failed) {
+                FakeSdk.failedToShow(ad);
+              }
+              else {
+                FakeSdk.presented(ad);
+              }
+              break;
+            case CallbackQueue.REWARD_EARNED:
+              FakeSdk.rewarded(ad, reward);
+              break;
+            case CallbackQueue.AD_DISMISSED:
+              FakeSdk.dismissed(ad);
+              break;
+            default:
+              FakeSdk.clicked(ad);
+              break;
+          }
+        }
+      });
+      report.callbacks++;
+    }
+
+    // a recorded Lua dispatch: run the event tasks sent to the runtime so far
+    private void dispatch()
+    {
+      harness.dispatch();
+      acknowledgeRewards();
+    }
+
+    // deliver what the plugin still has in flight after the last record (worker, ledger writer)
+    private void drain() throws InterruptedException
+    {
+      long quietSince = System.nanoTime();
+      long deadline = quietSince + DRAIN_TIMEOUT_NANOS;
+
+      while ((System.nanoTime() - quietSince < QUIET_NANOS) && (System.nanoTime() < deadline)) {
+        if (harness.dispatch() > 0) {
+          acknowledgeRewards();
+          quietSince = System.nanoTime();
+          lastActiveAt = quietSince;
+        }
+        else {
+          Thread.sleep(1);
+        }
+      }
+    }
+
+    // chartboost.init() with the recorded options (once, with none if the trace starts later in the session)
+    private void init(Map<?, ?> recordedOptions) throws InterruptedException
+    {
+      if (initialized) {
+        return;
+      }
+      initialized = true;
+
+      Map<String, Object> options = new LinkedHashMap<>();
+      if (recordedOptions != null) {
+        for (Map.Entry<?, ?> option : recordedOptions.entrySet()) {
+          options.put(String.valueOf(option.getKey()), option.getValue());
+        }
+      }
+      // the harness passes its own credentials, and the replay is not traced
+      options.remove("appId");
+      options.remove("appSig");
+      options.remove("trace");
+
+      harness.init(options, sdk);
+    }
+
+    // the cache and show requests the plugin made since the last record (on the UI thread, some of them)
+    private void collectRequests() throws InterruptedException
+    {
+      PluginHarness.awaitMain();
+
+      Ad ad;
+      while ((ad = sdk.pollCacheRequest()) != null) {
+        requestsOf(keyOf(ad)).add(ad);
+      }
+      while ((ad = sdk.pollShowRequest()) != null) {
+        shown.put(keyOf(ad), ad);
+      }
+    }
+
+    // chartboost.ackReward() the rewards received so far, as many as Lua acknowledged in the trace
+    private void acknowledgeRewards()
+    {
+      List<Map<String, Object>> rewards = harness.eventsOf("reward");
+
+      while ((acknowledgementsOwed > 0) && (rewardsAcknowledged < rewards.size())) {
+        String id;
+        try {
+          id = new JSONObject((String) rewards.get(rewardsAcknowledged++).get("data")).getString("rewardId");
+        }
+        catch (Exception ex) {
+          // no ledger, nothing to acknowledge
+          id = null;
+        }
+
+        if (id != null) {
+          harness.call("ackReward", id);
+        }
+        acknowledgementsOwed--;
+      }
+    }
+
+    private ArrayDeque<Ad> requestsOf(String key)
+    {
+      ArrayDeque<Ad> ads = cacheRequests.get(key);
+      if (ads == null) {
+        ads = new ArrayDeque<>();
+        cacheRequests.put(key, ads);
+      }
+      return ads;
+    }
+
+    private static String keyOf(Ad ad)
+    {
+      String adType = (ad instanceof Rewarded) ? "rewardedVideo" : (ad instanceof Banner) ? "banner" : "interstitial";
+      return adType + "/" + ad.getLocation();
+    }
+
+    // Java value of a recorded JSON argument, for PluginHarness.call()
+    private static Object valueOf(Object json) throws Exception
+    {
+      if (json == JSONObject.NULL) {
+        return null;
+      }
+      else if ("<function>".equals(json)) {
+        return NO_OP;
+      }
+      else if (json instanceof JSONObject) {
+        JSONObject object = (JSONObject) json;
+        Map<String, Object> table = new LinkedHashMap<>();
+        for (Iterator<String> keys = object.keys(); keys.hasNext(); ) {
+          String key = keys.next();
+          table.put(key, valueOf(object.get(key)));
+        }
+        return table;
+      }
+      else if (json instanceof JSONArray) {
+        JSONArray array = (JSONArray) json;
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+          list.add(valueOf(array.get(i)));
+        }
+        return list;
+      }
+
+      return json;
+    }
+  }
+
+  private static String field(Record record, int index)
+  {
+    return (index < record.fields.length) ? record.fields[index] : "";
+  }
+
+  private static void delete(File file)
+  {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  // bytes allocated so far by each live thread, null if the JVM can't tell
+  private static Map<Long, Long> allocatedBytes()
+  {
+    try {
+      java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+          if (bytes[i] >= 0) {
+            allocated.put(ids[i], bytes[i]);
+          }
+        }
+        return allocated;
+      }
+    }
+    catch (Exception ex) {
+      // not supported
+    }
+    return null;
+  }
+}
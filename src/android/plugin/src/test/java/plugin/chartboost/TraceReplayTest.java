@@ -0,0 +1,127 @@
+// TraceReplayTest.java
+// Chartboost Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+
+// @formatter:off
+
+package plugin.chartboost;
+
+import android.os.SystemClock;
+
+import com.naef.jnlua.LuaState;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TraceReplay on traces written like TraceRecorder writes them.
+ */
+public class TraceReplayTest
+{
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replaysASession() throws Exception {
+    File trace = folder.newFile();
+    StringBuilder content = new StringBuilder(TraceReplay.HEADER + "\t1\ttest\n");
+    long time = 0;
+    content.append("C\t").append(time += 100).append("\t300\tinit\t[\"<function>\",{\"appId\":\"*\",\"appSig\":\"*\",\"rewardLedger\":true}]\n");
+    for (int round = 0; round < 50; round++) {
+      content.append("C\t").append(time += 100).append("\t20\tload\t[\"rewardedVideo\",\"shop\"]\n");
+      content.append("S\t").append(time += 5000).append("\tonAdLoaded\trewardedVideo\tshop\t-\t0\n");
+      content.append("D\t").append(time += 300).append("\t").append(4 * round + 1).append("\tloaded\trewardedVideo\n");
+      content.append("C\t").append(time += 100).append("\t20\tshow\t[\"rewardedVideo\",\"shop\"]\n");
+      content.append("S\t").append(time += 1000).append("\tonAdRequestedToShow\trewardedVideo\tshop\t-\t0\n");
+      content.append("S\t").append(time += 1000).append("\tonAdShown\trewardedVideo\tshop\t-\t0\n");
+      content.append("S\t").append(time += 9000).append("\tonRewardEarned\trewardedVideo\tshop\t-\t10\n");
+      content.append("S\t").append(time += 10).append("\tonAdDismiss\trewardedVideo\tshop\t-\t0\n");
+      content.append("D\t").append(time += 400).append("\t").append(4 * round + 2).append("\tclosed\trewardedVideo\n");
+      content.append("C\t").append(time += 100).append("\t5\tackReward\t[\"recorded-" + round + "\"]\n");
+    }
+    write(trace, content.toString());
+
+    List<TraceReplay.Record> records = TraceReplay.read(trace);
+    assertEquals(501, records.size());
+
+    TraceReplay.Report report = TraceReplay.replay(records, 3);
+    assertEquals("every callback finds the ad the plugin asked for", 0, report.skipped);
+    assertEquals(3 * 250, report.callbacks);
+    assertEquals(3 * 151, report.calls);
+    assertEquals(3 * 100, report.dispatches);
+    assertEquals(250, report.recordedLatencyNanos.length);
+    assertTrue(report.callbacksPerSecond() > 0);
+
+    // callbacks reach Lua as events, the loaded states Lua did not dispatch in time may coalesce
+    assertTrue(report.events > 0);
+    assertTrue(report.events <= report.callbacks);
+    assertEquals(report.events, report.latencyNanos.length);
+  }
+
+  @Test
+  public void readsWhatTheRecorderWrites() throws Exception {
+    File trace = new File(folder.getRoot(), TraceRecorder.FILE_NAME);
+    TraceRecorder.start(trace, "test");
+
+    long now = SystemClock.elapsedRealtimeNanos();
+    LuaState L = new LuaState();
+    L.pushString("interstitial");
+    L.pushString("level");
+    TraceRecorder.recordCall("load", now, L, 2);
+    L.setTop(0);
+    L.pushString("interstitial");
+    L.pushString("menu");
+    TraceRecorder.recordCall("load", now + 100, L, 2);
+    TraceRecorder.recordCallback("onAdLoaded", "interstitial", "level", null, 0, now + 1000);
+    TraceRecorder.recordCallback("onAdLoaded", "interstitial", "menu", 1, 0, now + 2000);
+    TraceRecorder.recordDispatch(1, "loaded", "interstitial", now + 3000);
+    TraceRecorder.stop();
+
+    // the recorder writes in the background
+    long deadline = System.currentTimeMillis() + Interleaving.TIMEOUT_MS;
+    List<TraceReplay.Record> records = null;
+    while (System.currentTimeMillis() < deadline) {
+      if (trace.exists()) {
+        records = TraceReplay.read(trace);
+        if (records.size() == 5) {
+          break;
+        }
+      }
+      Thread.sleep(10);
+    }
+
+    assertEquals(5, records.size());
+    assertEquals('C', records.get(0).kind);
+    assertEquals("[\"interstitial\",\"menu\"]", records.get(1).fields[2]);
+    assertEquals('S', records.get(2).kind);
+    assertEquals("-", records.get(2).fields[3]);
+    assertEquals("1", records.get(3).fields[3]);
+    assertEquals('D', records.get(4).kind);
+
+    TraceReplay.Report report = TraceReplay.replay(records, 1);
+    assertEquals(2, report.calls);
+    assertEquals(2, report.callbacks);
+    assertEquals(2, report.events);
+    assertEquals(2, report.recordedLatencyNanos.length);
+  }
+
+  private static void write(File file, String content) throws Exception
+  {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content.getBytes("UTF-8"));
+    }
+    finally {
+      output.close();
+    }
+  }
+}